@@ -0,0 +1,68 @@
+package com.twitter.isolated.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twitter.isolated.hadoop.LibraryManager;
+
+/**
+ * Cost of class lookups through a library class loader:
+ * classes of the library, classes delegated to the parent after missing the library
+ * and classes the delegation rules send to the parent first.
+ *
+ * @author Julien Le Dem
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoaderBenchmark {
+
+  private ClassLoader classLoader;
+
+  @Setup
+  public void setup() throws IOException {
+    File dir = new File(System.getProperty("java.io.tmpdir"), "isolated-benchmarks/" + System.nanoTime());
+    Configuration conf = new Configuration();
+    classLoader = LibraryManager.getClassLoader(Fixtures.newPayloadLibrary(dir, conf), conf);
+  }
+
+  @Benchmark
+  public Class<?> libraryHit() throws ClassNotFoundException {
+    return classLoader.loadClass("com.twitter.isolated.benchmarks.payload.Payload0");
+  }
+
+  @Benchmark
+  public Class<?> libraryMiss() throws ClassNotFoundException {
+    return classLoader.loadClass("org.openjdk.jmh.infra.Blackhole");
+  }
+
+  @Benchmark
+  public Class<?> parentFirst() throws ClassNotFoundException {
+    return classLoader.loadClass("java.lang.String");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Class<?> libraryHitConcurrent() throws ClassNotFoundException {
+    return classLoader.loadClass("com.twitter.isolated.benchmarks.payload.Payload0");
+  }
+
+}
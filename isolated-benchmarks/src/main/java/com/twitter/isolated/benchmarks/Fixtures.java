@@ -0,0 +1,101 @@
+package com.twitter.isolated.benchmarks;
+
+import static java.util.Arrays.asList;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+import com.twitter.isolated.benchmarks.payload.Payload0;
+import com.twitter.isolated.benchmarks.payload.Payload1;
+import com.twitter.isolated.benchmarks.payload.Payload2;
+import com.twitter.isolated.benchmarks.payload.Payload3;
+import com.twitter.isolated.hadoop.ClassDefinition;
+import com.twitter.isolated.hadoop.IsolatedConf;
+import com.twitter.isolated.hadoop.Library;
+import com.twitter.isolated.hadoop.Spec;
+
+/**
+ * Confs and libraries shared by the benchmarks
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class Fixtures {
+
+  public static final String CLASS_DEFINITION = "text-inputformat";
+  public static final String LIBRARY = "payload-lib";
+
+  public static final List<Class<?>> PAYLOAD = Collections.<Class<?>>unmodifiableList(asList(
+      Payload0.class, Payload1.class, Payload2.class, Payload3.class));
+
+  private Fixtures() {
+  }
+
+  /**
+   * @param confSize the number of unrelated keys in the conf (a typical job conf has several hundreds)
+   * @param specCount the number of input specs
+   * @return a job conf with specCount text input specs
+   */
+  public static Configuration newConf(int confSize, int specCount) {
+    Configuration conf = new Configuration(false);
+    for (int i = 0; i < confSize; i++) {
+      conf.set("bench.filler." + i, "value of the filler key number " + i);
+    }
+    IsolatedConf.setClassDefinitions(conf, asList(
+        new ClassDefinition(CLASS_DEFINITION, null, TextInputFormat.class.getName(), "mapred.min.split.size=1")));
+    List<Spec> specs = new ArrayList<Spec>();
+    String[] ids = new String[specCount];
+    for (int i = 0; i < specCount; i++) {
+      ids[i] = String.valueOf(i);
+      specs.add(new Spec(ids[i], CLASS_DEFINITION, "mapred.input.dir=/data/input/" + i, "my.spec.key=" + i, "my.other.key=" + i));
+    }
+    IsolatedConf.setSpecs(conf, specs);
+    IsolatedConf.setInputSpecs(conf, ids);
+    return conf;
+  }
+
+  /**
+   * creates a jar containing the payload classes and a library loading them child first
+   * @param dir a local directory for the jar and the jar cache
+   * @param conf the conf to register the file system and jar cache in
+   * @return the library
+   * @throws IOException if the jar could not be written
+   */
+  public static Library newPayloadLibrary(File dir, Configuration conf) throws IOException {
+    dir.mkdirs();
+    LocalJarFileSystem.register(conf);
+    IsolatedConf.setJarCacheDir(conf, new File(dir, "cache").getAbsolutePath());
+    File file = new File(dir, "payload.jar");
+    JarOutputStream jar = new JarOutputStream(new FileOutputStream(file));
+    try {
+      for (Class<?> c : PAYLOAD) {
+        String resource = c.getName().replace('.', '/') + ".class";
+        jar.putNextEntry(new JarEntry(resource));
+        InputStream in = c.getClassLoader().getResourceAsStream(resource);
+        try {
+          IOUtils.copyBytes(in, jar, 4096, false);
+        } finally {
+          in.close();
+        }
+        jar.closeEntry();
+      }
+    } finally {
+      jar.close();
+    }
+    Path path = LocalJarFileSystem.path(file.getAbsolutePath());
+    return new Library(LIBRARY, asList(path), Collections.<String>emptyList(), asList(Payload0.class.getPackage().getName() + "."));
+  }
+
+}
@@ -0,0 +1,438 @@
+package com.twitter.isolated.benchmarks;
+
+import static java.util.Arrays.asList;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import com.twitter.isolated.hadoop.ClassDefinition;
+import com.twitter.isolated.hadoop.IsolatedConf;
+import com.twitter.isolated.hadoop.Spec;
+
+/**
+ * End to end benchmark: the same map only job reads generated local data through
+ * TextInputFormat or SequenceFileInputFormat directly and through IsolatedInputFormat
+ * with 1, 10 and 100 specs, for both the mapred and mapreduce APIs, in the LocalJobRunner.
+ *
+ * Each run prints one JSON object per line (and appends it to the output file if provided):
+ *  - wallMs: job submission to completion
+ *  - recordsPerSec: records read / wall time
+ *  - planningMs: getSplits on the job conf, measured before submitting the job
+ *  - taskStartupMs: average time per task outside of the record loop
+ *    (creating and initializing the reader, framework overhead), the LocalJobRunner runs tasks sequentially
+ *  - allocationMBPerSec: bytes allocated in the young generation during the job / wall time
+ *
+ * usage: JobBenchmark [--dir dir] [--records n] [--runs n] [--warmups n] [--specs 1,10,100] [--output file.jsonl] [--conf key=value]*
+ * --conf sets a property of the jobs, for example to compare com.twitter.isolated.splits.store=true with the default
+ *
+ * @author Julien Le Dem
+ *
+ */
+public class JobBenchmark {
+
+  private static final int FILES = 100;
+  private static final String[] FORMATS = { "text", "sequence" };
+  private static final String[] APIS = { "mapred", "mapreduce" };
+
+  private static final Map<String, String[]> INPUT_FORMATS = new HashMap<String, String[]>();
+  static {
+    // { mapred, mapreduce }
+    INPUT_FORMATS.put("text", new String[] {
+        org.apache.hadoop.mapred.TextInputFormat.class.getName(),
+        org.apache.hadoop.mapreduce.lib.input.TextInputFormat.class.getName() });
+    INPUT_FORMATS.put("sequence", new String[] {
+        org.apache.hadoop.mapred.SequenceFileInputFormat.class.getName(),
+        org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat.class.getName() });
+  }
+
+  // the LocalJobRunner runs the tasks in this JVM
+  private static final AtomicLong records = new AtomicLong();
+  private static final AtomicLong recordLoopNanos = new AtomicLong();
+  private static final AtomicLong tasks = new AtomicLong();
+
+  private static void recordLoop(long start, long count) {
+    recordLoopNanos.addAndGet(System.nanoTime() - start);
+    records.addAndGet(count);
+    tasks.incrementAndGet();
+  }
+
+  public static class CountingMapper extends Mapper<Object, Object, NullWritable, NullWritable> {
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+      long start = System.nanoTime();
+      long count = 0;
+      while (context.nextKeyValue()) {
+        context.getCurrentKey();
+        context.getCurrentValue();
+        ++count;
+      }
+      recordLoop(start, count);
+    }
+  }
+
+  public static class CountingMapRunner implements MapRunnable<Object, Object, NullWritable, NullWritable> {
+    @Override
+    public void configure(JobConf job) {
+    }
+
+    @Override
+    public void run(RecordReader<Object, Object> input, OutputCollector<NullWritable, NullWritable> output, Reporter reporter) throws IOException {
+      long start = System.nanoTime();
+      long count = 0;
+      Object key = input.createKey();
+      Object value = input.createValue();
+      while (input.next(key, value)) {
+        ++count;
+      }
+      recordLoop(start, count);
+    }
+  }
+
+  /**
+   * measures the bytes allocated in the young generation by all threads, including the ones that die during the job:
+   * what the collections freed from eden plus the growth of eden.
+   * (ThreadMXBean.getThreadAllocatedBytes() is not reliable for threads that are exiting)
+   */
+  private static final class AllocationMeter implements NotificationListener {
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final long startEden = edenUsed();
+    private final long startCollections = collections();
+    private long collected;
+    private long notified;
+
+    AllocationMeter() {
+      for (GarbageCollectorMXBean collector : collectors) {
+        ((NotificationEmitter)collector).addNotificationListener(this, null, null);
+      }
+    }
+
+    private static boolean isEden(String pool) {
+      return pool.contains("Eden") || pool.contains("Nursery");
+    }
+
+    private static long edenUsed() {
+      long used = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (isEden(pool.getName())) {
+          used += pool.getUsage().getUsed();
+        }
+      }
+      return used;
+    }
+
+    private long collections() {
+      long count = 0;
+      for (GarbageCollectorMXBean collector : collectors) {
+        count += collector.getCollectionCount();
+      }
+      return count;
+    }
+
+    @Override
+    public synchronized void handleNotification(Notification notification, Object handback) {
+      if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+        return;
+      }
+      GcInfo gcInfo = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData()).getGcInfo();
+      for (Map.Entry<String, MemoryUsage> before : gcInfo.getMemoryUsageBeforeGc().entrySet()) {
+        if (isEden(before.getKey())) {
+          collected += before.getValue().getUsed() - gcInfo.getMemoryUsageAfterGc().get(before.getKey()).getUsed();
+        }
+      }
+      ++notified;
+      notifyAll();
+    }
+
+    synchronized long allocatedBytes() throws Exception {
+      // notifications are asynchronous
+      long deadline = System.currentTimeMillis() + 1000;
+      while (notified < collections() - startCollections && System.currentTimeMillis() < deadline) {
+        wait(10);
+      }
+      for (GarbageCollectorMXBean collector : collectors) {
+        ((NotificationEmitter)collector).removeNotificationListener(this);
+      }
+      return collected + edenUsed() - startEden;
+    }
+  }
+
+  private final File dir;
+  private final long recordCount;
+  private final int runs;
+  private final int warmups;
+  private final List<Integer> specCounts;
+  private final Writer output;
+  private final Map<String, String> jobProperties;
+
+  JobBenchmark(File dir, long recordCount, int runs, int warmups, List<Integer> specCounts, Writer output, Map<String, String> jobProperties) {
+    this.dir = dir;
+    this.recordCount = recordCount;
+    this.runs = runs;
+    this.warmups = warmups;
+    this.specCounts = specCounts;
+    this.output = output;
+    this.jobProperties = jobProperties;
+  }
+
+  private static Configuration localConf() {
+    Configuration conf = new Configuration();
+    conf.set("mapred.job.tracker", "local");
+    conf.set("fs.default.name", "file:///");
+    return conf;
+  }
+
+  private Path inputDir(String format, int file) {
+    return new Path(new File(dir, format + "/" + file).toURI());
+  }
+
+  /**
+   * generates FILES directories of one file each per format, unless they already exist
+   */
+  void generate() throws IOException {
+    Configuration conf = localConf();
+    FileSystem fs = FileSystem.getLocal(conf);
+    File marker = new File(dir, "records-" + recordCount);
+    if (marker.exists()) {
+      return;
+    }
+    FileUtil.fullyDelete(dir);
+    long perFile = recordCount / FILES;
+    Text text = new Text();
+    LongWritable key = new LongWritable();
+    for (int f = 0; f < FILES; f++) {
+      Writer writer = new OutputStreamWriter(fs.create(new Path(inputDir("text", f), "part-00000")), "UTF-8");
+      SequenceFile.Writer seqWriter = SequenceFile.createWriter(fs, conf, new Path(inputDir("sequence", f), "part-00000"), LongWritable.class, Text.class);
+      try {
+        for (long i = 0; i < perFile; i++) {
+          String line = "record " + i + " of file " + f + " with some payload to make it look like a log line";
+          writer.write(line);
+          writer.write('\n');
+          key.set(i);
+          text.set(line);
+          seqWriter.append(key, text);
+        }
+      } finally {
+        writer.close();
+        seqWriter.close();
+      }
+    }
+    marker.createNewFile();
+  }
+
+  private String inputPaths(String format, int spec, int specCount) {
+    StringBuilder sb = new StringBuilder();
+    for (int f = spec; f < FILES; f += specCount) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(inputDir(format, f));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param specCount 0 for the direct input format
+   */
+  private JobConf jobConf(String api, String format, int specCount) {
+    JobConf conf = new JobConf(localConf());
+    for (Map.Entry<String, String> e : jobProperties.entrySet()) {
+      conf.set(e.getKey(), e.getValue());
+    }
+    conf.setNumReduceTasks(0);
+    boolean mapred = api.equals("mapred");
+    String inputFormat = INPUT_FORMATS.get(format)[mapred ? 0 : 1];
+    if (specCount == 0) {
+      conf.set("mapred.input.dir", inputPaths(format, 0, 1));
+      conf.set(mapred ? "mapred.input.format.class" : "mapreduce.inputformat.class", inputFormat);
+    } else {
+      IsolatedConf.setClassDefinitions(conf, asList(new ClassDefinition(format, null, inputFormat)));
+      List<Spec> specs = new ArrayList<Spec>();
+      String[] ids = new String[specCount];
+      for (int s = 0; s < specCount; s++) {
+        ids[s] = String.valueOf(s);
+        specs.add(new Spec(ids[s], format, "mapred.input.dir=" + inputPaths(format, s, specCount)));
+      }
+      IsolatedConf.setSpecs(conf, specs);
+      IsolatedConf.setInputSpecs(conf, ids);
+      conf.set(mapred ? "mapred.input.format.class" : "mapreduce.inputformat.class",
+          mapred ? com.twitter.isolated.hadoop.mapred.IsolatedInputFormat.class.getName() : com.twitter.isolated.hadoop.mapreduce.IsolatedInputFormat.class.getName());
+    }
+    if (mapred) {
+      conf.setMapRunnerClass(CountingMapRunner.class);
+      conf.setOutputFormat(org.apache.hadoop.mapred.lib.NullOutputFormat.class);
+    } else {
+      conf.set("mapreduce.map.class", CountingMapper.class.getName());
+      conf.set("mapreduce.outputformat.class", org.apache.hadoop.mapreduce.lib.output.NullOutputFormat.class.getName());
+    }
+    return conf;
+  }
+
+  private long planningNanos(String api, JobConf conf) throws Exception {
+    JobConf copy = new JobConf(conf);
+    long t0 = System.nanoTime();
+    if (api.equals("mapred")) {
+      copy.getInputFormat().getSplits(copy, 1);
+    } else {
+      Class<?> inputFormatClass = copy.getClass("mapreduce.inputformat.class", null);
+      org.apache.hadoop.mapreduce.InputFormat<?, ?> inputFormat =
+          (org.apache.hadoop.mapreduce.InputFormat<?, ?>)ReflectionUtils.newInstance(inputFormatClass, copy);
+      inputFormat.getSplits(new JobContext(copy, new JobID()));
+    }
+    return System.nanoTime() - t0;
+  }
+
+  private void runJob(String api, JobConf conf) throws Exception {
+    if (api.equals("mapred")) {
+      JobClient.runJob(conf);
+    } else {
+      Job job = new Job(conf);
+      if (!job.waitForCompletion(false)) {
+        throw new RuntimeException("job failed");
+      }
+    }
+  }
+
+  private void run(String api, String format, int specCount, int run, boolean warmup) throws Exception {
+    JobConf conf = jobConf(api, format, specCount);
+    long planning = planningNanos(api, conf);
+    records.set(0);
+    recordLoopNanos.set(0);
+    tasks.set(0);
+    AllocationMeter allocations = new AllocationMeter();
+    long t0 = System.nanoTime();
+    runJob(api, conf);
+    long wall = System.nanoTime() - t0;
+    long allocated = allocations.allocatedBytes();
+    if (records.get() != recordCount / FILES * FILES) {
+      throw new RuntimeException("expected " + recordCount / FILES * FILES + " records but read " + records.get());
+    }
+    if (warmup) {
+      return;
+    }
+    double wallSec = wall / 1e9;
+    String json = String.format(Locale.ROOT,
+        "{\"benchmark\":\"job\",\"api\":\"%s\",\"format\":\"%s\",\"mode\":\"%s\",\"specs\":%d,\"run\":%d,"
+        + "\"records\":%d,\"tasks\":%d,\"wallMs\":%.1f,\"recordsPerSec\":%.0f,\"planningMs\":%.3f,"
+        + "\"taskStartupMs\":%.3f,\"allocationMBPerSec\":%.1f,\"conf\":\"%s\"}",
+        api, format, specCount == 0 ? "direct" : "isolated", specCount, run,
+        records.get(), tasks.get(), wall / 1e6, records.get() / wallSec, planning / 1e6,
+        (wall - recordLoopNanos.get()) / 1e6 / Math.max(1, tasks.get()), allocated / 1024.0 / 1024.0 / wallSec, jobProperties);
+    System.out.println(json);
+    if (output != null) {
+      output.write(json);
+      output.write('\n');
+      output.flush();
+    }
+  }
+
+  void runAll() throws Exception {
+    List<Integer> modes = new ArrayList<Integer>();
+    modes.add(0);
+    modes.addAll(specCounts);
+    for (String api : APIS) {
+      for (String format : FORMATS) {
+        for (int specCount : modes) {
+          for (int i = 0; i < warmups; i++) {
+            run(api, format, specCount, i, true);
+          }
+          for (int i = 0; i < runs; i++) {
+            run(api, format, specCount, i, false);
+          }
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    File dir = new File(System.getProperty("java.io.tmpdir"), "isolated-job-benchmark");
+    long recordCount = 1000000;
+    int runs = 3;
+    int warmups = 1;
+    List<Integer> specCounts = asList(1, 10, 100);
+    String output = null;
+    Map<String, String> jobProperties = new TreeMap<String, String>();
+    for (int i = 0; i < args.length; i += 2) {
+      String arg = args[i];
+      String value = args[i + 1];
+      if (arg.equals("--dir")) {
+        dir = new File(value);
+      } else if (arg.equals("--records")) {
+        recordCount = Long.parseLong(value);
+      } else if (arg.equals("--runs")) {
+        runs = Integer.parseInt(value);
+      } else if (arg.equals("--warmups")) {
+        warmups = Integer.parseInt(value);
+      } else if (arg.equals("--specs")) {
+        specCounts = new ArrayList<Integer>();
+        for (String specCount : value.split(",")) {
+          int count = Integer.parseInt(specCount.trim());
+          if (count < 1 || count > FILES) {
+            throw new IllegalArgumentException("spec count must be between 1 and " + FILES + ": " + count);
+          }
+          specCounts.add(count);
+        }
+      } else if (arg.equals("--output")) {
+        output = value;
+      } else if (arg.equals("--conf")) {
+        int eq = value.indexOf('=');
+        if (eq < 1) {
+          throw new IllegalArgumentException("--conf expects key=value: " + value);
+        }
+        jobProperties.put(value.substring(0, eq), value.substring(eq + 1));
+      } else {
+        throw new IllegalArgumentException("unknown argument " + arg);
+      }
+    }
+    Writer writer = output == null ? null : new OutputStreamWriter(new FileOutputStream(output, true), "UTF-8");
+    try {
+      JobBenchmark benchmark = new JobBenchmark(dir, recordCount, runs, warmups, specCounts, writer, jobProperties);
+      benchmark.generate();
+      benchmark.runAll();
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.twitter.isolated.benchmarks;
+
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+/**
+ * The local file system under another scheme.
+ * Libraries refuse jars on file:// so benchmarks put them on localjar:// to run without a cluster.
+ *
+ * @author Julien Le Dem
+ *
+ */
+public class LocalJarFileSystem extends RawLocalFileSystem {
+
+  public static final String SCHEME = "localjar";
+
+  private static final URI NAME = URI.create(SCHEME + ":///");
+
+  /**
+   * registers this file system in the conf
+   * @param conf the conf to modify
+   */
+  public static void register(Configuration conf) {
+    conf.setClass("fs." + SCHEME + ".impl", LocalJarFileSystem.class, RawLocalFileSystem.class);
+    // each benchmark fork gets its own instance
+    conf.setBoolean("fs." + SCHEME + ".impl.disable.cache", true);
+  }
+
+  /**
+   * @param absolutePath a local path
+   * @return the same path on this file system
+   */
+  public static Path path(String absolutePath) {
+    return new Path(SCHEME + "://" + absolutePath);
+  }
+
+  @Override
+  public URI getUri() {
+    return NAME;
+  }
+
+}
@@ -0,0 +1,10 @@
+package com.twitter.isolated.benchmarks.payload;
+
+/**
+ * a class packaged in the benchmark library jar
+ *
+ * @author Julien Le Dem
+ *
+ */
+public class Payload3 {
+}
@@ -0,0 +1,110 @@
+package com.twitter.isolated.hadoop;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twitter.isolated.benchmarks.Fixtures;
+import com.twitter.isolated.hadoop.ContextManager.CallContext;
+import com.twitter.isolated.hadoop.ContextManager.ContextualCall;
+
+/**
+ * Cost of building a {@link ContextManager} (done for every split, reader and committer)
+ * and of a round trip through {@link ContextManager#callInContext(String, ContextualCall)}.
+ * The ContextManager is shared by the benchmark threads, as in a MultithreadedMapper.
+ *
+ * @author Julien Le Dem
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextManagerBenchmark {
+
+  private static final ContextualCall<String> READ = new ContextualCall<String>() {
+    @Override
+    public String call(CallContext context) throws IOException, InterruptedException {
+      return context.localConf().get("my.spec.key");
+    }
+  };
+
+  private static final ContextualCall<Void> WRITE = new ContextualCall<Void>() {
+    private int i;
+    @Override
+    public Void call(CallContext context) throws IOException, InterruptedException {
+      context.localConf().set("my.written.key", String.valueOf(++i));
+      return null;
+    }
+  };
+
+  @Param({ "100", "1000", "10000" })
+  public int confSize;
+
+  @Param({ "1", "10", "100" })
+  public int specCount;
+
+  private Configuration conf;
+  private ContextManager contextManager;
+
+  @Setup
+  public void setup() {
+    conf = Fixtures.newConf(confSize, specCount);
+    contextManager = new ContextManager(conf);
+  }
+
+  /**
+   * the usual case: the definition is already in the {@link ContextCache}
+   */
+  @Benchmark
+  public ContextManager construct() {
+    return new ContextManager(conf);
+  }
+
+  /**
+   * the first construction in a JVM: the conf is parsed
+   */
+  @Benchmark
+  public ContextManager constructUncached() {
+    ContextCache.clear();
+    return new ContextManager(conf);
+  }
+
+  @Benchmark
+  public String callInContext() throws IOException {
+    return contextManager.callInContext("0", READ);
+  }
+
+  /**
+   * the call modifies the conf which is propagated to the spec and the global conf
+   */
+  @Benchmark
+  public Void callInContextWithWrite() throws IOException {
+    return contextManager.callInContext("0", WRITE);
+  }
+
+  /**
+   * 4 threads sharing the ContextManager: the time per call should stay the same as with one thread
+   */
+  @Benchmark
+  @Threads(4)
+  public String callInContextConcurrently() throws IOException {
+    return contextManager.callInContext("0", READ);
+  }
+
+}
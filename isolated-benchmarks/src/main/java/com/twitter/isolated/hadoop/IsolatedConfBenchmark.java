@@ -0,0 +1,74 @@
+package com.twitter.isolated.hadoop;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.twitter.isolated.benchmarks.Fixtures;
+import com.twitter.isolated.hadoop.IsolatedConf.Index;
+
+/**
+ * Cost of parsing the com.twitter.isolated.* definitions out of a job conf
+ *
+ * @author Julien Le Dem
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IsolatedConfBenchmark {
+
+  @Param({ "100", "1000", "10000" })
+  public int confSize;
+
+  @Param({ "1", "10", "100" })
+  public int specCount;
+
+  private Configuration conf;
+  private Index index;
+
+  @Setup
+  public void setup() {
+    conf = Fixtures.newConf(confSize, specCount);
+    index = new Index(conf);
+  }
+
+  @Benchmark
+  public Index index() {
+    return new Index(conf);
+  }
+
+  @Benchmark
+  public void parse(Blackhole blackhole) {
+    Index index = new Index(conf);
+    blackhole.consume(IsolatedConf.librariesFromConf(index));
+    blackhole.consume(IsolatedConf.classDefinitionsFromConf(index));
+    blackhole.consume(IsolatedConf.specsFromConf(index));
+    blackhole.consume(IsolatedConf.inputSpecsFromConf(index));
+  }
+
+  /**
+   * parsing once the conf has been indexed
+   */
+  @Benchmark
+  public void parseIndexed(Blackhole blackhole) {
+    blackhole.consume(IsolatedConf.classDefinitionsFromConf(index));
+    blackhole.consume(IsolatedConf.specsFromConf(index));
+  }
+
+}
@@ -0,0 +1,117 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twitter.isolated.benchmarks.Fixtures;
+
+/**
+ * Cost of {@link IsolatedInputSplit#write(java.io.DataOutput)} and {@link IsolatedInputSplit#readFields(java.io.DataInput)}
+ * compared to the {@link FileSplit} they wrap
+ *
+ * @author Julien Le Dem
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapreduceSplitBenchmark {
+
+  @Param({ "100", "1000" })
+  public int confSize;
+
+  private Configuration conf;
+  private FileSplit fileSplit;
+  private IsolatedInputSplit isolatedSplit;
+  private final DataOutputBuffer out = new DataOutputBuffer();
+  private final DataInputBuffer in = new DataInputBuffer();
+  private byte[] serializedFileSplit;
+  private byte[] serializedIsolatedSplit;
+
+  @Setup
+  public void setup() throws IOException {
+    conf = Fixtures.newConf(confSize, 10);
+    fileSplit = new FileSplit(new Path("hdfs://namenode/data/input/0/part-00000"), 0, 128 * 1024 * 1024, new String[] { "host1", "host2", "host3" });
+    isolatedSplit = new IsolatedInputSplit("0", fileSplit, conf);
+    out.reset();
+    fileSplit.write(out);
+    serializedFileSplit = copy(out);
+    out.reset();
+    isolatedSplit.write(out);
+    serializedIsolatedSplit = copy(out);
+  }
+
+  private static byte[] copy(DataOutputBuffer out) {
+    byte[] result = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, result, 0, result.length);
+    return result;
+  }
+
+  @Benchmark
+  public DataOutputBuffer writeFileSplit() throws IOException {
+    out.reset();
+    fileSplit.write(out);
+    return out;
+  }
+
+  @Benchmark
+  public DataOutputBuffer writeIsolatedSplit() throws IOException {
+    out.reset();
+    isolatedSplit.write(out);
+    return out;
+  }
+
+  @Benchmark
+  public FileSplit readFileSplit() throws IOException {
+    in.reset(serializedFileSplit, serializedFileSplit.length);
+    FileSplit split = new FileSplit(null, 0, 0, null);
+    split.readFields(in);
+    return split;
+  }
+
+  /**
+   * what the scheduler needs: length and locations without the delegate
+   */
+  @Benchmark
+  public long readIsolatedSplit() throws Exception {
+    in.reset(serializedIsolatedSplit, serializedIsolatedSplit.length);
+    IsolatedInputSplit split = new IsolatedInputSplit();
+    split.setConf(conf);
+    split.readFields(in);
+    return split.getLength() + split.getLocations().length;
+  }
+
+  /**
+   * what the task needs: the delegate deserialized in its context
+   */
+  @Benchmark
+  public InputSplit readIsolatedSplitDelegate() throws IOException {
+    in.reset(serializedIsolatedSplit, serializedIsolatedSplit.length);
+    IsolatedInputSplit split = new IsolatedInputSplit();
+    split.setConf(conf);
+    split.readFields(in);
+    return split.getDelegate();
+  }
+
+}
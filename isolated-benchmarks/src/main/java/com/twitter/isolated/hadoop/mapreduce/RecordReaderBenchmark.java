@@ -0,0 +1,130 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.twitter.isolated.hadoop.ContextSwitch;
+import com.twitter.isolated.hadoop.IsolatedConf;
+import com.twitter.isolated.hadoop.RecordCounters;
+
+/**
+ * Per record overhead of {@link IsolatedRecordReader} compared to reading the delegate directly,
+ * with and without record counters. Reading a record switches the context class loader to the one of the spec
+ * once (isolatedWithoutCounters measures the switch alone).
+ *
+ * @author Julien Le Dem
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordReaderBenchmark {
+
+  private static final int RECORDS = 10000;
+
+  /**
+   * an in memory reader, reset before each pass
+   */
+  private static final class InMemoryReader extends RecordReader<Long, Long> {
+    private long current;
+    private long end;
+
+    void reset(long records) {
+      current = 0;
+      end = records;
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) {
+    }
+
+    @Override
+    public boolean nextKeyValue() {
+      return ++current <= end;
+    }
+
+    @Override
+    public Long getCurrentKey() {
+      return current;
+    }
+
+    @Override
+    public Long getCurrentValue() {
+      return current;
+    }
+
+    @Override
+    public float getProgress() {
+      return (float)current / end;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private final InMemoryReader delegate = new InMemoryReader();
+  private RecordReader<Long, Long> isolated;
+  private RecordReader<Long, Long> isolatedWithoutCounters;
+
+  @Setup
+  public void setup() {
+    Configuration conf = new Configuration(false);
+    // a class loader other than the one of the benchmark thread so that every call switches
+    ContextSwitch contextSwitch = new ContextSwitch(new URLClassLoader(new URL[0]));
+    isolated = new IsolatedRecordReader<Long, Long>(delegate, contextSwitch, RecordCounters.forReader(conf, "0"));
+    IsolatedConf.setRecordCounters(conf, false);
+    isolatedWithoutCounters = new IsolatedRecordReader<Long, Long>(delegate, contextSwitch, RecordCounters.forReader(conf, "0"));
+  }
+
+  private void readAll(RecordReader<Long, Long> reader, Blackhole blackhole) throws IOException, InterruptedException {
+    delegate.reset(RECORDS);
+    while (reader.nextKeyValue()) {
+      // the task reports the progress after each record
+      blackhole.consume(reader.getProgress());
+      blackhole.consume(reader.getCurrentKey());
+      blackhole.consume(reader.getCurrentValue());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void direct(Blackhole blackhole) throws IOException, InterruptedException {
+    readAll(delegate, blackhole);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void isolated(Blackhole blackhole) throws IOException, InterruptedException {
+    readAll(isolated, blackhole);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void isolatedWithoutCounters(Blackhole blackhole) throws IOException, InterruptedException {
+    readAll(isolatedWithoutCounters, blackhole);
+  }
+
+}
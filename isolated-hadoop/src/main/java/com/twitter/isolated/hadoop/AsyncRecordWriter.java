@@ -0,0 +1,294 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.asyncWriterBudgetFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.asyncWriterDepthFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.asyncWriterFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.asyncWriterHandoffFromConf;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Writes the records to the delegate writer in a background thread so that encoding, compressing and
+ * waiting for the file system overlap with the map function. The thread runs with the class loader of the output spec.
+ * Records go through a bounded queue: at most {@link IsolatedConf#setAsyncWriterDepth(Configuration, int)} records and about
+ * {@link IsolatedConf#setAsyncWriterBudget(Configuration, long)} bytes are pending, the task waits for room beyond that.
+ * How records are handed to the thread is set by {@link IsolatedConf#setAsyncWriterHandoff(Configuration, Handoff)}.
+ * The time the task waits for room is added to the counters of the spec.
+ * An error of the delegate is thrown by the next {@link #write(Object, Object)} or by {@link #close()}, the pending records are dropped.
+ * One producer thread, as for any RecordWriter.
+ *
+ * @author Julien Le Dem
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class AsyncRecordWriter<K, V> {
+
+  static final String FULL_MS = "async write full ms";
+
+  private static final String USER = IsolatedConf.key("asyncwriter") + "=true";
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  /**
+   * how records are handed to the background thread
+   */
+  public static enum Handoff {
+    /**
+     * serialized (io.serializations) then read into the same key and value objects for each record
+     * (new ones when the class changes). The default
+     */
+    RECYCLE,
+    /**
+     * serialized then read into new key and value objects for each record, for delegates that keep them
+     */
+    COPY,
+    /**
+     * the objects themselves: the task must not modify or reuse them after write
+     */
+    REFERENCE
+  }
+
+  /**
+   * the delegate writer, called from the background thread only
+   *
+   * @param <K> the key type
+   * @param <V> the value type
+   */
+  public interface Sink<K, V> {
+    void write(K key, V value) throws IOException, InterruptedException;
+  }
+
+  /**
+   * a pending record, recycled once written
+   */
+  private static final class Slot {
+    private byte[] bytes = new byte[0];
+    private int length;
+    private Class<?> keyClass;
+    private Class<?> valueClass;
+    private Object key;
+    private Object value;
+
+    void set(DataOutputBuffer record, Class<?> keyClass, Class<?> valueClass) {
+      if (bytes.length < record.getLength()) {
+        bytes = new byte[record.getLength()];
+      }
+      System.arraycopy(record.getData(), 0, bytes, 0, record.getLength());
+      this.length = record.getLength();
+      this.keyClass = keyClass;
+      this.valueClass = valueClass;
+    }
+  }
+
+  /**
+   * @param conf the conf of the job
+   * @return whether the writers write in a background thread
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return asyncWriterFromConf(conf);
+  }
+
+  /**
+   * starts the background thread if enabled
+   * @param conf the conf of the job
+   * @param countersID the counters id of the output spec, see {@link ContextManager#getCountersID(String)}
+   * @param classLoader the class loader of the output spec
+   * @param sink the delegate writer
+   * @return the started writer or null if disabled
+   */
+  public static <K, V> AsyncRecordWriter<K, V> forWriter(Configuration conf, String countersID, ClassLoader classLoader, Sink<K, V> sink) {
+    if (!asyncWriterFromConf(conf)) {
+      return null;
+    }
+    AsyncRecordWriter<K, V> writer = new AsyncRecordWriter<K, V>(conf, countersID, classLoader, sink);
+    writer.thread.start();
+    return writer;
+  }
+
+  private final String group;
+  private final Sink<K, V> sink;
+  private final int depth;
+  private final long budget;
+  private final Handoff handoff;
+  private final Thread thread;
+
+  // guarded by this
+  private final Queue<Slot> filled = new ArrayDeque<Slot>();
+  private final Queue<Slot> free = new ArrayDeque<Slot>();
+  private long filledBytes;
+  private boolean closed;
+  private Throwable error;
+
+  // producer side
+  private final DataOutputBuffer record = new DataOutputBuffer();
+  private final ObjectSerialization.Writer keyWriter;
+  private final ObjectSerialization.Writer valueWriter;
+  private long fullNanos;
+
+  // background thread side
+  private final DataInputBuffer input = new DataInputBuffer();
+  private final ObjectSerialization.Reader keyReader;
+  private final ObjectSerialization.Reader valueReader;
+
+  private AsyncRecordWriter(Configuration conf, String countersID, final ClassLoader classLoader, Sink<K, V> sink) {
+    this.group = IsolationCounters.SPEC_GROUP + countersID;
+    this.sink = sink;
+    this.depth = Math.max(1, asyncWriterDepthFromConf(conf));
+    this.budget = asyncWriterBudgetFromConf(conf);
+    this.handoff = asyncWriterHandoffFromConf(conf);
+    this.keyWriter = new ObjectSerialization.Writer(conf, record, USER);
+    this.valueWriter = new ObjectSerialization.Writer(conf, record, USER);
+    this.keyReader = new ObjectSerialization.Reader(conf, input, USER);
+    this.valueReader = new ObjectSerialization.Reader(conf, input, USER);
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Thread.currentThread().setContextClassLoader(classLoader);
+        writeBehind();
+      }
+    }, "isolated-write-" + threadCount.incrementAndGet());
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * queues a record, waiting for room if needed
+   * @param key the key, can be null
+   * @param value the value, can be null
+   * @throws IOException the error of the delegate if it failed or if the record can not be serialized
+   */
+  public void write(K key, V value) throws IOException, InterruptedException {
+    int length = 0;
+    Class<?> keyClass = null;
+    Class<?> valueClass = null;
+    if (handoff != Handoff.REFERENCE) {
+      // the class of each record is kept with it, the serializations are looked up again when it changes
+      record.reset();
+      keyClass = keyWriter.write(key);
+      valueClass = valueWriter.write(value);
+      length = record.getLength();
+    }
+    Slot slot = acquire(length);
+    if (handoff == Handoff.REFERENCE) {
+      slot.key = key;
+      slot.value = value;
+    } else {
+      slot.set(record, keyClass, valueClass);
+    }
+    synchronized (this) {
+      filled.add(slot);
+      filledBytes += slot.length;
+      notifyAll();
+    }
+  }
+
+  /**
+   * waits for room in the queue
+   * @return a free slot
+   */
+  private synchronized Slot acquire(int length) throws IOException, InterruptedException {
+    long start = 0;
+    // one record is always accepted so that a record bigger than the budget does not block
+    while (error == null && (filled.size() >= depth || (!filled.isEmpty() && filledBytes + length > budget))) {
+      if (start == 0) {
+        start = System.nanoTime();
+      }
+      wait();
+    }
+    if (start != 0) {
+      fullNanos += System.nanoTime() - start;
+    }
+    if (error != null) {
+      rethrow(error);
+    }
+    Slot slot = free.poll();
+    return slot == null ? new Slot() : slot;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeBehind() {
+    try {
+      K key = null;
+      V value = null;
+      while (true) {
+        Slot slot;
+        synchronized (this) {
+          while (filled.isEmpty() && !closed) {
+            wait();
+          }
+          slot = filled.peek();
+          if (slot == null) {
+            // closed and everything written
+            return;
+          }
+        }
+        if (handoff == Handoff.REFERENCE) {
+          key = (K)slot.key;
+          value = (V)slot.value;
+        } else {
+          input.reset(slot.bytes, slot.length);
+          key = (K)keyReader.read(slot.keyClass, handoff == Handoff.RECYCLE ? key : null);
+          value = (V)valueReader.read(slot.valueClass, handoff == Handoff.RECYCLE ? value : null);
+        }
+        sink.write(key, value);
+        synchronized (this) {
+          // removed once written so that the queue does not look empty to close
+          filled.poll();
+          filledBytes -= slot.length;
+          slot.key = slot.value = null;
+          free.add(slot);
+          notifyAll();
+        }
+      }
+    } catch (Throwable t) {
+      synchronized (this) {
+        error = t;
+        // dropped: nothing is written after a failure
+        filled.clear();
+        filledBytes = 0;
+        notifyAll();
+      }
+    }
+  }
+
+  private static void rethrow(Throwable error) throws IOException, InterruptedException {
+    if (error instanceof IOException) {
+      throw (IOException)error;
+    } else if (error instanceof InterruptedException) {
+      throw (InterruptedException)error;
+    } else if (error instanceof RuntimeException) {
+      throw (RuntimeException)error;
+    } else if (error instanceof Error) {
+      throw (Error)error;
+    }
+    throw new IOException("asynchronous write failed", error);
+  }
+
+  /**
+   * waits for the pending records to be written. The delegate can then be closed
+   * @throws IOException the error of the delegate if it failed
+   */
+  public void close() throws IOException, InterruptedException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    thread.join();
+    IsolationCounters.increment(group, FULL_MS, fullNanos / 1000000);
+    fullNanos = 0;
+    Throwable failure;
+    synchronized (this) {
+      failure = error;
+    }
+    if (failure != null) {
+      rethrow(failure);
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.definitionEntries;
+import static com.twitter.isolated.hadoop.IsolatedConf.isolatedEntries;
+import static com.twitter.isolated.hadoop.IsolatedConf.specConfKey;
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.twitter.isolated.hadoop.IsolatedConf.Index;
+
+/**
+ * Per JVM cache of parsed {@link ContextDefinition}s.
+ * The key is the set of com.twitter.isolated.* properties that define the contexts (libraries, class definitions, specs)
+ * so that a conf is parsed only once no matter how many splits, readers or committers use it.
+ * The confs of the specs, that the calls change, and the splits.* properties, that planning sets, are not part of it:
+ * two confs that differ only there share the same definition.
+ * The properties of a Configuration instance are scanned once and the result is kept while the instance is in use.
+ * It is scanned again when properties are added or removed or when one of its isolated properties changes.
+ * The changes the calls propagate to the specs are applied to the kept result.
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class ContextCache {
+
+  private static final int MAX_ENTRIES = 32;
+
+  private static final Map<Map<String, String>, ContextDefinition> definitions =
+      new LinkedHashMap<Map<String, String>, ContextDefinition>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<Map<String, String>, ContextDefinition> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  /**
+   * the definition of a Configuration instance, with its specs
+   */
+  private static final class Scanned {
+    private final ContextDefinition definition;
+    private final Map<String, String> entries;
+    private final int size;
+
+    Scanned(ContextDefinition definition, Map<String, String> entries, int size) {
+      this.definition = definition;
+      this.entries = entries;
+      this.size = size;
+    }
+
+    /**
+     * a lookup per isolated property instead of a scan of the whole conf
+     */
+    boolean isCurrent(Configuration conf) {
+      if (size != conf.size()) {
+        return false;
+      }
+      for (Entry<String, String> e : entries.entrySet()) {
+        if (!e.getValue().equals(conf.get(e.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  // by instance: Configuration does not override equals
+  private static final Map<Configuration, Scanned> scannedConfs = new WeakHashMap<Configuration, Scanned>();
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private ContextCache() {
+  }
+
+  /**
+   * @param conf the conf to parse
+   * @return the cached definition if one exists for the same isolated properties, a new one otherwise, with the specs of this conf
+   */
+  static ContextDefinition getDefinition(Configuration conf) {
+    Map<String, String> entries;
+    int size;
+    // the calls of other ContextManagers on this conf can update it concurrently
+    synchronized (conf) {
+      synchronized (scannedConfs) {
+        Scanned scanned = scannedConfs.get(conf);
+        if (scanned != null && scanned.isCurrent(conf)) {
+          hits.incrementAndGet();
+          return scanned.definition;
+        }
+      }
+      size = conf.size();
+      entries = isolatedEntries(conf);
+    }
+    Map<String, String> fingerprint = unmodifiableMap(definitionEntries(entries));
+    ContextDefinition template;
+    synchronized (definitions) {
+      template = definitions.get(fingerprint);
+    }
+    if (template != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      long t0 = System.nanoTime();
+      // parsing happens outside of the lock as it can load libraries
+      template = new ContextDefinition(new Index(fingerprint), conf);
+      IsolationCounters.increment(IsolationCounters.CACHE_GROUP, IsolationCounters.CONTEXT_DEFINITION_MS, (System.nanoTime() - t0) / 1000000);
+      synchronized (definitions) {
+        definitions.put(fingerprint, template);
+      }
+    }
+    ContextDefinition definition = template.withSpecs(new Index(entries));
+    synchronized (scannedConfs) {
+      scannedConfs.put(conf, new Scanned(definition, entries, size));
+    }
+    return definition;
+  }
+
+  /**
+   * applies the changes a call made to a spec, already saved in the conf, to the definition of the conf
+   * @param conf the conf, locked by the caller
+   * @param specID the id of the spec
+   * @param sets the keys set in the conf of the spec
+   * @param unsets the keys removed from the conf of the spec
+   */
+  static void updateSpecConf(Configuration conf, String specID, Map<String, String> sets, Collection<String> unsets) {
+    synchronized (scannedConfs) {
+      Scanned scanned = scannedConfs.get(conf);
+      if (scanned != null) {
+        Map<String, String> entries = new HashMap<String, String>(scanned.entries);
+        for (String unset : unsets) {
+          entries.remove(specConfKey(specID, unset));
+        }
+        for (Entry<String, String> set : sets.entrySet()) {
+          entries.put(specConfKey(specID, set.getKey()), set.getValue());
+        }
+        scannedConfs.put(conf, new Scanned(scanned.definition.withSpecConf(specID, sets, unsets), entries, conf.size()));
+      }
+    }
+  }
+
+  /**
+   * @return the number of times a parsed definition was reused
+   */
+  public static long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of times a conf had to be parsed
+   */
+  public static long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of definitions currently cached
+   */
+  public static int size() {
+    synchronized (definitions) {
+      return definitions.size();
+    }
+  }
+
+  /**
+   * removes all cached definitions and resets the stats
+   */
+  public static void clear() {
+    synchronized (definitions) {
+      definitions.clear();
+    }
+    synchronized (scannedConfs) {
+      scannedConfs.clear();
+    }
+    hits.set(0);
+    misses.set(0);
+  }
+}
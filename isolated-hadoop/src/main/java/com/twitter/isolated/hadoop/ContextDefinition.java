@@ -0,0 +1,120 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.ContextManager.lookup;
+import static com.twitter.isolated.hadoop.IsolatedConf.classDefinitionsFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.inputSpecsFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.librariesFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.outputSpecsFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.specsFromConf;
+import static com.twitter.isolated.hadoop.LibraryManager.getClassLoader;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.twitter.isolated.hadoop.IsolatedConf.Index;
+
+/**
+ * The parsed com.twitter.isolated.* part of a conf:
+ * libraries, class definitions, specs and the class loaders of the class definitions.
+ * It is immutable and shared by all the {@link ContextManager}s created from equivalent confs.
+ * The Specs it holds are templates and must be copied before being modified.
+ * The confs of the specs are not part of the shared definition, they are added per conf with {@link #withSpecs(Index)}.
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class ContextDefinition {
+
+  final Map<String, Library> libByName;
+  final Map<String, ClassDefinition> classDefByName;
+  final Map<String, Spec> specByName;
+  final Map<String, ClassLoader> classLoaderByClassDefName;
+  final List<String> inputSpecIDs;
+  final List<String> outputSpecIDs;
+
+  /**
+   * @param index the com.twitter.isolated.* properties of the conf
+   * @param conf the conf used to load the libraries
+   */
+  ContextDefinition(Index index, Configuration conf) {
+    Map<String, Library> libs = new HashMap<String, Library>();
+    for (Library library : librariesFromConf(index)) {
+      libs.put(library.getID(), library);
+    }
+    Map<String, ClassDefinition> classDefs = new LinkedHashMap<String, ClassDefinition>();
+    Map<String, ClassLoader> classLoaders = new LinkedHashMap<String, ClassLoader>();
+    for (ClassDefinition classDef : classDefinitionsFromConf(index)) {
+      classDefs.put(classDef.getID(), classDef);
+      Library library = classDef.getLibraryID() == null ? null : lookup(libs, classDef.getLibraryID());
+      classLoaders.put(classDef.getID(), getClassLoader(library, conf));
+    }
+    Map<String, Spec> specs = new LinkedHashMap<String, Spec>();
+    for (Spec spec : specsFromConf(index)) {
+      lookup(classDefs, spec.getClassDefinitionID()); // validate conf
+      specs.put(spec.getId(), spec);
+    }
+    List<String> inputs = new ArrayList<String>();
+    for (String inputSpecID : inputSpecsFromConf(index)) {
+      lookup(specs, inputSpecID); // validate conf
+      inputs.add(inputSpecID);
+    }
+    List<String> outputs = new ArrayList<String>();
+    for (String outputSpecID : outputSpecsFromConf(index)) {
+      lookup(specs, outputSpecID); // validate conf
+      outputs.add(outputSpecID);
+    }
+    this.libByName = unmodifiableMap(libs);
+    this.classDefByName = unmodifiableMap(classDefs);
+    this.specByName = unmodifiableMap(specs);
+    this.classLoaderByClassDefName = unmodifiableMap(classLoaders);
+    this.inputSpecIDs = unmodifiableList(inputs);
+    this.outputSpecIDs = unmodifiableList(outputs);
+  }
+
+  private ContextDefinition(ContextDefinition template, Map<String, Spec> specs) {
+    this.libByName = template.libByName;
+    this.classDefByName = template.classDefByName;
+    this.specByName = unmodifiableMap(specs);
+    this.classLoaderByClassDefName = template.classLoaderByClassDefName;
+    this.inputSpecIDs = template.inputSpecIDs;
+    this.outputSpecIDs = template.outputSpecIDs;
+  }
+
+  /**
+   * @param index all the com.twitter.isolated.* properties of a conf with the same definition
+   * @return this definition with the specs of that conf
+   */
+  ContextDefinition withSpecs(Index index) {
+    Map<String, Spec> specs = new LinkedHashMap<String, Spec>();
+    for (Spec spec : specsFromConf(index)) {
+      specs.put(spec.getId(), spec);
+    }
+    return new ContextDefinition(this, specs);
+  }
+
+  /**
+   * @param specID the spec changed by a call
+   * @param sets the keys set in its conf
+   * @param unsets the keys removed from its conf
+   * @return this definition with the conf of that spec changed
+   */
+  ContextDefinition withSpecConf(String specID, Map<String, String> sets, Collection<String> unsets) {
+    Map<String, Spec> specs = new LinkedHashMap<String, Spec>(specByName);
+    Spec spec = lookup(specs, specID);
+    Map<String, String> conf = new TreeMap<String, String>(spec.getConf());
+    conf.keySet().removeAll(unsets);
+    conf.putAll(sets);
+    specs.put(specID, new Spec(specID, spec.getClassDefinitionID(), conf));
+    return new ContextDefinition(this, specs);
+  }
+
+}
@@ -1,23 +1,37 @@
 package com.twitter.isolated.hadoop;
 
-import static com.twitter.isolated.hadoop.IsolatedConf.classDefinitionsFromConf;
-import static com.twitter.isolated.hadoop.IsolatedConf.inputSpecsFromConf;
-import static com.twitter.isolated.hadoop.IsolatedConf.librariesFromConf;
-import static com.twitter.isolated.hadoop.IsolatedConf.outputSpecFromConf;
-import static com.twitter.isolated.hadoop.IsolatedConf.setSpecs;
-import static com.twitter.isolated.hadoop.IsolatedConf.specsFromConf;
-import static com.twitter.isolated.hadoop.LibraryManager.getClassLoader;
-import static java.util.Arrays.asList;
+import static com.twitter.isolated.hadoop.LayeredConfiguration.newLayeredConf;
+import static com.twitter.isolated.hadoop.LayeredConfiguration.snapshot;
+import static com.twitter.isolated.hadoop.IsolatedConf.specCountersFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.splitsParallelismFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.splitsTimeoutFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.updateSpecConf;
+import static com.twitter.isolated.hadoop.IsolationCounters.recordCall;
+import static com.twitter.isolated.hadoop.LayeredConfiguration.layeredProperties;
+import static java.util.Collections.unmodifiableList;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapred.InputSplit;
@@ -29,12 +43,17 @@ import org.apache.hadoop.util.ReflectionUtils;
  * Manages calling methods of an {@link InputFormat} or {@link OutputFormat} in the context of
  * a {@link Configuration} and a {@link ClassLoader} based on a {@link Spec}
  *
+ * A ContextManager can be called from many threads (MultithreadedMapper, MultithreadedMapRunner, multi-threaded readers):
+ * the definitions and the snapshot of the global conf are immutable, each call gets its own {@link CallContext}
+ * and the conf changes of a call are merged atomically in its spec (copy on write) and in the global conf.
+ * Concurrent calls in the same spec see its conf before or after the changes of another call, never in between.
+ *
  * @author Julien Le Dem
  *
  */
 public class ContextManager {
 
-  private static <T> T lookup(Map<String, T> map, String key) {
+  static <T> T lookup(Map<String, T> map, String key) {
     T lookedUp = map.get(key);
     if (lookedUp == null) {
       throw new IllegalArgumentException(key + " not found in " + map.keySet());
@@ -42,50 +61,134 @@ public class ContextManager {
     return lookedUp;
   }
 
-  private static void applyConf(Configuration conf, Map<String, String> map) {
-    for (Entry<String, String> entry : map.entrySet()) {
-      conf.set(entry.getKey(), entry.getValue());
-    }
-  }
+  private static final String DEFAULT_OPERATION = "call";
 
-  private static Configuration newConf(final Configuration conf, final Spec inputSpec, final ClassDefinition inputFormatDefinition) {
-    Configuration newConf = new Configuration(conf);
-    applyConf(newConf, inputFormatDefinition.getConf());
-    applyConf(newConf, inputSpec.getConf());
-    return newConf;
+  private static final AtomicLong propagatedKeys = new AtomicLong();
+
+  /**
+   * @return the number of conf keys set or unset by delegates and saved in their spec since the JVM started
+   */
+  public static long getPropagatedKeyCount() {
+    return propagatedKeys.get();
   }
 
   protected final Configuration globalConf;
-  private final Map<String, Library> libByName = new HashMap<String, Library>();
-  private final Map<String, ClassDefinition> classDefByName = new LinkedHashMap<String, ClassDefinition>();
-  private final Map<String, Spec> specByName = new LinkedHashMap<String, Spec>();
-  private final Map<String, ClassLoader> classLoaderByInputFormatName = new LinkedHashMap<String, ClassLoader>();
+  private volatile Map<String, String> baseConf;
+  private final Map<String, ClassDefinition> classDefByName;
+  private final Map<String, Spec> specByName;
+  private final Map<String, ClassLoader> classLoaderByInputFormatName;
   private final List<Spec> inputSpecs;
-  private final Spec outputSpec;
+  private final List<Spec> outputSpecs;
+  private final boolean countersPerSpec;
 
+  /**
+   * the parsed definitions are shared through the {@link ContextCache}.
+   * Specs are copied as their conf gets modified by the calls
+   * @param conf the global conf
+   */
   public ContextManager(Configuration conf) {
     this.globalConf = conf;
-    for (Library library : librariesFromConf(conf)) {
-      libByName.put(library.getID(), library);
-    }
-    for (ClassDefinition inputFormatDef : classDefinitionsFromConf(conf)) {
-      classDefByName.put(inputFormatDef.getID(), inputFormatDef);
-      Library library = inputFormatDef.getLibraryID() == null ? null : lookup(libByName, inputFormatDef.getLibraryID());
-      ClassLoader classLoader = getClassLoader(library);
-      classLoaderByInputFormatName.put(inputFormatDef.getID(), classLoader);
-    }
-    for (Spec spec : specsFromConf(conf)) {
-      lookup(classDefByName, spec.getClassDefinitionID()); // validate conf
-      specByName.put(spec.getId(), spec);
+    ContextDefinition definition = ContextCache.getDefinition(conf);
+    this.classDefByName = definition.classDefByName;
+    this.classLoaderByInputFormatName = definition.classLoaderByClassDefName;
+    Map<String, Spec> specs = new LinkedHashMap<String, Spec>();
+    for (Spec spec : definition.specByName.values()) {
+      specs.put(spec.getId(), new Spec(spec.getId(), spec.getClassDefinitionID(), spec.getConf()));
     }
+    this.specByName = Collections.unmodifiableMap(specs);
     List<Spec> inputs = new ArrayList<Spec>();
-    List<String> inputSpecIDs = inputSpecsFromConf(conf);
-    for (String inputSpecID : inputSpecIDs) {
+    for (String inputSpecID : definition.inputSpecIDs) {
       inputs.add(getSpec(inputSpecID));
     }
     inputSpecs = Collections.unmodifiableList(inputs);
-    String outputSpecID = outputSpecFromConf(conf);
-    outputSpec = outputSpecID == null ? null : getSpec(outputSpecID);
+    List<Spec> outputs = new ArrayList<Spec>();
+    for (String outputSpecID : definition.outputSpecIDs) {
+      outputs.add(getSpec(outputSpecID));
+    }
+    outputSpecs = Collections.unmodifiableList(outputs);
+    countersPerSpec = specByName.size() <= specCountersFromConf(conf);
+  }
+
+  /**
+   * Hadoop limits the number of counters and counter groups of a job.
+   * When there are more specs than {@link IsolatedConf#setSpecCounters(Configuration, int)} they share one group
+   * @param specID the id of a spec
+   * @return the id of the counter group of that spec in the {@link IsolationCounters}
+   */
+  public String getCountersID(String specID) {
+    return countersPerSpec ? specID : IsolationCounters.ALL_SPECS;
+  }
+
+  /**
+   * The global conf is copied once per ContextManager, the first time it is needed.
+   * All the calls then share this immutable snapshot as the base layer of their conf.
+   * @return the snapshot of the global conf
+   */
+  private Map<String, String> baseConf() {
+    Map<String, String> result = baseConf;
+    if (result == null) {
+      synchronized (this) {
+        if (baseConf == null) {
+          synchronized (globalConf) {
+            baseConf = snapshot(globalConf);
+          }
+        }
+        result = baseConf;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the layers of a call: the spec conf over the class definition conf over the global conf
+   */
+  private List<Map<String, String>> layers(Map<String, String> specConf, ClassDefinition inputFormatDefinition) {
+    List<Map<String, String>> layers = new ArrayList<Map<String, String>>(3);
+    layers.add(specConf);
+    layers.add(inputFormatDefinition.getConf());
+    layers.add(baseConf());
+    return unmodifiableList(layers);
+  }
+
+  /**
+   * the keys set or unset by the delegate are merged in the spec.
+   * The global conf is updated only if the spec changed.
+   * Thread safe: the merge replaces the conf of the spec atomically
+   * @param spec the spec of the call
+   * @param layers the layers the local conf was created on
+   * @param localConf the conf passed to the delegate or the one it replaced it with
+   */
+  private void propagateChanges(Spec spec, List<Map<String, String>> layers, Configuration localConf) {
+    Map<String, String> sets = new TreeMap<String, String>();
+    Set<String> unsets = new TreeSet<String>();
+    LayeredProperties layeredProperties = layeredProperties(localConf);
+    if (layeredProperties != null && layeredProperties.isLayeredOn(layers)) {
+      layeredProperties.collectChanges(sets, unsets);
+    } else {
+      // the delegate replaced the conf with one we did not create, compare everything
+      Configuration before = newLayeredConf(layers);
+      for (Entry<String, String> e : localConf) {
+        String previous = before.getRaw(e.getKey());
+        if (previous == null || !previous.equals(e.getValue())) {
+          sets.put(e.getKey(), e.getValue());
+        }
+      }
+    }
+    if (sets.isEmpty() && unsets.isEmpty()) {
+      return;
+    }
+    // the spec and the global conf are updated in the same order by concurrent calls
+    Set<String> removed;
+    synchronized (spec) {
+      // the unsets not defined by the spec are dropped: nothing to propagate
+      removed = spec.merge(sets, unsets);
+      // Configuration is not thread safe
+      synchronized (globalConf) {
+        updateSpecConf(globalConf, spec.getId(), sets, removed);
+        ContextCache.updateSpecConf(globalConf, spec.getId(), sets, removed);
+      }
+    }
+    propagatedKeys.addAndGet(sets.size() + removed.size());
   }
 
   /**
@@ -104,12 +207,34 @@ public class ContextManager {
   }
 
   /**
-   * @return the configured output spec
+   * @return the configured output spec, null if there is none
+   * @throws IllegalStateException if there are several output specs
    */
   public Spec getOutputSpec() {
-    return outputSpec;
+    if (outputSpecs.size() > 1) {
+      throw new IllegalStateException(outputSpecs.size() + " output specs are configured, use getOutputSpecs()");
+    }
+    return outputSpecs.isEmpty() ? null : outputSpecs.get(0);
+  }
+
+  /**
+   * @return the configured output specs, in the order of the conf
+   */
+  public List<Spec> getOutputSpecs() {
+    return outputSpecs;
+  }
+
+  /**
+   * @param specID the id of the spec
+   * @return the class loader of the library of that spec
+   */
+  public ClassLoader getClassLoader(String specID) {
+    return lookup(classLoaderByInputFormatName, getSpec(specID).getClassDefinitionID());
   }
 
+  /**
+   * The context of one call, confined to the thread of the call
+   */
   public static class CallContext {
 
     private Configuration localConf;
@@ -187,32 +312,45 @@ public class ContextManager {
     return callInContext(getSpec(specId), callable);
   }
 
+  /**
+   * @param specId the id of the spec defining the context
+   * @param operation the name of the delegated operation, used in the {@link IsolationCounters}
+   * @param callable the task to call
+   * @return the result of the call
+   * @throws IOException
+   */
+  public <T> T callInContext(String specId, String operation, ContextualCall<T> callable) throws IOException {
+    return callInContext(getSpec(specId), operation, callable);
+  }
+
+  public <T> T callInContext(Spec spec, ContextualCall<T> callable) throws IOException {
+    return callInContext(spec, DEFAULT_OPERATION, callable);
+  }
+
   /**
    * guarantees that the delegated calls are done in the right context:
    *  - classloader to the proper lib
    *  - configuration from the proper Spec and ClassDefinition
    *  - configuration modifications are propagated in isolation
+   * @param spec the spec defining the context
+   * @param operation the name of the delegated operation, used in the {@link IsolationCounters}
    * @param callable what to do
    * @return what callable returns
    * @throws IOException
    */
-  public <T> T callInContext(Spec spec, ContextualCall<T> callable) throws IOException {
+  public <T> T callInContext(Spec spec, String operation, ContextualCall<T> callable) throws IOException {
     Thread currentThread = Thread.currentThread();
     ClassLoader contextClassLoader = currentThread.getContextClassLoader();
     try {
       ClassDefinition inputFormatDefinition = lookup(classDefByName, spec.getClassDefinitionID());
       currentThread.setContextClassLoader(lookup(classLoaderByInputFormatName, spec.getClassDefinitionID()));
-      Configuration before = newConf(globalConf, spec, inputFormatDefinition);
-      CallContext context = new CallContext(this, spec, new Configuration(before));
+      // an immutable snapshot: the changes of concurrent calls do not affect this one
+      List<Map<String, String>> layers = layers(spec.getConf(), inputFormatDefinition);
+      CallContext context = new CallContext(this, spec, newLayeredConf(layers));
+      long t0 = System.nanoTime();
       T result = callable.call(context);
-      // detect changes in the conf and save them
-      for (Entry<String, String> e : context.localConf) {
-        String previous = before.getRaw(e.getKey());
-        if (previous == null || !previous.equals(e.getValue())) {
-          spec.getConf().put(e.getKey(), e.getValue());
-        }
-      }
-      setSpecs(globalConf, asList(spec));
+      recordCall(getCountersID(spec.getId()), operation, System.nanoTime() - t0);
+      propagateChanges(spec, layers, context.localConf);
       return result;
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
@@ -222,6 +360,98 @@ public class ContextManager {
     }
   }
 
+  /**
+   * Calls callable in the context of each of the specs.
+   * Specs are processed concurrently by up to {@link IsolatedConf#setSplitsParallelism(Configuration, int)} threads,
+   * each call getting its own context on its own thread.
+   * All the calls must complete within {@link IsolatedConf#setSplitsTimeout(Configuration, long)} if set.
+   * @param specs the specs defining the contexts
+   * @param callable the task to call for each spec. It will be called concurrently
+   * @return the results of the calls in the order of the specs
+   * @throws IOException if one of the calls failed or timed out
+   */
+  public <T> List<T> callInEachContext(Collection<Spec> specs, final ContextualCall<T> callable) throws IOException {
+    return callInEachContext(specs, DEFAULT_OPERATION, callable);
+  }
+
+  /**
+   * @param specs the specs defining the contexts
+   * @param operation the name of the delegated operation, used in the {@link IsolationCounters}
+   * @param callable the task to call for each spec. It will be called concurrently
+   * @return the results of the calls in the order of the specs
+   * @throws IOException if one of the calls failed or timed out
+   * @see #callInEachContext(Collection, ContextualCall)
+   */
+  public <T> List<T> callInEachContext(Collection<Spec> specs, final String operation, final ContextualCall<T> callable) throws IOException {
+    List<T> results = new ArrayList<T>();
+    int parallelism = Math.min(specs.size(), splitsParallelismFromConf(globalConf));
+    long timeout = splitsTimeoutFromConf(globalConf);
+    if (parallelism <= 1 && timeout <= 0) {
+      for (Spec spec : specs) {
+        results.add(callInContext(spec, operation, callable));
+      }
+      return results;
+    }
+    // one deadline for all the calls, a sequential planning with a timeout runs in one background thread
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ContextThreadFactory());
+    try {
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for (final Spec spec : specs) {
+        futures.add(executor.submit(new Callable<T>() {
+          @Override
+          public T call() throws IOException {
+            return callInContext(spec, operation, callable);
+          }
+        }));
+      }
+      Iterator<Spec> specIterator = specs.iterator();
+      for (Future<T> future : futures) {
+        results.add(waitFor(future, specIterator.next(), timeout, deadline));
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @param timeout the timeout of all the calls in ms, 0 for none
+   * @param deadline the end of the timeout in System.nanoTime()
+   */
+  private static <T> T waitFor(Future<T> future, Spec spec, long timeout, long deadline) throws IOException {
+    try {
+      return timeout > 0 ? future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) : future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("thread interrupted", e);
+    } catch (TimeoutException e) {
+      throw new IOException("call in the context of spec " + spec.getId() + " did not complete within the " + timeout + "ms of all the specs", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IOException("call in the context of spec " + spec.getId() + " failed", cause);
+    }
+  }
+
+  private static final class ContextThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "isolated-context-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
   private <T> T newInstanceFromSpec(Configuration contextualConf, Spec spec, Class<T> parentClass) {
     try {
       ClassDefinition classdef = lookup(classDefByName, spec.getClassDefinitionID());
@@ -0,0 +1,60 @@
+package com.twitter.isolated.hadoop;
+
+/**
+ * The cheap context of record level calls (next record, current key and value, progress, close) to a delegate:
+ * unlike {@link ContextManager#callInContext} nothing is allocated or copied per call.
+ * The class loader of the spec is looked up once per reader and a call only sets it as the context class loader
+ * of the current thread and restores the previous one after. When the thread already uses it
+ * (nested readers, prefetching thread) the context class loader is left untouched.
+ * The previous one is restored after every call, not once per thread, as the task code running between two records
+ * (the map function) must keep the class loader of the task. The readers make it one switch per record instead.
+ * <pre>
+ * ClassLoader previous = contextSwitch.enter();
+ * try {
+ *   return delegate.nextKeyValue();
+ * } finally {
+ *   contextSwitch.exit(previous);
+ * }
+ * </pre>
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class ContextSwitch {
+
+  private final ClassLoader classLoader;
+
+  /**
+   * @param classLoader the class loader of the spec, see {@link ContextManager#getClassLoader(String)}
+   */
+  public ContextSwitch(ClassLoader classLoader) {
+    this.classLoader = classLoader;
+  }
+
+  /**
+   * sets the class loader of the spec as the context class loader of the current thread
+   * @return the context class loader to restore with {@link #exit(ClassLoader)}
+   */
+  public ClassLoader enter() {
+    Thread thread = Thread.currentThread();
+    ClassLoader previous = thread.getContextClassLoader();
+    if (previous != classLoader) {
+      thread.setContextClassLoader(classLoader);
+    }
+    return previous;
+  }
+
+  /**
+   * restores the context class loader of the current thread
+   * @param previous the value returned by {@link #enter()}
+   */
+  public void exit(ClassLoader previous) {
+    if (previous != classLoader) {
+      Thread.currentThread().setContextClassLoader(previous);
+    }
+  }
+
+  public ClassLoader getClassLoader() {
+    return classLoader;
+  }
+}
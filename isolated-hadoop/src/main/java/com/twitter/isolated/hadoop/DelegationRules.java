@@ -0,0 +1,113 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whether a class is looked up in the parent class loader or in the library first.
+ * Rules are class name prefixes stored in a trie, the longest matching prefix wins.
+ * Classes that match no rule are looked up in the library first.
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class DelegationRules {
+
+  /**
+   * the JDK, Hadoop, logging and this framework must be shared with the parent.
+   * Hadoop is limited to the packages of hadoop-core so that libraries can bring their own Hive, HBase, ... (org.apache.hadoop.*)
+   */
+  static final List<String> DEFAULT_PARENT_FIRST = unmodifiableList(asList(
+      "java.",
+      "javax.",
+      "sun.",
+      "com.sun.",
+      "org.w3c.",
+      "org.xml.",
+      "org.ietf.",
+      "org.omg.",
+      "org.apache.hadoop.HadoopVersionAnnotation",
+      "org.apache.hadoop.classification.",
+      "org.apache.hadoop.conf.",
+      "org.apache.hadoop.filecache.",
+      "org.apache.hadoop.fs.",
+      "org.apache.hadoop.hdfs.",
+      "org.apache.hadoop.http.",
+      "org.apache.hadoop.io.",
+      "org.apache.hadoop.ipc.",
+      "org.apache.hadoop.jmx.",
+      "org.apache.hadoop.log.",
+      "org.apache.hadoop.mapred.",
+      "org.apache.hadoop.mapreduce.",
+      "org.apache.hadoop.metrics.",
+      "org.apache.hadoop.metrics2.",
+      "org.apache.hadoop.net.",
+      "org.apache.hadoop.record.",
+      "org.apache.hadoop.security.",
+      "org.apache.hadoop.util.",
+      "org.apache.commons.logging.",
+      "org.apache.log4j.",
+      "org.slf4j.",
+      "com.twitter.isolated."
+      ));
+
+  private static final class Node {
+    private final Map<Character, Node> children = new HashMap<Character, Node>(4);
+    private Boolean parentFirst;
+  }
+
+  private final Node root = new Node();
+
+  /**
+   * @param library the library of the class loader
+   * @return the defaults overridden by the rules of the library
+   */
+  static DelegationRules forLibrary(Library library) {
+    DelegationRules rules = new DelegationRules();
+    rules.add(DEFAULT_PARENT_FIRST, true);
+    rules.add(library.getParentFirst(), true);
+    // child first wins when the same prefix is in both lists
+    rules.add(library.getChildFirst(), false);
+    return rules;
+  }
+
+  private void add(List<String> prefixes, boolean parentFirst) {
+    for (String prefix : prefixes) {
+      Node node = root;
+      for (int i = 0; i < prefix.length(); i++) {
+        Character c = prefix.charAt(i);
+        Node child = node.children.get(c);
+        if (child == null) {
+          child = new Node();
+          node.children.put(c, child);
+        }
+        node = child;
+      }
+      node.parentFirst = parentFirst;
+    }
+  }
+
+  /**
+   * @param className the name of the class to load
+   * @return true if the parent class loader should be searched first
+   */
+  boolean isParentFirst(String className) {
+    boolean parentFirst = false;
+    Node node = root;
+    for (int i = 0; node != null; i++) {
+      if (node.parentFirst != null) {
+        parentFirst = node.parentFirst;
+      }
+      if (i == className.length()) {
+        break;
+      }
+      node = node.children.get(className.charAt(i));
+    }
+    return parentFirst;
+  }
+
+}
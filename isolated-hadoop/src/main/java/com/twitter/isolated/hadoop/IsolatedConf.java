@@ -3,8 +3,11 @@ package com.twitter.isolated.hadoop;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -14,11 +17,16 @@ import java.util.TreeSet;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+
+import com.twitter.isolated.hadoop.AsyncRecordWriter.Handoff;
 
 public class IsolatedConf {
 
   private static final String KEY_PREFIX = "com.twitter.isolated";
   private static final String PATHS = "paths";
+  private static final String PARENTFIRST = "parentfirst";
+  private static final String CHILDFIRST = "childfirst";
   private static final String NAME = "name";
   private static final String LIBRARY = "library";
   private static final String CLASS = "class";
@@ -26,6 +34,41 @@ public class IsolatedConf {
   private static final String SPEC = "spec";
   private static final String INPUTSPECS = "inputspecs";
   private static final String OUTPUTSPEC = "outputspec";
+  private static final String OUTPUTSPECS = "outputspecs";
+  private static final String OUTPUTROUTER = "outputrouter";
+  private static final String JARCACHE = "jarcache";
+  private static final String DIR = "dir";
+  private static final String SIZE = "size";
+  private static final String SPLITS = "splits";
+  private static final String PARALLELISM = "parallelism";
+  private static final String TIMEOUT = "timeout";
+  private static final String COUNTERS = "counters";
+  private static final String RECORDS = "records";
+  private static final String SAMPLING = "sampling";
+  private static final String SPECS = "specs";
+  private static final String COMBINE = "combine";
+  private static final String MAXSIZE = "maxsize";
+  private static final String PROPORTIONAL = "proportional";
+  private static final String CLASSES = "classes";
+  private static final String COMPRESS = "compress";
+  private static final String STORE = "store";
+  private static final String PREFETCH = "prefetch";
+  private static final String DEPTH = "depth";
+  private static final String BUDGET = "budget";
+  private static final String ASYNCWRITER = "asyncwriter";
+  private static final String HANDOFF = "handoff";
+  private static final String MIN = "min";
+  private static final String MAX = "max";
+
+  private static final long DEFAULT_JARCACHE_SIZE = 2L * 1024 * 1024 * 1024;
+  private static final int DEFAULT_SPLITS_PARALLELISM = 8;
+  private static final int DEFAULT_RECORD_SAMPLING = 100;
+  private static final int DEFAULT_SPEC_COUNTERS = 5;
+  private static final long DEFAULT_COMBINE_SIZE = 128L * 1024 * 1024;
+  private static final int DEFAULT_PREFETCH_DEPTH = 1024;
+  private static final long DEFAULT_PREFETCH_BUDGET = 16L * 1024 * 1024;
+  private static final int DEFAULT_ASYNCWRITER_DEPTH = 1024;
+  private static final long DEFAULT_ASYNCWRITER_BUDGET = 16L * 1024 * 1024;
 
   /**
    * saves the conf in m in the provided conf by prefixing all the keys with the provided key.
@@ -47,34 +90,144 @@ public class IsolatedConf {
     return sb.toString();
   }
 
-  private static Collection<String> getEntries(Configuration conf, String key) {
-    Set<String> result = new TreeSet<String>();
-    for (String property : getEntriesFull(conf, key)) {
-      int nextDot = property.indexOf('.');
-      if (nextDot != -1) {
-        result.add(property.substring(0, nextDot));
+  /**
+   * An index of the com.twitter.isolated.* properties of a conf.
+   * It is built in a single pass over the conf and then answers prefix lookups
+   * without scanning the conf again.
+   * Keys of entity confs are interned as the same keys tend to be repeated across specs.
+   *
+   * @author Julien Le Dem
+   *
+   */
+  static final class Index {
+
+    private final TreeMap<String, String> entries;
+    private final Map<String, String> interned = new HashMap<String, String>();
+
+    Index(Configuration conf) {
+      this(isolatedEntries(conf));
+    }
+
+    /**
+     * @param entries the isolated entries as returned by {@link IsolatedConf#isolatedEntries(Configuration)}
+     */
+    Index(Map<String, String> entries) {
+      this.entries = new TreeMap<String, String>(entries);
+    }
+
+    String get(String key) {
+      return entries.get(key);
+    }
+
+    /**
+     * same semantics as {@link Configuration#getStrings(String)}
+     */
+    String[] getStrings(String key) {
+      String value = get(key);
+      return value == null ? null : StringUtils.getStrings(value);
+    }
+
+    /**
+     * @param prefix the prefix of the keys
+     * @return the entries starting with prefix, prefix removed
+     */
+    Map<String, String> withPrefix(String prefix) {
+      Map<String, String> result = new TreeMap<String, String>();
+      for (Entry<String, String> e : entries.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+        result.put(intern(e.getKey().substring(prefix.length())), e.getValue());
       }
+      return result;
     }
-    return result;
+
+    /**
+     * @param key the key of the entity type
+     * @return the ids of the entities of that type, sorted
+     */
+    Collection<String> ids(String key) {
+      Set<String> result = new TreeSet<String>();
+      String prefix = key + ".";
+      for (String property : entries.subMap(prefix, prefix + Character.MAX_VALUE).keySet()) {
+        int nextDot = property.indexOf('.', prefix.length());
+        if (nextDot != -1) {
+          result.add(property.substring(prefix.length(), nextDot));
+        }
+      }
+      return result;
+    }
+
+    String intern(String value) {
+      if (value == null) {
+        return null;
+      }
+      String existing = interned.get(value);
+      if (existing == null) {
+        interned.put(value, value);
+        existing = value;
+      }
+      return existing;
+    }
+
   }
 
-  private static Collection<String> getEntriesFull(Configuration conf, String key) {
-    Set<String> result = new TreeSet<String>();
-    String prefix = key + ".";
+  /**
+   * collects all the com.twitter.isolated.* properties of the conf in a single pass.
+   * values are returned the way {@link Configuration#get(String)} would return them
+   * @param conf the conf to scan
+   * @return the isolated properties by key
+   */
+  static Map<String, String> isolatedEntries(Configuration conf) {
+    Map<String, String> result = new HashMap<String, String>();
+    String prefix = KEY_PREFIX + ".";
     for (Entry<String, String> e : conf) {
       String property = e.getKey();
       if (property.startsWith(prefix)) {
-        result.add(property.substring(prefix.length()));
+        String value = e.getValue();
+        if (value != null && value.indexOf("${") != -1) {
+          // variable substitution may depend on other properties
+          value = conf.get(property);
+        }
+        result.put(property, value);
       }
     }
     return result;
   }
 
+  /**
+   * the entries that define the contexts, the key of the {@link ContextCache}:
+   * without the confs of the specs (the calls change them) and the splits.* properties (planning sets them)
+   * @param entries the isolated entries as returned by {@link IsolatedConf#isolatedEntries(Configuration)}
+   * @return the definitional entries
+   */
+  static Map<String, String> definitionEntries(Map<String, String> entries) {
+    Map<String, String> result = new HashMap<String, String>();
+    String specPrefix = key(SPEC) + ".";
+    String splitsPrefix = key(SPLITS) + ".";
+    String confInfix = "." + CONF + ".";
+    for (Entry<String, String> e : entries.entrySet()) {
+      String property = e.getKey();
+      if (property.startsWith(splitsPrefix)) {
+        continue;
+      }
+      if (property.startsWith(specPrefix)) {
+        int afterID = property.indexOf('.', specPrefix.length());
+        if (afterID != -1 && property.startsWith(confInfix, afterID)) {
+          continue;
+        }
+      }
+      result.put(property, e.getValue());
+    }
+    return result;
+  }
+
   static List<Spec> specsFromConf(Configuration conf) {
+    return specsFromConf(new Index(conf));
+  }
+
+  static List<Spec> specsFromConf(Index index) {
     List<Spec> result = new ArrayList<Spec>();
-    for (String spec : getEntries(conf, key(SPEC))) {
-      String ifName = conf.get(key(SPEC, spec, CLASS));
-      Map<String, String> specConf = getConf(conf, key(SPEC, spec));
+    for (String spec : index.ids(key(SPEC))) {
+      String ifName = index.intern(index.get(key(SPEC, spec, CLASS)));
+      Map<String, String> specConf = getConf(index, key(SPEC, spec));
       result.add(new Spec(spec, ifName, specConf));
     }
     return result;
@@ -88,16 +241,53 @@ public class IsolatedConf {
     return asList(strings);
   }
 
+  static List<String> inputSpecsFromConf(Index index) {
+    String[] strings = index.getStrings(key(INPUTSPECS));
+    if (strings == null) {
+      return emptyList();
+    }
+    return asList(strings);
+  }
+
   static String outputSpecFromConf(Configuration conf) {
     return conf.get(key(OUTPUTSPEC));
   }
 
+  static String outputSpecFromConf(Index index) {
+    return index.get(key(OUTPUTSPEC));
+  }
+
+  /**
+   * @param index the com.twitter.isolated.* properties of the conf
+   * @return the output specs or the output spec if only one is set
+   */
+  static List<String> outputSpecsFromConf(Index index) {
+    String[] strings = index.getStrings(key(OUTPUTSPECS));
+    if (strings != null) {
+      return asList(strings);
+    }
+    String outputSpec = outputSpecFromConf(index);
+    if (outputSpec == null) {
+      return emptyList();
+    }
+    return asList(outputSpec);
+  }
+
+  @SuppressWarnings("rawtypes")
+  static Class<? extends OutputRouter> outputRouterFromConf(Configuration conf) {
+    return conf.getClass(key(OUTPUTROUTER), OutputRouter.All.class, OutputRouter.class);
+  }
+
   static List<ClassDefinition> classDefinitionsFromConf(Configuration conf) {
+    return classDefinitionsFromConf(new Index(conf));
+  }
+
+  static List<ClassDefinition> classDefinitionsFromConf(Index index) {
     List<ClassDefinition> result = new ArrayList<ClassDefinition>();
-    for (String inputformat : getEntries(conf, key(CLASS))) {
-      String className = conf.get(key(CLASS, inputformat, NAME));
-      String lib = conf.get(key(CLASS, inputformat, LIBRARY));
-      Map<String, String> ifConf = getConf(conf, key(CLASS, inputformat));
+    for (String inputformat : index.ids(key(CLASS))) {
+      String className = index.get(key(CLASS, inputformat, NAME));
+      String lib = index.intern(index.get(key(CLASS, inputformat, LIBRARY)));
+      Map<String, String> ifConf = getConf(index, key(CLASS, inputformat));
       result.add(new ClassDefinition(inputformat, lib, className, ifConf));
     }
     return result;
@@ -107,9 +297,14 @@ public class IsolatedConf {
     if (conf == null) {
       throw new NullPointerException("conf");
     }
+    return librariesFromConf(new Index(conf));
+  }
+
+  static List<Library> librariesFromConf(Index index) {
     List<Library> result = new ArrayList<Library>();
-    for (String lib : getEntries(conf, key(LIBRARY))) {
-      String[] paths = conf.getStrings(key(LIBRARY, lib, PATHS), "");
+    for (String lib : index.ids(key(LIBRARY))) {
+      String pathsKey = key(LIBRARY, lib, PATHS);
+      String[] paths = index.get(pathsKey) == null ? new String[] { "" } : index.getStrings(pathsKey);
       if (paths == null || paths.length == 0) {
         throw new IllegalArgumentException("the library " + lib + " has not jars defined");
       }
@@ -119,7 +314,22 @@ public class IsolatedConf {
           jars.add(new Path(p));
         }
       }
-      result.add(new Library(lib, jars));
+      result.add(new Library(lib, jars, prefixes(index, key(LIBRARY, lib, PARENTFIRST)), prefixes(index, key(LIBRARY, lib, CHILDFIRST))));
+    }
+    return result;
+  }
+
+  private static List<String> prefixes(Index index, String key) {
+    String[] prefixes = index.getStrings(key);
+    if (prefixes == null) {
+      return emptyList();
+    }
+    List<String> result = new ArrayList<String>(prefixes.length);
+    for (String prefix : prefixes) {
+      String trimmed = prefix.trim();
+      if (trimmed.length() > 0) {
+        result.add(trimmed);
+      }
     }
     return result;
   }
@@ -133,6 +343,12 @@ public class IsolatedConf {
 
       }
       conf.setStrings(key(LIBRARY, library.getID(), PATHS), strings);
+      if (!library.getParentFirst().isEmpty()) {
+        conf.setStrings(key(LIBRARY, library.getID(), PARENTFIRST), library.getParentFirst().toArray(new String[0]));
+      }
+      if (!library.getChildFirst().isEmpty()) {
+        conf.setStrings(key(LIBRARY, library.getID(), CHILDFIRST), library.getChildFirst().toArray(new String[0]));
+      }
     }
   }
 
@@ -153,6 +369,29 @@ public class IsolatedConf {
     }
   }
 
+  /**
+   * saves modifications of the conf of a spec
+   * @param conf where to save
+   * @param specID the id of the modified spec
+   * @param sets the keys set in the spec conf
+   * @param unsets the keys removed from the spec conf
+   */
+  static void updateSpecConf(Configuration conf, String specID, Map<String, String> sets, Collection<String> unsets) {
+    setConf(conf, key(SPEC, specID), sets);
+    for (String unset : unsets) {
+      conf.unset(specConfKey(specID, unset));
+    }
+  }
+
+  /**
+   * @param specID the id of a spec
+   * @param property a property of its conf
+   * @return the property where it is saved in the global conf
+   */
+  static String specConfKey(String specID, String property) {
+    return key(SPEC, specID, CONF, property);
+  }
+
   public static void setInputSpecs(Configuration conf, String... specIds) {
     conf.setStrings(key(INPUTSPECS), specIds);
   }
@@ -161,12 +400,311 @@ public class IsolatedConf {
     conf.set(key(OUTPUTSPEC), specID);
   }
 
-  private static Map<String, String> getConf(Configuration conf, String baseKey) {
-    Map<String, String> result = new TreeMap<String, String>();
-    for (String key : getEntriesFull(conf, baseKey + "." + CONF)) {
-      result.put(key, conf.get(baseKey + "." + CONF + "." + key));
+  /**
+   * writes to several outputs in the same pass, see {@link OutputRouter}
+   * @param conf the conf to modify
+   * @param specIds the output specs
+   */
+  public static void setOutputSpecs(Configuration conf, String... specIds) {
+    conf.setStrings(key(OUTPUTSPECS), specIds);
+  }
+
+  /**
+   * @param conf the conf to modify
+   * @param router chooses the outputs of each record when there are several output specs. All of them by default
+   */
+  @SuppressWarnings("rawtypes")
+  public static void setOutputRouter(Configuration conf, Class<? extends OutputRouter> router) {
+    conf.setClass(key(OUTPUTROUTER), router, OutputRouter.class);
+  }
+
+  /**
+   * @param conf the conf to read from
+   * @return the node local directory where library jars are cached, one per user by default
+   */
+  static String jarCacheDirFromConf(Configuration conf) {
+    return conf.get(key(JARCACHE, DIR), new File(System.getProperty("java.io.tmpdir"), "isolated-jar-cache-" + System.getProperty("user.name")).getPath());
+  }
+
+  /**
+   * @param conf the conf to modify
+   * @param dir the node local directory where library jars are cached. It must belong to the user running the tasks
+   * and not be writable by other users, it is created with permission 700
+   */
+  public static void setJarCacheDir(Configuration conf, String dir) {
+    conf.set(key(JARCACHE, DIR), dir);
+  }
+
+  /**
+   * @param conf the conf to read from
+   * @return the disk budget in bytes of the jar cache
+   */
+  static long jarCacheSizeFromConf(Configuration conf) {
+    return conf.getLong(key(JARCACHE, SIZE), DEFAULT_JARCACHE_SIZE);
+  }
+
+  public static void setJarCacheSize(Configuration conf, long bytes) {
+    conf.setLong(key(JARCACHE, SIZE), bytes);
+  }
+
+  /**
+   * @param conf the conf to read from
+   * @return how many input specs can compute their splits concurrently
+   */
+  static int splitsParallelismFromConf(Configuration conf) {
+    return conf.getInt(key(SPLITS, PARALLELISM), DEFAULT_SPLITS_PARALLELISM);
+  }
+
+  public static void setSplitsParallelism(Configuration conf, int parallelism) {
+    conf.setInt(key(SPLITS, PARALLELISM), parallelism);
+  }
+
+  /**
+   * @param conf the conf to read from
+   * @return how long to wait for the splits of all the input specs in ms. 0 means no limit
+   */
+  static long splitsTimeoutFromConf(Configuration conf) {
+    return conf.getLong(key(SPLITS, TIMEOUT), 0);
+  }
+
+  public static void setSplitsTimeout(Configuration conf, long timeoutMs) {
+    conf.setLong(key(SPLITS, TIMEOUT), timeoutMs);
+  }
+
+  /**
+   * @param conf the conf
+   * @return the delegate split classes referred to by index in the serialized splits, null if not set
+   */
+  static String[] splitClassesFromConf(Configuration conf) {
+    return conf.getStrings(key(SPLITS, CLASSES));
+  }
+
+  /**
+   * set at planning time, before the splits are serialized
+   * @param conf the job conf
+   * @param classNames the delegate split classes
+   */
+  static void setSplitClasses(Configuration conf, Collection<String> classNames) {
+    conf.setStrings(key(SPLITS, CLASSES), classNames.toArray(new String[classNames.size()]));
+  }
+
+  /**
+   * @param conf the conf
+   * @return whether the serialized delegate splits are compressed
+   */
+  static boolean splitsCompressFromConf(Configuration conf) {
+    return conf.getBoolean(key(SPLITS, COMPRESS), false);
+  }
+
+  public static void setSplitsCompress(Configuration conf, boolean compress) {
+    conf.setBoolean(key(SPLITS, COMPRESS), compress);
+  }
+
+  /**
+   * @param conf the conf
+   * @return whether the delegate splits are written to a side file in the job directory instead of inline
+   */
+  static boolean splitsStoreFromConf(Configuration conf) {
+    return conf.getBoolean(key(SPLITS, STORE), false);
+  }
+
+  public static void setSplitsStore(Configuration conf, boolean store) {
+    conf.setBoolean(key(SPLITS, STORE), store);
+  }
+
+  /**
+   * @param conf the conf
+   * @return whether the numSplits hint of the mapred API is divided across the specs in proportion of their input size
+   */
+  static boolean splitsProportionalFromConf(Configuration conf) {
+    return conf.getBoolean(key(SPLITS, PROPORTIONAL), true);
+  }
+
+  public static void setSplitsProportional(Configuration conf, boolean proportional) {
+    conf.setBoolean(key(SPLITS, PROPORTIONAL), proportional);
+  }
+
+  /**
+   * @param conf the conf
+   * @param specID the id of the spec
+   * @return the minimum numSplits hint given to the spec
+   */
+  static int specMinSplitsFromConf(Configuration conf, String specID) {
+    return conf.getInt(key(SPEC, specID, SPLITS, MIN), 1);
+  }
+
+  /**
+   * @param conf the conf
+   * @param specID the id of the spec
+   * @return the maximum numSplits hint given to the spec
+   */
+  static int specMaxSplitsFromConf(Configuration conf, String specID) {
+    return conf.getInt(key(SPEC, specID, SPLITS, MAX), Integer.MAX_VALUE);
+  }
+
+  /**
+   * bounds the numSplits hint given to a spec by the mapred API
+   * @param conf where to save
+   * @param specID the id of the spec
+   * @param min the minimum hint
+   * @param max the maximum hint
+   */
+  public static void setSpecSplits(Configuration conf, String specID, int min, int max) {
+    conf.setInt(key(SPEC, specID, SPLITS, MIN), min);
+    conf.setInt(key(SPEC, specID, SPLITS, MAX), max);
+  }
+
+  /**
+   * @param conf the conf
+   * @return whether records read and written are counted per spec
+   */
+  static boolean recordCountersFromConf(Configuration conf) {
+    return conf.getBoolean(key(COUNTERS, RECORDS), true);
+  }
+
+  public static void setRecordCounters(Configuration conf, boolean enabled) {
+    conf.setBoolean(key(COUNTERS, RECORDS), enabled);
+  }
+
+  /**
+   * @param conf the conf
+   * @return one record out of this many is timed
+   */
+  static int recordSamplingFromConf(Configuration conf) {
+    return Math.max(1, conf.getInt(key(COUNTERS, SAMPLING), DEFAULT_RECORD_SAMPLING));
+  }
+
+  public static void setRecordSampling(Configuration conf, int sampling) {
+    conf.setInt(key(COUNTERS, SAMPLING), sampling);
+  }
+
+  /**
+   * @param conf the conf
+   * @return up to this many specs get their own counter group, beyond that the specs share one group
+   */
+  static int specCountersFromConf(Configuration conf) {
+    return conf.getInt(key(COUNTERS, SPECS), DEFAULT_SPEC_COUNTERS);
+  }
+
+  public static void setSpecCounters(Configuration conf, int maxSpecs) {
+    conf.setInt(key(COUNTERS, SPECS), maxSpecs);
+  }
+
+  /**
+   * @param conf the conf
+   * @return a combined split is complete once it reaches this size in bytes
+   */
+  static long combineSizeFromConf(Configuration conf) {
+    return conf.getLong(key(COMBINE, SIZE), DEFAULT_COMBINE_SIZE);
+  }
+
+  public static void setCombineSize(Configuration conf, long bytes) {
+    conf.setLong(key(COMBINE, SIZE), bytes);
+  }
+
+  /**
+   * @param conf the conf
+   * @return combined splits do not grow beyond this size in bytes (unless a single split is bigger), defaults to twice the combine size
+   */
+  static long combineMaxSizeFromConf(Configuration conf) {
+    return Math.max(combineSizeFromConf(conf), conf.getLong(key(COMBINE, MAXSIZE), 2 * combineSizeFromConf(conf)));
+  }
+
+  public static void setCombineMaxSize(Configuration conf, long bytes) {
+    conf.setLong(key(COMBINE, MAXSIZE), bytes);
+  }
+
+  /**
+   * @param conf the conf
+   * @return whether the readers read their records ahead in a background thread
+   */
+  static boolean prefetchFromConf(Configuration conf) {
+    return conf.getBoolean(key(PREFETCH), false);
+  }
+
+  public static void setPrefetch(Configuration conf, boolean prefetch) {
+    conf.setBoolean(key(PREFETCH), prefetch);
+  }
+
+  /**
+   * @param conf the conf
+   * @return the max number of records read ahead by a reader
+   */
+  static int prefetchDepthFromConf(Configuration conf) {
+    return conf.getInt(key(PREFETCH, DEPTH), DEFAULT_PREFETCH_DEPTH);
+  }
+
+  public static void setPrefetchDepth(Configuration conf, int records) {
+    conf.setInt(key(PREFETCH, DEPTH), records);
+  }
+
+  /**
+   * @param conf the conf
+   * @return the max size in bytes of the serialized records read ahead by a reader
+   */
+  static long prefetchBudgetFromConf(Configuration conf) {
+    return conf.getLong(key(PREFETCH, BUDGET), DEFAULT_PREFETCH_BUDGET);
+  }
+
+  public static void setPrefetchBudget(Configuration conf, long bytes) {
+    conf.setLong(key(PREFETCH, BUDGET), bytes);
+  }
+
+  /**
+   * @param conf the conf
+   * @return whether the writers write their records in a background thread
+   */
+  static boolean asyncWriterFromConf(Configuration conf) {
+    return conf.getBoolean(key(ASYNCWRITER), false);
+  }
+
+  public static void setAsyncWriter(Configuration conf, boolean async) {
+    conf.setBoolean(key(ASYNCWRITER), async);
+  }
+
+  /**
+   * @param conf the conf
+   * @return the max number of records waiting to be written
+   */
+  static int asyncWriterDepthFromConf(Configuration conf) {
+    return conf.getInt(key(ASYNCWRITER, DEPTH), DEFAULT_ASYNCWRITER_DEPTH);
+  }
+
+  public static void setAsyncWriterDepth(Configuration conf, int records) {
+    conf.setInt(key(ASYNCWRITER, DEPTH), records);
+  }
+
+  /**
+   * @param conf the conf
+   * @return the max size in bytes of the serialized records waiting to be written
+   */
+  static long asyncWriterBudgetFromConf(Configuration conf) {
+    return conf.getLong(key(ASYNCWRITER, BUDGET), DEFAULT_ASYNCWRITER_BUDGET);
+  }
+
+  public static void setAsyncWriterBudget(Configuration conf, long bytes) {
+    conf.setLong(key(ASYNCWRITER, BUDGET), bytes);
+  }
+
+  /**
+   * @param conf the conf
+   * @return how the records are handed to the background thread
+   */
+  static Handoff asyncWriterHandoffFromConf(Configuration conf) {
+    String handoff = conf.get(key(ASYNCWRITER, HANDOFF), Handoff.RECYCLE.name());
+    try {
+      return Handoff.valueOf(handoff.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(key(ASYNCWRITER, HANDOFF) + " should be one of " + Arrays.toString(Handoff.values()) + ": " + handoff, e);
     }
-    return result;
+  }
+
+  public static void setAsyncWriterHandoff(Configuration conf, Handoff handoff) {
+    conf.set(key(ASYNCWRITER, HANDOFF), handoff.name());
+  }
+
+  private static Map<String, String> getConf(Index index, String baseKey) {
+    return index.withPrefix(baseKey + "." + CONF + ".");
   }
 
 }
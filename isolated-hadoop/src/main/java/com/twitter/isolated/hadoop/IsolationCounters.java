@@ -0,0 +1,229 @@
+package com.twitter.isolated.hadoop;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.Counters.CountersExceededException;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Per JVM counters measuring the cost of isolation: class loading and jar downloads per library,
+ * contextual calls per spec and operation, and the hits and misses of the caches.
+ * They are cumulative for the JVM and published to the Hadoop counters of a task as deltas
+ * since the previous publication.
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class IsolationCounters {
+
+  private static final Log LOG = LogFactory.getLog(IsolationCounters.class);
+
+  static final String LIBRARY_GROUP = "Isolated library ";
+  static final String SPEC_GROUP = "Isolated spec ";
+  static final String CACHE_GROUP = "Isolated caches";
+  // the group id of the specs when there are too many to have one group each
+  static final String ALL_SPECS = "*";
+
+  static final String CLASSES_LOADED = "classes loaded";
+  static final String CLASSES_DEFINED = "classes defined";
+  static final String CLASS_LOOKUP_NS = "class lookup ns";
+  static final String JAR_BYTES_DOWNLOADED = "jar bytes downloaded";
+  static final String JAR_DOWNLOAD_MS = "jar download ms";
+  static final String CONTEXT_DEFINITION_MS = "context definition ms";
+  static final String CALLS = " calls";
+  static final String TOTAL_MS = " total ms";
+  // call times are summed in ns so that calls shorter than a ms add up, they are published in ms
+  private static final String TOTAL_NS = " total ns";
+
+  private static final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> counters =
+      new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+
+  // what was last published: counters are incremented by the difference
+  private static final Map<String, Map<String, Long>> published = new HashMap<String, Map<String, Long>>();
+
+  private static final AtomicBoolean limitReached = new AtomicBoolean();
+
+  private IsolationCounters() {
+  }
+
+  static AtomicLong counter(String group, String name) {
+    ConcurrentMap<String, AtomicLong> groupCounters = counters.get(group);
+    if (groupCounters == null) {
+      ConcurrentMap<String, AtomicLong> newGroup = new ConcurrentHashMap<String, AtomicLong>();
+      groupCounters = counters.putIfAbsent(group, newGroup);
+      if (groupCounters == null) {
+        groupCounters = newGroup;
+      }
+    }
+    AtomicLong counter = groupCounters.get(name);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = groupCounters.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    return counter;
+  }
+
+  static void increment(String group, String name, long value) {
+    counter(group, name).addAndGet(value);
+  }
+
+  static void incrementLibrary(String libraryID, String name, long value) {
+    increment(LIBRARY_GROUP + libraryID, name, value);
+  }
+
+  /**
+   * records a contextual call
+   * @param specID the spec the call was made in
+   * @param operation the delegated operation (getSplits, createRecordReader, ...)
+   * @param nanos how long the call took
+   */
+  static void recordCall(String specID, String operation, long nanos) {
+    String group = SPEC_GROUP + specID;
+    increment(group, operation + CALLS, 1);
+    increment(group, operation + TOTAL_NS, nanos);
+  }
+
+  /**
+   * @param group the counter group
+   * @param name the counter name
+   * @return the current value for this JVM
+   */
+  public static long get(String group, String name) {
+    Map<String, Long> values = snapshot().get(group);
+    Long value = values == null ? null : values.get(name);
+    return value == null ? 0 : value;
+  }
+
+  /**
+   * @return all the counters by group, including the stats of {@link ContextCache} and {@link JarCache}
+   */
+  public static Map<String, Map<String, Long>> snapshot() {
+    Map<String, Map<String, Long>> result = new TreeMap<String, Map<String, Long>>();
+    for (Entry<String, ConcurrentMap<String, AtomicLong>> group : counters.entrySet()) {
+      Map<String, Long> values = new TreeMap<String, Long>();
+      for (Entry<String, AtomicLong> counter : group.getValue().entrySet()) {
+        String name = counter.getKey();
+        if (name.endsWith(TOTAL_NS)) {
+          // the deltas of the cumulative value in ms add up to the total
+          values.put(name.substring(0, name.length() - TOTAL_NS.length()) + TOTAL_MS, counter.getValue().get() / 1000000);
+        } else {
+          values.put(name, counter.getValue().get());
+        }
+      }
+      result.put(group.getKey(), values);
+    }
+    Map<String, Long> caches = result.get(CACHE_GROUP);
+    if (caches == null) {
+      caches = new TreeMap<String, Long>();
+      result.put(CACHE_GROUP, caches);
+    }
+    caches.put("context cache hits", ContextCache.getHitCount());
+    caches.put("context cache misses", ContextCache.getMissCount());
+    caches.put("jar cache hits", JarCache.getHitCount());
+    caches.put("jar cache misses", JarCache.getMissCount());
+    caches.put("jar cache bytes saved", JarCache.getBytesSaved());
+    caches.put("jar cache bytes downloaded", JarCache.getBytesDownloaded());
+    caches.put("conf keys propagated", ContextManager.getPropagatedKeyCount());
+    return result;
+  }
+
+  /**
+   * @return the increments of the counters since the last call
+   */
+  private static synchronized Map<String, Map<String, Long>> deltas() {
+    Map<String, Map<String, Long>> result = new TreeMap<String, Map<String, Long>>();
+    for (Entry<String, Map<String, Long>> group : snapshot().entrySet()) {
+      Map<String, Long> previousGroup = published.get(group.getKey());
+      if (previousGroup == null) {
+        previousGroup = new HashMap<String, Long>();
+        published.put(group.getKey(), previousGroup);
+      }
+      Map<String, Long> deltas = new TreeMap<String, Long>();
+      for (Entry<String, Long> counter : group.getValue().entrySet()) {
+        Long previous = previousGroup.put(counter.getKey(), counter.getValue());
+        // a counter going down was reset
+        long delta = counter.getValue() - (previous == null ? 0 : previous);
+        if (delta > 0) {
+          deltas.put(counter.getKey(), delta);
+        }
+      }
+      if (!deltas.isEmpty()) {
+        result.put(group.getKey(), deltas);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * publishes what changed since the last publication to the counters of the task
+   * @param reporter the reporter of the task
+   */
+  public static void publish(Reporter reporter) {
+    if (reporter == null || reporter == Reporter.NULL) {
+      return;
+    }
+    try {
+      for (Entry<String, Map<String, Long>> group : deltas().entrySet()) {
+        for (Entry<String, Long> counter : group.getValue().entrySet()) {
+          reporter.incrCounter(group.getKey(), counter.getKey(), counter.getValue());
+        }
+      }
+    } catch (CountersExceededException e) {
+      limitReached(e);
+    }
+  }
+
+  /**
+   * publishes what changed since the last publication to the counters of the task.
+   * Only contexts that provide counters (mappers and reducers) are used
+   * @param context the context of the task
+   */
+  public static void publish(TaskAttemptContext context) {
+    if (!(context instanceof TaskInputOutputContext)) {
+      return;
+    }
+    TaskInputOutputContext<?, ?, ?, ?> taskContext = (TaskInputOutputContext<?, ?, ?, ?>)context;
+    try {
+      for (Entry<String, Map<String, Long>> group : deltas().entrySet()) {
+        for (Entry<String, Long> counter : group.getValue().entrySet()) {
+          taskContext.getCounter(group.getKey(), counter.getKey()).increment(counter.getValue());
+        }
+      }
+    } catch (CountersExceededException e) {
+      limitReached(e);
+    }
+  }
+
+  /**
+   * the counters are best effort, they must not fail the task
+   */
+  private static void limitReached(CountersExceededException e) {
+    if (limitReached.compareAndSet(false, true)) {
+      LOG.warn("some isolation counters could not be published, see IsolatedConf.setSpecCounters(): " + e.getMessage());
+    }
+  }
+
+  /**
+   * logs the counters when there is no task to publish them to (planning on the client)
+   */
+  public static void log() {
+    if (LOG.isInfoEnabled()) {
+      LOG.info("isolation counters: " + snapshot());
+    }
+  }
+
+}
@@ -0,0 +1,525 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.jarCacheDirFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.jarCacheSizeFromConf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Node local cache of library jars shared by all the task JVMs of a user on a node.
+ * An entry is addressed by a digest of the path, length and modification time of the jar
+ * so that a new version of a jar is a new entry.
+ * The directory must belong to the user and not be writable by anybody else, it is created with permission 700.
+ * The MD5 of each jar is saved next to it when it is downloaded and checked the first time a JVM uses it.
+ * Concurrent JVMs coordinate through file locks and entries are published by atomic renames:
+ * a JVM holds a shared lock on the entries it uses until it exits (the class loaders open the jars lazily)
+ * and eviction skips them.
+ * Least recently used entries are evicted when the cache goes over its disk budget.
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class JarCache {
+
+  private static final Log LOG = LogFactory.getLog(JarCache.class);
+
+  private static final byte[] ZIP_FILE_HEADER = { 80, 75, 3, 4 };
+  private static final String JAR = ".jar";
+  private static final String MD5 = ".md5";
+  private static final String TMP = ".tmp";
+  private static final String LOCK = ".lock";
+  private static final long TMP_EXPIRATION_MS = 60 * 60 * 1000;
+  private static final FsPermission DIR_PERMISSION = new FsPermission((short)0700);
+  // the lock file of an entry has two regions: one for the download and one for its users
+  private static final long DOWNLOAD_REGION = 0;
+  private static final long USE_REGION = 1;
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong bytesSaved = new AtomicLong();
+  private static final AtomicLong bytesDownloaded = new AtomicLong();
+
+  // file locks are held by the JVM, threads of the same JVM need their own lock
+  private static final ConcurrentMap<String, Object> localLocks = new ConcurrentHashMap<String, Object>();
+  // the shared locks of this JVM by lock file, added and removed under the lock of the directory
+  private static final ConcurrentMap<File, FileLock> usedEntries = new ConcurrentHashMap<File, FileLock>();
+  // the entries this JVM checked
+  private static final Set<File> checkedJars = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  private static final Set<File> checkedDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+  private final File dir;
+  private final long maxSize;
+
+  JarCache(File dir, long maxSize) {
+    this.dir = dir.getAbsoluteFile();
+    this.maxSize = maxSize;
+  }
+
+  static JarCache fromConf(Configuration conf) {
+    return new JarCache(new File(jarCacheDirFromConf(conf)), jarCacheSizeFromConf(conf));
+  }
+
+  /**
+   * @param fs the file system of the jar
+   * @param status the status of the jar
+   * @return a local copy of the jar
+   * @throws IOException if the jar could not be copied locally
+   */
+  File get(FileSystem fs, FileStatus status) throws IOException {
+    return get(fs, status, null);
+  }
+
+  /**
+   * @param fs the file system of the jar
+   * @param status the status of the jar
+   * @param libraryID the library the jar belongs to, downloads are counted in its {@link IsolationCounters}
+   * @return a local copy of the jar
+   * @throws IOException if the jar could not be copied locally
+   */
+  File get(FileSystem fs, FileStatus status, String libraryID) throws IOException {
+    Path path = status.getPath();
+    if (!isUsable()) {
+      LOG.warn("can not use jar cache directory " + dir + ", " + path + " will not be cached");
+      return copyToTemp(fs, status, libraryID);
+    }
+    String key = key(status);
+    File jar = new File(dir, key + JAR);
+    File md5 = new File(dir, key + MD5);
+    synchronized (localLock(key)) {
+      FileLock use = lockForUse(new File(dir, key + LOCK));
+      if (checkedJars.contains(jar) || isValid(jar, md5, status)) {
+        return hit(jar, status);
+      }
+      FileLock download = use.channel().lock(DOWNLOAD_REGION, 1, false);
+      try {
+        // another JVM may have downloaded it while we were waiting
+        if (isValid(jar, md5, status)) {
+          return hit(jar, status);
+        }
+        File tmp = File.createTempFile(key, TMP, dir);
+        File tmpMD5 = File.createTempFile(key, TMP, dir);
+        try {
+          byte[] digest = copy(fs, status, tmp, libraryID);
+          FileOutputStream out = new FileOutputStream(tmpMD5);
+          try {
+            out.write(toHex(digest).getBytes("UTF-8"));
+          } finally {
+            out.close();
+          }
+          // the md5 first: a jar is never published without it
+          rename(tmpMD5, md5);
+          rename(tmp, jar);
+        } finally {
+          tmp.delete();
+          tmpMD5.delete();
+        }
+        checkedJars.add(jar);
+      } finally {
+        download.release();
+      }
+    }
+    misses.incrementAndGet();
+    evict(jar);
+    return jar;
+  }
+
+  private static void rename(File from, File to) throws IOException {
+    if (!from.renameTo(to)) {
+      // some platforms do not replace existing files
+      to.delete();
+      if (!from.renameTo(to)) {
+        throw new IOException("could not rename " + from + " to " + to);
+      }
+    }
+  }
+
+  private File hit(File jar, FileStatus status) {
+    // the modification time tracks the last access for LRU eviction
+    jar.setLastModified(System.currentTimeMillis());
+    hits.incrementAndGet();
+    bytesSaved.addAndGet(status.getLen());
+    return jar;
+  }
+
+  /**
+   * reads the jar to compare it to the md5 saved when it was downloaded
+   */
+  private boolean isValid(File jar, File md5, FileStatus status) throws IOException {
+    if (!jar.isFile() || jar.length() != status.getLen() || !md5.isFile()) {
+      return false;
+    }
+    String expected;
+    FileInputStream in = new FileInputStream(md5);
+    try {
+      byte[] bytes = new byte[(int)md5.length()];
+      IOUtils.readFully(in, bytes, 0, bytes.length);
+      expected = new String(bytes, "UTF-8");
+    } finally {
+      in.close();
+    }
+    MessageDigest digest = newMD5();
+    in = new FileInputStream(jar);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    if (!expected.equals(toHex(digest.digest()))) {
+      LOG.warn(jar + " does not match its md5, it will be downloaded again");
+      return false;
+    }
+    checkedJars.add(jar);
+    return true;
+  }
+
+  /**
+   * creates the directory if needed and checks that nobody else can modify it. Once per JVM
+   * @return true if the directory can be used
+   */
+  private boolean isUsable() throws IOException {
+    if (checkedDirs.contains(dir)) {
+      return true;
+    }
+    RawLocalFileSystem local = new RawLocalFileSystem();
+    local.initialize(URI.create("file:///"), new Configuration(false));
+    Path path = new Path(dir.toURI());
+    if (!dir.isDirectory() && !local.mkdirs(path, DIR_PERMISSION) && !dir.isDirectory()) {
+      LOG.warn("can not create " + dir);
+      return false;
+    }
+    FileStatus status = local.getFileStatus(path);
+    String user = System.getProperty("user.name");
+    if (!user.equals(status.getOwner())) {
+      LOG.warn(dir + " belongs to " + status.getOwner() + " instead of " + user);
+      return false;
+    }
+    FsPermission permission = status.getPermission();
+    if (permission.getGroupAction().implies(FsAction.WRITE) || permission.getOtherAction().implies(FsAction.WRITE)) {
+      LOG.warn(dir + " can be modified by other users: " + permission);
+      return false;
+    }
+    checkedDirs.add(dir);
+    return true;
+  }
+
+  private static Object localLock(String key) {
+    Object lock = new Object();
+    Object existing = localLocks.putIfAbsent(key, lock);
+    return existing == null ? lock : existing;
+  }
+
+  private static FileLock lock(File lockFile) throws IOException {
+    FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+    try {
+      return channel.lock();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static void release(FileLock lock) throws IOException {
+    try {
+      lock.release();
+    } finally {
+      lock.channel().close();
+    }
+  }
+
+  /**
+   * takes the shared lock of an entry, kept until the JVM exits.
+   * Under the lock of the directory so that eviction does not delete the lock file in between
+   * @return the shared lock of this JVM on the entry
+   */
+  private FileLock lockForUse(File lockFile) throws IOException {
+    FileLock use = usedEntries.get(lockFile);
+    if (use != null) {
+      return use;
+    }
+    synchronized (localLock(LOCK)) {
+      FileLock dirLock = lock(new File(dir, LOCK));
+      try {
+        use = usedEntries.get(lockFile);
+        if (use == null) {
+          FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+          try {
+            use = channel.lock(USE_REGION, 1, true);
+          } catch (IOException e) {
+            channel.close();
+            throw e;
+          }
+          usedEntries.put(lockFile, use);
+        }
+        return use;
+      } finally {
+        release(dirLock);
+      }
+    }
+  }
+
+  /**
+   * removes an entry if no JVM uses it.
+   * Closing a channel releases all the locks of the JVM on the file, entries used by this JVM are not even opened
+   * @return true if it was removed
+   */
+  private boolean remove(String key) throws IOException {
+    File lockFile = new File(dir, key + LOCK);
+    if (usedEntries.containsKey(lockFile)) {
+      return false;
+    }
+    FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+    try {
+      FileLock lock = channel.tryLock(USE_REGION, 1, false);
+      if (lock == null) {
+        return false;
+      }
+      try {
+        File jar = new File(dir, key + JAR);
+        if (jar.exists() && !jar.delete()) {
+          return false;
+        }
+        new File(dir, key + MD5).delete();
+        lockFile.delete();
+        return true;
+      } finally {
+        lock.release();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * releases the entries used by this JVM and forgets the checks as if it exited, for tests
+   */
+  static void clear() throws IOException {
+    synchronized (localLock(LOCK)) {
+      for (FileLock use : usedEntries.values()) {
+        release(use);
+      }
+      usedEntries.clear();
+      checkedJars.clear();
+      checkedDirs.clear();
+    }
+  }
+
+  private static String keyOf(File file, String suffix) {
+    String name = file.getName();
+    return name.substring(0, name.length() - suffix.length());
+  }
+
+  /**
+   * removes the least recently used entries that are not in use until the cache fits in its budget
+   * and the lock files left by entries that are gone
+   * @param justAdded the entry that must not be evicted
+   */
+  private void evict(File justAdded) throws IOException {
+    synchronized (localLock(LOCK)) {
+      FileLock dirLock = lock(new File(dir, LOCK));
+      try {
+        long now = System.currentTimeMillis();
+        File[] tmps = dir.listFiles(suffix(TMP));
+        if (tmps != null) {
+          for (File tmp : tmps) {
+            if (now - tmp.lastModified() > TMP_EXPIRATION_MS) {
+              // left over by a JVM that died while downloading
+              tmp.delete();
+            }
+          }
+        }
+        File[] jars = dir.listFiles(suffix(JAR));
+        if (jars == null) {
+          return;
+        }
+        long size = 0;
+        for (File jar : jars) {
+          size += jar.length();
+        }
+        if (size > maxSize) {
+          Arrays.sort(jars, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+              long m1 = f1.lastModified();
+              long m2 = f2.lastModified();
+              return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+          });
+          for (File jar : jars) {
+            if (size <= maxSize) {
+              break;
+            }
+            if (!jar.equals(justAdded)) {
+              long length = jar.length();
+              if (remove(keyOf(jar, JAR))) {
+                LOG.info("evicted " + jar + " from the jar cache");
+                size -= length;
+              }
+            }
+          }
+        }
+        File[] lockFiles = dir.listFiles(suffix(LOCK));
+        if (lockFiles != null) {
+          for (File lockFile : lockFiles) {
+            String key = keyOf(lockFile, LOCK);
+            // the lock file of the directory is named .lock
+            if (key.length() > 0 && !new File(dir, key + JAR).exists()) {
+              remove(key);
+            }
+          }
+        }
+      } finally {
+        release(dirLock);
+      }
+    }
+  }
+
+  private static FilenameFilter suffix(final String suffix) {
+    return new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(suffix);
+      }
+    };
+  }
+
+  /**
+   * fallback when the cache directory is not usable: a private copy for this JVM
+   */
+  private static File copyToTemp(FileSystem fs, FileStatus status, String libraryID) throws IOException {
+    File tmp = File.createTempFile(status.getPath().getName(), JAR);
+    tmp.deleteOnExit();
+    copy(fs, status, tmp, libraryID);
+    misses.incrementAndGet();
+    return tmp;
+  }
+
+  /**
+   * @return the md5 of the jar
+   */
+  private static byte[] copy(FileSystem fs, FileStatus status, File to, String libraryID) throws IOException {
+    long t0 = System.nanoTime();
+    Path path = status.getPath();
+    MessageDigest digest = newMD5();
+    FSDataInputStream s = fs.open(path);
+    FileOutputStream out = new FileOutputStream(to);
+    OutputStream fso = new DigestOutputStream(out, digest);
+    try {
+      byte[] header = new byte[ZIP_FILE_HEADER.length];
+      s.readFully(header);
+      if (!Arrays.equals(ZIP_FILE_HEADER, header)) {
+        throw new IOException("path " + path + " is not a valid jar");
+      }
+      fso.write(header);
+      IOUtils.copyBytes(s, fso, 64 * 1024, false);
+      fso.flush();
+      out.getFD().sync();
+    } finally {
+      IOUtils.closeStream(fso);
+      IOUtils.closeStream(s);
+    }
+    if (to.length() != status.getLen()) {
+      throw new IOException(path + " was modified while being copied: expected " + status.getLen() + " bytes but got " + to.length());
+    }
+    bytesDownloaded.addAndGet(status.getLen());
+    if (libraryID != null) {
+      IsolationCounters.incrementLibrary(libraryID, IsolationCounters.JAR_BYTES_DOWNLOADED, status.getLen());
+      IsolationCounters.incrementLibrary(libraryID, IsolationCounters.JAR_DOWNLOAD_MS, (System.nanoTime() - t0) / 1000000);
+    }
+    return digest.digest();
+  }
+
+  private static MessageDigest newMD5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return a file name safe digest of path, length and modification time followed by the jar name
+   */
+  private static String key(FileStatus status) {
+    String id = status.getPath().toString() + "\n" + status.getLen() + "\n" + status.getModificationTime();
+    try {
+      StringBuilder sb = new StringBuilder(toHex(newMD5().digest(id.getBytes("UTF-8"))));
+      sb.append('-').append(status.getPath().getName().replaceAll("[^A-Za-z0-9._-]", "_"));
+      String key = sb.toString();
+      return key.endsWith(JAR) ? key.substring(0, key.length() - JAR.length()) : key;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return the number of jars found in the cache
+   */
+  public static long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of jars that had to be downloaded
+   */
+  public static long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of bytes that did not have to be downloaded thanks to the cache
+   */
+  public static long getBytesSaved() {
+    return bytesSaved.get();
+  }
+
+  /**
+   * @return the number of bytes downloaded
+   */
+  public static long getBytesDownloaded() {
+    return bytesDownloaded.get();
+  }
+
+}
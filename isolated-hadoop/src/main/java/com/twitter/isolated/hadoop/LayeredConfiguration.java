@@ -0,0 +1,110 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Collections.unmodifiableMap;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * A {@link JobConf} made of read only layers shared across calls and a local layer for its own writes.
+ * Creating or copying one (new JobConf(conf), new Configuration(conf)) costs the size of the local writes
+ * instead of the size of the whole conf. It is backed by {@link LayeredProperties}.
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class LayeredConfiguration extends JobConf {
+
+  private static final Log LOG = LogFactory.getLog(LayeredConfiguration.class);
+
+  private static final Field PROPERTIES = propertiesField();
+
+  private static Field propertiesField() {
+    try {
+      Field field = Configuration.class.getDeclaredField("properties");
+      field.setAccessible(true);
+      return field;
+    } catch (Exception e) {
+      LOG.warn("layered configurations not supported by this version of Hadoop, confs will be copied", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param conf the conf to snapshot
+   * @return an immutable copy of the conf to be used as a base layer
+   */
+  static Map<String, String> snapshot(Configuration conf) {
+    Map<String, String> result = new HashMap<String, String>();
+    for (Entry<String, String> e : conf) {
+      result.put(e.getKey(), e.getValue());
+    }
+    return unmodifiableMap(result);
+  }
+
+  /**
+   * @param layers read only layers, top first. They must not be modified afterwards
+   * @return a new conf backed by the layers
+   */
+  static JobConf newLayeredConf(List<Map<String, String>> layers) {
+    LayeredConfiguration conf = new LayeredConfiguration();
+    if (PROPERTIES != null) {
+      try {
+        PROPERTIES.set(conf, new LayeredProperties(layers));
+        return conf;
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    // fall back to copying
+    for (int i = layers.size() - 1; i >= 0; i--) {
+      for (Entry<String, String> e : layers.get(i).entrySet()) {
+        conf.set(e.getKey(), e.getValue());
+      }
+    }
+    return conf;
+  }
+
+  /**
+   * @param conf a conf
+   * @return the properties of the conf if they are layered, null otherwise
+   */
+  static LayeredProperties layeredProperties(Configuration conf) {
+    if (PROPERTIES != null) {
+      try {
+        Object properties = PROPERTIES.get(conf);
+        if (properties instanceof LayeredProperties) {
+          return (LayeredProperties)properties;
+        }
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return null;
+  }
+
+  private LayeredConfiguration() {
+    super(false);
+  }
+
+  /**
+   * Adding a resource reloads the conf from its resources and overlay, which would lose the layers.
+   * The layers are flattened in the overlay first.
+   */
+  @Override
+  public synchronized void reloadConfiguration() {
+    for (Entry<String, String> e : this) {
+      set(e.getKey(), e.getValue());
+    }
+    super.reloadConfiguration();
+  }
+
+}
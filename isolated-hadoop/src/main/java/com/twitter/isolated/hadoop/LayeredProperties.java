@@ -0,0 +1,234 @@
+package com.twitter.isolated.hadoop;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Copy on write Properties backing a layered {@link org.apache.hadoop.conf.Configuration}.
+ * Reads go through the local writes then the read only layers from top to bottom.
+ * The layers are shared and never modified. The entries stored in the Hashtable itself
+ * are the local writes, removals of keys defined in the layers are recorded separately.
+ * Cloning (what new Configuration(conf) does) only copies the local writes.
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class LayeredProperties extends Properties {
+  private static final long serialVersionUID = 1L;
+
+  private final List<Map<String, String>> layers;
+  private Set<Object> removed = new HashSet<Object>();
+  private transient Map<Object, Object> merged;
+
+  /**
+   * @param layers read only layers, top first. They must not be modified afterwards
+   */
+  LayeredProperties(List<Map<String, String>> layers) {
+    this.layers = layers;
+  }
+
+  private String lower(Object key) {
+    if (removed.contains(key)) {
+      return null;
+    }
+    for (Map<String, String> layer : layers) {
+      String value = layer.get(key);
+      if (value != null) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the union of the layers and local writes
+   */
+  private synchronized Map<Object, Object> merged() {
+    if (merged == null) {
+      Map<Object, Object> result = new HashMap<Object, Object>();
+      for (int i = layers.size() - 1; i >= 0; i--) {
+        result.putAll(layers.get(i));
+      }
+      for (Object key : removed) {
+        result.remove(key);
+      }
+      for (Entry<Object, Object> e : super.entrySet()) {
+        result.put(e.getKey(), e.getValue());
+      }
+      merged = Collections.unmodifiableMap(result);
+    }
+    return merged;
+  }
+
+  /**
+   * @param layers the layers this was created with
+   * @return true if this (or what it was cloned from) was created with these layers
+   */
+  boolean isLayeredOn(List<Map<String, String>> layers) {
+    return this.layers == layers;
+  }
+
+  /**
+   * collects the local modifications.
+   * Local writes of the value already defined in the layers are not reported
+   * @param sets receives the keys set locally with their values
+   * @param unsets receives the keys of the layers that were removed locally
+   */
+  synchronized void collectChanges(Map<String, String> sets, Set<String> unsets) {
+    for (Entry<Object, Object> e : super.entrySet()) {
+      if (e.getKey() instanceof String && e.getValue() instanceof String) {
+        String key = (String)e.getKey();
+        String value = (String)e.getValue();
+        if (!value.equals(lower(key))) {
+          sets.put(key, value);
+        }
+      }
+    }
+    for (Object key : removed) {
+      if (key instanceof String) {
+        unsets.add((String)key);
+      }
+    }
+  }
+
+  @Override
+  public synchronized Object get(Object key) {
+    Object value = super.get(key);
+    return value != null ? value : lower(key);
+  }
+
+  @Override
+  public String getProperty(String key) {
+    Object value = get(key);
+    return value instanceof String ? (String)value : null;
+  }
+
+  @Override
+  public String getProperty(String key, String defaultValue) {
+    String value = getProperty(key);
+    return value == null ? defaultValue : value;
+  }
+
+  @Override
+  public synchronized Object put(Object key, Object value) {
+    Object previous = get(key);
+    removed.remove(key);
+    merged = null;
+    super.put(key, value);
+    return previous;
+  }
+
+  @Override
+  public synchronized Object setProperty(String key, String value) {
+    return put(key, value);
+  }
+
+  @Override
+  public synchronized void putAll(Map<? extends Object, ? extends Object> t) {
+    for (Entry<? extends Object, ? extends Object> e : t.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  @Override
+  public synchronized Object remove(Object key) {
+    Object previous = get(key);
+    if (lower(key) != null) {
+      removed.add(key);
+    }
+    merged = null;
+    super.remove(key);
+    return previous;
+  }
+
+  @Override
+  public synchronized void clear() {
+    for (Map<String, String> layer : layers) {
+      removed.addAll(layer.keySet());
+    }
+    merged = null;
+    super.clear();
+  }
+
+  @Override
+  public synchronized boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public synchronized boolean contains(Object value) {
+    return merged().containsValue(value);
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    return contains(value);
+  }
+
+  @Override
+  public synchronized int size() {
+    return merged().size();
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public synchronized Set<Entry<Object, Object>> entrySet() {
+    return merged().entrySet();
+  }
+
+  @Override
+  public synchronized Set<Object> keySet() {
+    return merged().keySet();
+  }
+
+  @Override
+  public synchronized Collection<Object> values() {
+    return merged().values();
+  }
+
+  @Override
+  public synchronized Enumeration<Object> keys() {
+    return Collections.enumeration(merged().keySet());
+  }
+
+  @Override
+  public synchronized Enumeration<Object> elements() {
+    return Collections.enumeration(merged().values());
+  }
+
+  @Override
+  public synchronized Object clone() {
+    LayeredProperties clone = (LayeredProperties)super.clone();
+    clone.removed = new HashSet<Object>(removed);
+    clone.merged = null;
+    return clone;
+  }
+
+  @Override
+  public synchronized boolean equals(Object o) {
+    return o instanceof Map && merged().equals(o);
+  }
+
+  @Override
+  public synchronized int hashCode() {
+    return merged().hashCode();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return merged().toString();
+  }
+
+}
@@ -5,6 +5,7 @@ import static java.util.Collections.unmodifiableList;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.hadoop.fs.Path;
@@ -12,15 +13,29 @@ import org.apache.hadoop.fs.Path;
 public final class Library {
   private final String id;
   private final List<Path> jars;
+  private final List<String> parentFirst;
+  private final List<String> childFirst;
 
   public Library(String id, Path... jars) {
     this(id, asList(jars));
   }
 
   public Library(String id, Collection<Path> jars) {
+    this(id, jars, Collections.<String>emptyList(), Collections.<String>emptyList());
+  }
+
+  /**
+   * @param id the id of the library
+   * @param jars the jars of the library
+   * @param parentFirst package or class name prefixes to load from the parent class loader first
+   * @param childFirst package or class name prefixes to load from the library first
+   */
+  public Library(String id, Collection<Path> jars, Collection<String> parentFirst, Collection<String> childFirst) {
     super();
     this.id = id;
     this.jars = unmodifiableList(new ArrayList<Path>(jars));
+    this.parentFirst = unmodifiableList(new ArrayList<String>(parentFirst));
+    this.childFirst = unmodifiableList(new ArrayList<String>(childFirst));
   }
 
   public String getID() {
@@ -31,12 +46,28 @@ public final class Library {
     return jars;
   }
 
+  /**
+   * @return the prefixes to load from the parent first in addition to the JDK, Hadoop and logging packages
+   */
+  public List<String> getParentFirst() {
+    return parentFirst;
+  }
+
+  /**
+   * @return the prefixes to load from the library first, they take precedence over parent first prefixes
+   */
+  public List<String> getChildFirst() {
+    return childFirst;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
     int result = 1;
     result = prime * result + ((jars == null) ? 0 : jars.hashCode());
     result = prime * result + ((id == null) ? 0 : id.hashCode());
+    result = prime * result + parentFirst.hashCode();
+    result = prime * result + childFirst.hashCode();
     return result;
   }
 
@@ -59,12 +90,16 @@ public final class Library {
         return false;
     } else if (!id.equals(other.id))
       return false;
+    if (!parentFirst.equals(other.parentFirst))
+      return false;
+    if (!childFirst.equals(other.childFirst))
+      return false;
     return true;
   }
 
   @Override
   public String toString() {
-    return "Library [name=" + id + ", jars=" + jars + "]";
+    return "Library [name=" + id + ", jars=" + jars + ", parentFirst=" + parentFirst + ", childFirst=" + childFirst + "]";
   }
 
 }
\ No newline at end of file
@@ -1,50 +1,49 @@
 package com.twitter.isolated.hadoop;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.net.URISyntaxException;
 import java.net.URLClassLoader;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IOUtils;
 
 public class LibraryManager {
 
-  private static final byte[] ZIP_FILE_HEADER = { 80, 75, 3, 4 };
+  private static final Log LOG = LogFactory.getLog(LibraryManager.class);
 
-  private static URL[] toURLs(List<Path> jars) {
+  private static URL[] toURLs(String libraryID, List<Path> jars, Configuration conf) {
     try {
+      JarCache jarCache = JarCache.fromConf(conf);
       URL[] result = new URL[jars.size()];
       for (int i = 0; i < result.length; i++) {
         Path path = jars.get(i);
-        Configuration conf = new Configuration();
         FileSystem fs = path.getFileSystem(conf);
-        validate(path, fs);
-        URI uri = path.toUri();
+        FileStatus fileStatus = fs.getFileStatus(path);
+        if (fileStatus.isDir()) {
+          throw new RuntimeException(path + " should be a jar");
+        }
+        URI uri = fs.makeQualified(path).toUri();
         if (!uri.getScheme().equals("file")) {
-          // TODO use some kind of jar cache mechanism
-          File tmp = File.createTempFile(path.getName(), ".jar");
-          tmp.deleteOnExit();
-          FSDataInputStream s = fs.open(path);
-          FileOutputStream fso = new FileOutputStream(tmp);
-          try {
-            IOUtils.copyBytes(s, fso, conf);
-          } finally {
-            IOUtils.closeStream(fso);
-            IOUtils.closeStream(s);
-          }
-          result[i] = tmp.toURI().toURL();
+          result[i] = jarCache.get(fs, fileStatus, libraryID).toURI().toURL();
         } else {
           throw new RuntimeException("jars should be on HDFS: " + path);
 //          result[i] = uri.toURL();
@@ -58,36 +57,142 @@ public class LibraryManager {
     }
   }
 
-  private static void validate(Path path, FileSystem fs) throws IOException {
-    FileStatus fileStatus = fs.getFileStatus(path);
-    if (fileStatus.isDir()) {
-      throw new RuntimeException(path + " should be a jar");
-    }
-    byte[] header = new byte[4];
-    FSDataInputStream s = fs.open(path);
-    s.readFully(header);
-    s.close();
-    if (!Arrays.equals(ZIP_FILE_HEADER, header)) {
-      throw new RuntimeException("path " + path + " is not a valid jar");
+  /**
+   * @param urls local jars
+   * @return the names of all the entries of the jars
+   */
+  private static Set<String> indexEntries(URL[] urls) {
+    Set<String> entries = new HashSet<String>();
+    for (URL url : urls) {
+      try {
+        JarFile jarFile = new JarFile(new File(url.toURI()));
+        try {
+          Enumeration<JarEntry> jarEntries = jarFile.entries();
+          while (jarEntries.hasMoreElements()) {
+            String name = jarEntries.nextElement().getName();
+            entries.add(name);
+            if (name.endsWith("/")) {
+              // directories can be looked up without the trailing slash
+              entries.add(name.substring(0, name.length() - 1));
+            }
+          }
+        } finally {
+          jarFile.close();
+        }
+      } catch (URISyntaxException e) {
+        throw new RuntimeException(e);
+      } catch (IOException e) {
+        throw new RuntimeException("could not index " + url, e);
+      }
     }
+    return entries;
   }
 
+  /**
+   * Loads classes from the library first then from the parent, except for the classes
+   * that the {@link DelegationRules} of the library send to the parent first.
+   * Locking is per class name so that threads loading different classes do not wait for each other.
+   * The entries of the jars are indexed when the loader is created so that classes and resources
+   * that are not in the library go to the parent without searching the jars or throwing.
+   */
   private static final class IsolatedClassLoader extends URLClassLoader {
-    private IsolatedClassLoader(Library lib, ClassLoader parent) {
-      super(toURLs(lib.getJars()), parent);
+
+    static {
+      registerParallelCapable();
+    }
+
+    /**
+     * On Java 7+ the JVM will not lock the whole loader when it loads classes through it.
+     * ClassLoader.registerAsParallelCapable() does not exist on Java 6 where this is a no-op
+     */
+    private static void registerParallelCapable() {
+      try {
+        Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+        register.setAccessible(true);
+        register.invoke(null);
+      } catch (NoSuchMethodException e) {
+        LOG.debug("class loaders are not parallel capable in this JVM");
+      } catch (Exception e) {
+        LOG.warn("could not register the isolated class loader as parallel capable", e);
+      }
+    }
+
+    private final ConcurrentMap<String, Object> classLoadingLocks = new ConcurrentHashMap<String, Object>();
+
+    // nested loads (super classes, interfaces) are timed as part of the outer one
+    private static final ThreadLocal<int[]> loadDepth = new ThreadLocal<int[]>() {
+      @Override
+      protected int[] initialValue() {
+        return new int[1];
+      }
+    };
+
+    private final Set<String> entries;
+    private final DelegationRules rules;
+    private final AtomicLong classesLoaded;
+    private final AtomicLong classesDefined;
+    private final AtomicLong classLookupNanos;
+
+    private IsolatedClassLoader(Library lib, ClassLoader parent, Configuration conf) {
+      super(toURLs(lib.getID(), lib.getJars(), conf), parent);
+      this.entries = indexEntries(getURLs());
+      this.rules = DelegationRules.forLibrary(lib);
+      String group = IsolationCounters.LIBRARY_GROUP + lib.getID();
+      this.classesLoaded = IsolationCounters.counter(group, IsolationCounters.CLASSES_LOADED);
+      this.classesDefined = IsolationCounters.counter(group, IsolationCounters.CLASSES_DEFINED);
+      this.classLookupNanos = IsolationCounters.counter(group, IsolationCounters.CLASS_LOOKUP_NS);
+    }
+
+    private boolean inLibrary(String className) {
+      return entries.contains(className.replace('.', '/') + ".class");
+    }
+
+    private Object classLoadingLock(String name) {
+      Object lock = classLoadingLocks.get(name);
+      if (lock == null) {
+        Object newLock = new Object();
+        lock = classLoadingLocks.putIfAbsent(name, newLock);
+        if (lock == null) {
+          lock = newLock;
+        }
+      }
+      return lock;
     }
 
     @Override
-    protected synchronized Class<?> loadClass(String name, boolean resolve)
+    protected Class<?> loadClass(String name, boolean resolve)
         throws ClassNotFoundException {
-      Class<?> c = findLoadedClass(name);
-      if (c == null && !apiClass(name)) {
-        try {
-          c = findClass(name);
-        } catch (ClassNotFoundException e) { }
+      classesLoaded.incrementAndGet();
+      int[] depth = loadDepth.get();
+      if (depth[0] > 0) {
+        return load(name, resolve);
       }
-      if (c == null) { // try parent
-        c = getParent().loadClass(name);
+      long t0 = System.nanoTime();
+      depth[0]++;
+      try {
+        return load(name, resolve);
+      } finally {
+        depth[0]--;
+        classLookupNanos.addAndGet(System.nanoTime() - t0);
+      }
+    }
+
+    private Class<?> load(String name, boolean resolve) throws ClassNotFoundException {
+      Class<?> c;
+      if (rules.isParentFirst(name)) {
+        try {
+          c = getParent().loadClass(name);
+        } catch (ClassNotFoundException e) {
+          c = findInLibrary(name);
+          if (c == null) {
+            throw e;
+          }
+        }
+      } else {
+        c = findInLibrary(name);
+        if (c == null) { // try parent
+          c = getParent().loadClass(name);
+        }
       }
       if (resolve) {
         resolveClass(c);
@@ -96,19 +201,61 @@ public class LibraryManager {
     }
 
     /**
-     * Will prevent loading in the Library classes that should only be loaded in
-     * the parent classloader
      * @param name the class name
-     * @return true if it should not be loaded in this classLoader
+     * @return the class defined by this loader or null if it is not in the library
      */
-    private boolean apiClass(String name) {
-      // this class verifies that it is loaded only once.
-      // it will fail otherwise
-      return name.equals("org.apache.commons.logging.Log");
+    private Class<?> findInLibrary(String name) throws ClassNotFoundException {
+      synchronized (classLoadingLock(name)) {
+        Class<?> c = findLoadedClass(name);
+        if (c == null && inLibrary(name)) {
+          c = findClass(name);
+          classesDefined.incrementAndGet();
+        }
+        return c;
+      }
+    }
+
+    @Override
+    public URL findResource(String name) {
+      return entries.contains(name) ? super.findResource(name) : null;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+      if (entries.contains(name)) {
+        return super.findResources(name);
+      }
+      return Collections.enumeration(Collections.<URL>emptyList());
     }
   }
 
-  private static Map<Library, ClassLoader> classLoaderByLib = new HashMap<Library, ClassLoader>();
+  /**
+   * creates the class loader of a library at most once
+   */
+  private static final class ClassLoaderHolder {
+    private final Library lib;
+    private volatile ClassLoader classLoader;
+
+    ClassLoaderHolder(Library lib) {
+      this.lib = lib;
+    }
+
+    ClassLoader get(Configuration conf) {
+      ClassLoader result = classLoader;
+      if (result == null) {
+        synchronized (this) {
+          result = classLoader;
+          if (result == null) {
+            // if this fails the next call will try again
+            classLoader = result = new IsolatedClassLoader(lib, LibraryManager.class.getClassLoader(), conf);
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  private static final ConcurrentMap<Library, ClassLoaderHolder> classLoaderByLib = new ConcurrentHashMap<Library, ClassLoaderHolder>();
 
   /**
    * ensures we always return the same class loader for the same library definition
@@ -117,13 +264,29 @@ public class LibraryManager {
    * @return the corresponding classloader
    */
   public static ClassLoader getClassLoader(Library lib) {
-    ClassLoader classLoader = classLoaderByLib.get(lib);
-    if (classLoader == null) {
-      ClassLoader parent = LibraryManager.class.getClassLoader();
-      classLoader = lib == null ? parent : new IsolatedClassLoader(lib, parent);
-      classLoaderByLib.put(lib, classLoader);
+    return getClassLoader(lib, new Configuration());
+  }
+
+  /**
+   * ensures we always return the same class loader for the same library definition
+   * otherwise you can get "Foo can not be cast to Foo" errors
+   * @param lib the lib definition
+   * @param conf used to access the jars and the jar cache when the class loader is created
+   * @return the corresponding classloader
+   */
+  public static ClassLoader getClassLoader(Library lib, Configuration conf) {
+    if (lib == null) {
+      return LibraryManager.class.getClassLoader();
+    }
+    ClassLoaderHolder holder = classLoaderByLib.get(lib);
+    if (holder == null) {
+      ClassLoaderHolder newHolder = new ClassLoaderHolder(lib);
+      holder = classLoaderByLib.putIfAbsent(lib, newHolder);
+      if (holder == null) {
+        holder = newHolder;
+      }
     }
-    return classLoader;
+    return holder.get(conf);
   }
 
 }
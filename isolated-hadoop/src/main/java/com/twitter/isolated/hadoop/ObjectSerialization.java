@@ -0,0 +1,121 @@
+package com.twitter.isolated.hadoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.Serialization;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+
+/**
+ * Serializes the keys or the values of records (io.serializations) to hand them over to another thread.
+ * The class of each object is returned by the {@link Writer} and kept by the caller next to the bytes to give it to the {@link Reader}:
+ * the serialization is looked up again when the class changes from one object to the next and null is written as nothing.
+ * One Writer and one Reader for the keys, another pair for the values. Not thread safe.
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class ObjectSerialization {
+
+  private ObjectSerialization() {
+  }
+
+  private static Serialization<Object> getSerialization(SerializationFactory factory, Class<Object> c, String user) throws IOException {
+    // getSerializer and getDeserializer of the factory do not check for null
+    Serialization<Object> serialization = factory.getSerialization(c);
+    if (serialization == null) {
+      throw new IOException("no serialization in io.serializations for " + c.getName() + ", needed by " + user);
+    }
+    return serialization;
+  }
+
+  /**
+   * writes objects to a stream
+   */
+  static final class Writer {
+    private final SerializationFactory factory;
+    private final OutputStream out;
+    private final String user;
+    private Class<?> serializedClass;
+    private Serializer<Object> serializer;
+
+    /**
+     * @param conf to find the serializations
+     * @param out where to write
+     * @param user what serializes the objects, for the error messages
+     */
+    Writer(Configuration conf, OutputStream out, String user) {
+      this.factory = new SerializationFactory(conf);
+      this.out = out;
+      this.user = user;
+    }
+
+    /**
+     * @param o the object to write, can be null
+     * @return its class to read it back, null if it is null
+     * @throws IOException if the class has no serialization
+     */
+    @SuppressWarnings("unchecked")
+    Class<?> write(Object o) throws IOException {
+      if (o == null) {
+        return null;
+      }
+      Class<Object> c = (Class<Object>)o.getClass();
+      if (c != serializedClass) {
+        Serializer<Object> newSerializer = getSerialization(factory, c, user).getSerializer(c);
+        newSerializer.open(out);
+        serializer = newSerializer;
+        serializedClass = c;
+      }
+      serializer.serialize(o);
+      return c;
+    }
+  }
+
+  /**
+   * reads objects from a stream
+   */
+  static final class Reader {
+    private final SerializationFactory factory;
+    private final InputStream in;
+    private final String user;
+    private Class<?> deserializedClass;
+    private Deserializer<Object> deserializer;
+
+    /**
+     * @param conf to find the serializations
+     * @param in where to read from
+     * @param user what serializes the objects, for the error messages
+     */
+    Reader(Configuration conf, InputStream in, String user) {
+      this.factory = new SerializationFactory(conf);
+      this.in = in;
+      this.user = user;
+    }
+
+    /**
+     * @param c the class returned by {@link Writer#write(Object)}
+     * @param reuse the object to read into, a new one is created if it is null or of another class
+     * @return the object read, null if it was null
+     * @throws IOException if the class has no serialization
+     */
+    @SuppressWarnings("unchecked")
+    Object read(Class<?> c, Object reuse) throws IOException {
+      if (c == null) {
+        return null;
+      }
+      if (c != deserializedClass) {
+        Class<Object> type = (Class<Object>)c;
+        Deserializer<Object> newDeserializer = getSerialization(factory, type, user).getDeserializer(type);
+        newDeserializer.open(in);
+        deserializer = newDeserializer;
+        deserializedClass = c;
+      }
+      return deserializer.deserialize(reuse != null && reuse.getClass() == c ? reuse : null);
+    }
+  }
+}
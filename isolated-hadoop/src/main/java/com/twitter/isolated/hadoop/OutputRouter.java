@@ -0,0 +1,125 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.ContextManager.lookup;
+import static com.twitter.isolated.hadoop.IsolatedConf.outputRouterFromConf;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Chooses the outputs of each record when several output specs are configured
+ * ({@link IsolatedConf#setOutputSpecs(Configuration, String...)}).
+ * Each output spec has its own writer, class loader and conf, a record is written to the outputs it is routed to.
+ * Set with {@link IsolatedConf#setOutputRouter(Configuration, Class)}, every record goes to all the outputs by default.
+ * A router is created for each task with {@link ReflectionUtils} (it gets the conf of the job if Configurable)
+ * and called by the thread writing the records.
+ *
+ * @author Julien Le Dem
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public abstract class OutputRouter<K, V> {
+
+  /**
+   * @param conf the conf of the job
+   * @return a new instance of the configured router
+   */
+  @SuppressWarnings("unchecked")
+  public static <K, V> OutputRouter<K, V> fromConf(Configuration conf) {
+    return ReflectionUtils.newInstance(outputRouterFromConf(conf), conf);
+  }
+
+  /**
+   * adds the outputs of a record to the routes. Records routed nowhere are dropped
+   * @param key the key
+   * @param value the value
+   * @param routes the outputs to write to, empty when called
+   */
+  public abstract void route(K key, V value, Routes routes) throws IOException;
+
+  /**
+   * The outputs of one record, reused from one record to the next
+   */
+  public static final class Routes {
+    private final Map<String, Integer> indexBySpecID = new HashMap<String, Integer>();
+    private final boolean[] selected;
+    private final int[] indexes;
+    private int size;
+
+    /**
+     * @param outputSpecIDs the output specs, in the order of the writers
+     */
+    public Routes(List<String> outputSpecIDs) {
+      for (String outputSpecID : outputSpecIDs) {
+        indexBySpecID.put(outputSpecID, indexBySpecID.size());
+      }
+      this.selected = new boolean[outputSpecIDs.size()];
+      this.indexes = new int[outputSpecIDs.size()];
+    }
+
+    /**
+     * @param outputSpecID the id of an output spec, added once if routed to several times
+     * @throws IllegalArgumentException if it is not an output spec
+     */
+    public void add(String outputSpecID) {
+      add(lookup(indexBySpecID, outputSpecID));
+    }
+
+    /**
+     * routes to all the outputs
+     */
+    public void addAll() {
+      for (int i = 0; i < selected.length; i++) {
+        add(i);
+      }
+    }
+
+    private void add(int index) {
+      if (!selected[index]) {
+        selected[index] = true;
+        indexes[size++] = index;
+      }
+    }
+
+    /**
+     * @return the number of outputs
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * @param i between 0 and size() - 1
+     * @return the index of an output in the output specs, in the order they were added
+     */
+    public int get(int i) {
+      return indexes[i];
+    }
+
+    /**
+     * removes all outputs
+     */
+    public void clear() {
+      for (int i = 0; i < size; i++) {
+        selected[indexes[i]] = false;
+      }
+      size = 0;
+    }
+  }
+
+  /**
+   * the default: every record to every output
+   */
+  static final class All extends OutputRouter<Object, Object> {
+    @Override
+    public void route(Object key, Object value, Routes routes) {
+      routes.addAll();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.recordCountersFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.recordSamplingFromConf;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Counts the records read or written by the delegate of one spec and the time spent in it.
+ * One call out of {@link IsolatedConf#setRecordSampling(Configuration, int)} is timed and the total
+ * is extrapolated from the samples so that the per record cost is a decrement and a comparison.
+ * Not thread safe: one instance per reader or writer.
+ * Values are accumulated locally and added to the {@link IsolationCounters} of the spec on flush.
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class RecordCounters {
+
+  static final String RECORDS_READ = "records read";
+  static final String BYTES_READ = "bytes read (estimated)";
+  static final String READ_MS = "read ms (estimated)";
+  static final String RECORDS_WRITTEN = "records written";
+  static final String WRITE_MS = "write ms (estimated)";
+
+  private final String group;
+  private final String recordsName;
+  private final String timeName;
+  private final int sampling;
+
+  private int countdown;
+  private long calls;
+  private long records;
+  private long samples;
+  private long sampledNanos;
+
+  /**
+   * @param conf the conf of the job
+   * @param specID the counters id of the spec of the reader, see {@link ContextManager#getCountersID(String)}
+   * @return the counters of a reader or null if disabled
+   */
+  public static RecordCounters forReader(Configuration conf, String specID) {
+    return recordCountersFromConf(conf) ? new RecordCounters(specID, RECORDS_READ, READ_MS, recordSamplingFromConf(conf)) : null;
+  }
+
+  /**
+   * @param conf the conf of the job
+   * @param specID the counters id of the spec of the writer, see {@link ContextManager#getCountersID(String)}
+   * @return the counters of a writer or null if disabled
+   */
+  public static RecordCounters forWriter(Configuration conf, String specID) {
+    return recordCountersFromConf(conf) ? new RecordCounters(specID, RECORDS_WRITTEN, WRITE_MS, recordSamplingFromConf(conf)) : null;
+  }
+
+  private RecordCounters(String specID, String recordsName, String timeName, int sampling) {
+    this.group = IsolationCounters.SPEC_GROUP + specID;
+    this.recordsName = recordsName;
+    this.timeName = timeName;
+    this.sampling = sampling;
+    this.countdown = 1;
+  }
+
+  /**
+   * to call before calling the delegate
+   * @return the start time if this call is sampled, 0 otherwise
+   */
+  public long start() {
+    if (--countdown > 0) {
+      return 0;
+    }
+    countdown = sampling;
+    return System.nanoTime();
+  }
+
+  /**
+   * to call after calling the delegate
+   * @param start what {@link #start()} returned
+   * @param record whether the call read or wrote a record
+   */
+  public void end(long start, boolean record) {
+    if (start != 0) {
+      sampledNanos += System.nanoTime() - start;
+      ++samples;
+    }
+    ++calls;
+    if (record) {
+      ++records;
+    }
+  }
+
+  /**
+   * adds what was counted since the last flush to the counters of the spec
+   * @param bytesRead estimated bytes read since the last flush (progress of the split times its length)
+   */
+  public void flush(long bytesRead) {
+    IsolationCounters.increment(group, recordsName, records);
+    if (samples > 0) {
+      IsolationCounters.increment(group, timeName, (long)((double)sampledNanos * calls / samples / 1000000));
+    }
+    if (bytesRead > 0) {
+      IsolationCounters.increment(group, BYTES_READ, bytesRead);
+    }
+    calls = records = samples = sampledNanos = 0;
+  }
+
+}
@@ -0,0 +1,347 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.prefetchBudgetFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.prefetchDepthFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.prefetchFromConf;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Reads the records of a delegate reader ahead in a background thread so that decompressing and decoding them
+ * overlaps with the map function. The thread runs with the class loader of the spec of the reader.
+ * Records are serialized into a bounded ring buffer of recycled slots (null keys and values as nothing): at most
+ * {@link IsolatedConf#setPrefetchDepth(Configuration, int)} records and about
+ * {@link IsolatedConf#setPrefetchBudget(Configuration, long)} bytes are buffered.
+ * The time the reader waits for records and the time the background thread waits for room are added to the counters of the spec.
+ * The progress and position of the delegate are kept with each record.
+ * An error of the delegate is thrown by {@link #next()} once the records read before it are consumed.
+ * One consumer thread, as for any RecordReader.
+ *
+ * @author Julien Le Dem
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class RecordPrefetcher<K, V> {
+
+  static final String WAIT_MS = "prefetch wait ms";
+  static final String FULL_MS = "prefetch full ms";
+
+  private static final String USER = IsolatedConf.key("prefetch") + "=true";
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  /**
+   * the delegate reader, called from the background thread only
+   *
+   * @param <K> the key type
+   * @param <V> the value type
+   */
+  public interface Source<K, V> {
+
+    /**
+     * @return false at the end of the split
+     */
+    boolean next() throws IOException, InterruptedException;
+
+    /**
+     * @return the key read by the last call to next(), it can be reused by the next one
+     */
+    K getKey() throws IOException, InterruptedException;
+
+    /**
+     * @return the value read by the last call to next(), it can be reused by the next one
+     */
+    V getValue() throws IOException, InterruptedException;
+
+    float getProgress() throws IOException, InterruptedException;
+
+    /**
+     * @return the position of the delegate after the last call to next(), 0 if it has none
+     */
+    long getPos() throws IOException;
+  }
+
+  /**
+   * a serialized record, recycled once consumed
+   */
+  private static final class Slot {
+    private byte[] bytes = new byte[0];
+    private int length;
+    private Class<?> keyClass;
+    private Class<?> valueClass;
+    private float progress;
+    private long pos;
+
+    void set(DataOutputBuffer record, Class<?> keyClass, Class<?> valueClass, float progress, long pos) {
+      if (bytes.length < record.getLength()) {
+        bytes = new byte[record.getLength()];
+      }
+      System.arraycopy(record.getData(), 0, bytes, 0, record.getLength());
+      this.length = record.getLength();
+      this.keyClass = keyClass;
+      this.valueClass = valueClass;
+      this.progress = progress;
+      this.pos = pos;
+    }
+  }
+
+  /**
+   * @param conf the conf of the job
+   * @return whether the readers prefetch their records
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return prefetchFromConf(conf);
+  }
+
+  /**
+   * starts reading ahead if enabled
+   * @param conf the conf of the job
+   * @param countersID the counters id of the spec of the reader, see {@link ContextManager#getCountersID(String)}
+   * @param classLoader the class loader of the spec of the reader
+   * @param source the delegate reader
+   * @return the started prefetcher or null if disabled
+   * @throws IOException if the position of the delegate can not be read
+   */
+  public static <K, V> RecordPrefetcher<K, V> forReader(Configuration conf, String countersID, ClassLoader classLoader, Source<K, V> source) throws IOException {
+    if (!prefetchFromConf(conf)) {
+      return null;
+    }
+    RecordPrefetcher<K, V> prefetcher = new RecordPrefetcher<K, V>(conf, countersID, classLoader, source, source.getPos());
+    prefetcher.thread.start();
+    return prefetcher;
+  }
+
+  private final String group;
+  private final Source<K, V> source;
+  private final int depth;
+  private final long budget;
+  private final Thread thread;
+
+  // guarded by this
+  private final Queue<Slot> filled = new ArrayDeque<Slot>();
+  private final Queue<Slot> free = new ArrayDeque<Slot>();
+  private long filledBytes;
+  private boolean done;
+  private boolean closed;
+  private Throwable error;
+  private float finalProgress;
+  private long finalPos;
+
+  // consumer side
+  private Slot current;
+  private float progress;
+  private long pos;
+  private final DataInputBuffer input = new DataInputBuffer();
+  private final ObjectSerialization.Reader keyReader;
+  private final ObjectSerialization.Reader valueReader;
+  private long waitNanos;
+
+  // background thread side
+  private final DataOutputBuffer record = new DataOutputBuffer();
+  private final ObjectSerialization.Writer keyWriter;
+  private final ObjectSerialization.Writer valueWriter;
+  private long fullNanos;
+
+  private RecordPrefetcher(Configuration conf, String countersID, final ClassLoader classLoader, Source<K, V> source, long pos) {
+    this.group = IsolationCounters.SPEC_GROUP + countersID;
+    this.source = source;
+    this.depth = Math.max(1, prefetchDepthFromConf(conf));
+    this.budget = prefetchBudgetFromConf(conf);
+    this.pos = pos;
+    this.keyReader = new ObjectSerialization.Reader(conf, input, USER);
+    this.valueReader = new ObjectSerialization.Reader(conf, input, USER);
+    this.keyWriter = new ObjectSerialization.Writer(conf, record, USER);
+    this.valueWriter = new ObjectSerialization.Writer(conf, record, USER);
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Thread.currentThread().setContextClassLoader(classLoader);
+        readAhead();
+      }
+    }, "isolated-prefetch-" + threadCount.incrementAndGet());
+    this.thread.setDaemon(true);
+  }
+
+  private void readAhead() {
+    Throwable failure = null;
+    try {
+      while (!isClosed() && source.next()) {
+        record.reset();
+        Class<?> keyClass = keyWriter.write(source.getKey());
+        Class<?> valueClass = valueWriter.write(source.getValue());
+        Slot slot = acquire(record.getLength());
+        if (slot == null) {
+          // closed
+          return;
+        }
+        slot.set(record, keyClass, valueClass, source.getProgress(), source.getPos());
+        synchronized (this) {
+          filled.add(slot);
+          filledBytes += slot.length;
+          notifyAll();
+        }
+      }
+    } catch (Throwable t) {
+      failure = t;
+    }
+    float last = 1.0f;
+    long lastPos = 0;
+    try {
+      last = source.getProgress();
+      lastPos = source.getPos();
+    } catch (Exception e) {
+      // progress is best effort
+    }
+    synchronized (this) {
+      done = true;
+      error = failure;
+      finalProgress = last;
+      finalPos = lastPos;
+      notifyAll();
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * waits for room in the buffer
+   * @return a free slot or null if closed
+   */
+  private synchronized Slot acquire(int length) throws InterruptedException {
+    long start = 0;
+    // one record is always accepted so that a record bigger than the budget does not block
+    while (!closed && (filled.size() >= depth || (!filled.isEmpty() && filledBytes + length > budget))) {
+      if (start == 0) {
+        start = System.nanoTime();
+      }
+      wait();
+    }
+    if (start != 0) {
+      fullNanos += System.nanoTime() - start;
+    }
+    if (closed) {
+      return null;
+    }
+    Slot slot = free.poll();
+    return slot == null ? new Slot() : slot;
+  }
+
+  /**
+   * moves to the next record, waiting for the background thread if needed
+   * @return false at the end of the split
+   * @throws IOException the error of the delegate if it failed
+   */
+  public boolean next() throws IOException, InterruptedException {
+    Slot next;
+    synchronized (this) {
+      if (current != null) {
+        free.add(current);
+        current = null;
+        notifyAll();
+      }
+      long start = 0;
+      while (filled.isEmpty() && !done) {
+        if (start == 0) {
+          start = System.nanoTime();
+        }
+        wait();
+      }
+      if (start != 0) {
+        waitNanos += System.nanoTime() - start;
+      }
+      next = filled.poll();
+      if (next == null) {
+        progress = finalProgress;
+        pos = Math.max(pos, finalPos);
+        if (error != null) {
+          rethrow(error);
+        }
+        return false;
+      }
+      filledBytes -= next.length;
+      notifyAll();
+    }
+    current = next;
+    progress = next.progress;
+    pos = next.pos;
+    input.reset(next.bytes, next.length);
+    return true;
+  }
+
+  private static void rethrow(Throwable error) throws IOException, InterruptedException {
+    if (error instanceof IOException) {
+      throw (IOException)error;
+    } else if (error instanceof InterruptedException) {
+      throw (InterruptedException)error;
+    } else if (error instanceof RuntimeException) {
+      throw (RuntimeException)error;
+    } else if (error instanceof Error) {
+      throw (Error)error;
+    }
+    throw new IOException("prefetching failed", error);
+  }
+
+  /**
+   * to call once per record, before {@link #readValue(Object)}
+   * @param reuse the key to read into, can be null
+   * @return the key of the current record
+   */
+  @SuppressWarnings("unchecked")
+  public K readKey(K reuse) throws IOException {
+    return (K)keyReader.read(current.keyClass, reuse);
+  }
+
+  /**
+   * to call once per record, after {@link #readKey(Object)}
+   * @param reuse the value to read into, can be null
+   * @return the value of the current record
+   */
+  @SuppressWarnings("unchecked")
+  public V readValue(V reuse) throws IOException {
+    return (V)valueReader.read(current.valueClass, reuse);
+  }
+
+  /**
+   * @return the progress of the delegate when it read the current record
+   */
+  public float getProgress() {
+    return progress;
+  }
+
+  /**
+   * @return the position of the delegate when it read the current record (after it), the position at the end of the split once there are no more records
+   */
+  public long getPos() {
+    return pos;
+  }
+
+  /**
+   * stops the background thread once it is done with the current record.
+   * The delegate can then be closed
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("thread interrupted", e);
+    }
+    IsolationCounters.increment(group, WAIT_MS, waitNanos / 1000000);
+    IsolationCounters.increment(group, FULL_MS, fullNanos / 1000000);
+    waitNanos = fullNanos = 0;
+  }
+}
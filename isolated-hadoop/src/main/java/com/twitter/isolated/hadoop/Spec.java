@@ -1,17 +1,32 @@
 package com.twitter.isolated.hadoop;
 
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
+/**
+ * An input or output in the context of a {@link ClassDefinition} and its own conf.
+ * The conf is an immutable snapshot replaced atomically when the calls in the context of the spec modify it,
+ * so that concurrent calls read it without locking or copying.
+ * Two specs are equal if they have the same id and class definition: the conf is not part of the identity as it changes.
+ *
+ * @author Julien Le Dem
+ *
+ */
 public final class Spec {
   private final String id;
   private final String classDefinitionID;
-  private final Map<String, String> conf;
+  private volatile Map<String, String> conf;
 
   public Spec(String id, String classDefinitionID, Map<String, String> conf) {
     super();
     this.id = id;
     this.classDefinitionID = classDefinitionID;
-    this.conf = conf;
+    this.conf = unmodifiableMap(new TreeMap<String, String>(conf));
   }
 
   public Spec(String id, String classDefinition, String... props) {
@@ -22,10 +37,32 @@ public final class Spec {
     return classDefinitionID;
   }
 
+  /**
+   * @return the current snapshot of the conf of the spec, it does not change
+   */
   public Map<String, String> getConf() {
     return conf;
   }
 
+  /**
+   * copy on write: concurrent readers see the conf before or after the merge, never in between
+   * @param sets the keys to set
+   * @param unsets the keys to unset
+   * @return the keys of unsets that the spec defined, the others did not change anything
+   */
+  synchronized Set<String> merge(Map<String, String> sets, Collection<String> unsets) {
+    Map<String, String> merged = new TreeMap<String, String>(conf);
+    Set<String> removed = new TreeSet<String>();
+    for (String unset : unsets) {
+      if (merged.remove(unset) != null) {
+        removed.add(unset);
+      }
+    }
+    merged.putAll(sets);
+    conf = unmodifiableMap(merged);
+    return removed;
+  }
+
   public String getId() {
     return id;
   }
@@ -34,7 +71,6 @@ public final class Spec {
   public int hashCode() {
     final int prime = 31;
     int result = 1;
-    result = prime * result + ((conf == null) ? 0 : conf.hashCode());
     result = prime * result + ((id == null) ? 0 : id.hashCode());
     result = prime * result
         + ((classDefinitionID == null) ? 0 : classDefinitionID.hashCode());
@@ -50,11 +86,6 @@ public final class Spec {
     if (getClass() != obj.getClass())
       return false;
     Spec other = (Spec) obj;
-    if (conf == null) {
-      if (other.conf != null)
-        return false;
-    } else if (!conf.equals(other.conf))
-      return false;
     if (id == null) {
       if (other.id != null)
         return false;
@@ -0,0 +1,471 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.inputSpecsFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.splitClassesFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.splitsCompressFromConf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Serialization;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+
+/**
+ * The wire format of the isolated splits of both APIs:
+ * <pre>
+ * short  -1 (an old split starts with the length of its spec id instead)
+ * byte   version
+ * vint   index of the spec in the input specs or -1 followed by the spec id (UTF)
+ * vint   index of the delegate class in the split classes of the conf or -1 followed by the class name (UTF)
+ * byte   flags (1: compressed, 2: sized, 4: stored)
+ * vlong  length of the delegate split (if sized)
+ * vint   number of locations of the delegate split followed by the locations (UTF) (if sized)
+ * vlong  offset of the delegate payload in the side file (if stored)
+ * vint   length of the delegate payload
+ * bytes  the serialized delegate, deflated if compressed (if not stored)
+ * </pre>
+ * The class table is saved in the job conf and the job directory at planning time, see {@link SplitStore#saveSplitClasses(Configuration, Collection)}.
+ * The new API plans with a copy of the job conf, the classes are indexed there only if the table is in the job directory.
+ * Stored splits keep their delegate in a side file of the job directory, see {@link SplitStore}.
+ * Sized splits can answer getLength() and getLocations() without deserializing the delegate, see {@link Envelope#isSized()}.
+ * Splits written before versioning (spec id and class name as UTF followed by the delegate) are still read.
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class SplitCodec {
+
+  private static final short MARKER = -1;
+  private static final byte VERSION = 1;
+  private static final byte COMPRESSED = 1;
+  private static final byte SIZED = 2;
+  private static final byte STORED = 4;
+  private static final int NOT_INDEXED = -1;
+  private static final long NOT_STORED = -1;
+
+  private static final int MAX_CODECS = 64;
+  private static final ConcurrentMap<String, SplitCodec> codecs = new ConcurrentHashMap<String, SplitCodec>();
+
+  /**
+   * what was read from a split: which spec and delegate class, its length and locations if known and how to read the delegate
+   */
+  public static final class Envelope {
+    private final String specID;
+    private final String className;
+    private final long length;
+    private final String[] locations;
+    // either the raw payload, its position in the side file or the stream of an old split
+    private final byte[] bytes;
+    private final int bytesLength;
+    private final boolean compressed;
+    private final long offset;
+    private final SplitStore store;
+    private final DataInputStream stream;
+
+    private Envelope(String specID, String className, long length, String[] locations,
+        byte[] bytes, int bytesLength, boolean compressed, long offset, SplitStore store, DataInputStream stream) {
+      this.specID = specID;
+      this.className = className;
+      this.length = length;
+      this.locations = locations;
+      this.bytes = bytes;
+      this.bytesLength = bytesLength;
+      this.compressed = compressed;
+      this.offset = offset;
+      this.store = store;
+      this.stream = stream;
+    }
+
+    private boolean isStored() {
+      return offset != NOT_STORED;
+    }
+
+    public String getSpecID() {
+      return specID;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    /**
+     * @return whether the length and locations of the delegate were written with it.
+     * If not the delegate must be read right away
+     */
+    public boolean isSized() {
+      return locations != null;
+    }
+
+    /**
+     * @return the length of the delegate split if sized
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * @return the locations of the delegate split if sized
+     */
+    public String[] getLocations() {
+      return locations;
+    }
+
+    /**
+     * @return the stream to read the delegate from
+     * @throws IOException if the payload is corrupted
+     */
+    public DataInputStream getPayload() throws IOException {
+      if (stream != null) {
+        return stream;
+      }
+      byte[] payload;
+      if (isStored()) {
+        if (store == null) {
+          throw new IOException("the split of " + specID + " is in a side file but the job directory is not set");
+        }
+        payload = store.read(offset, bytesLength);
+      } else {
+        payload = bytesLength == bytes.length ? bytes : Arrays.copyOf(bytes, bytesLength);
+      }
+      return new DataInputStream(new ByteArrayInputStream(compressed ? inflate(payload) : payload));
+    }
+  }
+
+  /**
+   * serializes a delegate
+   */
+  public interface PayloadWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private final List<String> specIDs;
+  private final Map<String, Integer> specIndexes;
+  // read from the job directory if the conf of the task does not have it
+  private volatile List<String> classNames;
+  private final Map<String, Integer> classIndexes;
+  private final boolean compress;
+  private final SplitStore store;
+  private final ConcurrentMap<String, Serialization<?>> serializations = new ConcurrentHashMap<String, Serialization<?>>();
+
+  private SplitCodec(List<String> specIDs, List<String> classNames, boolean compress, SplitStore store) {
+    this.specIDs = specIDs;
+    this.specIndexes = indexes(specIDs);
+    this.classNames = classNames;
+    this.classIndexes = classNames == null ? new HashMap<String, Integer>() : indexes(classNames);
+    this.compress = compress;
+    this.store = store;
+  }
+
+  private static Map<String, Integer> indexes(List<String> values) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    for (int i = 0; i < values.size(); i++) {
+      result.put(values.get(i), i);
+    }
+    return result;
+  }
+
+  /**
+   * Codecs are shared by all the splits of a job
+   * @param conf the job conf
+   * @return the codec for the input specs and split classes of that conf
+   */
+  public static SplitCodec fromConf(Configuration conf) {
+    List<String> specIDs = inputSpecsFromConf(conf);
+    String[] classes = splitClassesFromConf(conf);
+    List<String> classNames = classes == null ? null : Arrays.asList(classes);
+    boolean compress = splitsCompressFromConf(conf);
+    String key = specIDs + "/" + classNames + "/" + compress + "/" + conf.get(SplitStore.JOB_DIR);
+    SplitCodec codec = codecs.get(key);
+    if (codec == null) {
+      if (codecs.size() > MAX_CODECS) {
+        codecs.clear();
+      }
+      codec = new SplitCodec(specIDs, classNames, compress, SplitStore.fromConf(conf));
+      codecs.put(key, codec);
+    }
+    return codec;
+  }
+
+  /**
+   * saves the class table in the conf only, see {@link SplitStore#saveSplitClasses(Configuration, Collection)}
+   * @param conf the job conf
+   * @param classNames the delegate split classes of the job
+   */
+  public static void setSplitClasses(Configuration conf, Collection<String> classNames) {
+    IsolatedConf.setSplitClasses(conf, classNames);
+  }
+
+  /**
+   * @param out where to write
+   * @param specID the spec of the split
+   * @param className the class of the delegate split
+   * @param length the length of the delegate split
+   * @param locations the locations of the delegate split
+   * @param payload writes the delegate
+   * @throws IOException
+   */
+  public void write(DataOutput out, String specID, String className, long length, String[] locations, PayloadWriter payload) throws IOException {
+    write(out, encode(specID, className, length, locations, payload));
+  }
+
+  /**
+   * serializes (and compresses) a delegate without writing it
+   * @param specID the spec of the split
+   * @param className the class of the delegate split
+   * @param length the length of the delegate split
+   * @param locations the locations of the delegate split
+   * @param payload writes the delegate
+   * @return the envelope to write or store
+   * @throws IOException
+   */
+  public Envelope encode(String specID, String className, long length, String[] locations, PayloadWriter payload) throws IOException {
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    payload.write(buffer);
+    byte[] bytes = buffer.getData();
+    int bytesLength = buffer.getLength();
+    if (compress) {
+      bytes = deflate(bytes, bytesLength);
+      bytesLength = bytes.length;
+    }
+    return new Envelope(specID, className, length, locations == null ? new String[0] : locations,
+        bytes, bytesLength, compress, NOT_STORED, null, null);
+  }
+
+  /**
+   * moves the payload of a split to the side file
+   * @param envelope the encoded split
+   * @param writer the side file
+   * @return the envelope referring to the side file
+   * @throws IOException
+   */
+  public Envelope store(Envelope envelope, SplitStore.Writer writer) throws IOException {
+    if (envelope.bytes == null) {
+      throw new IllegalStateException("only encoded splits can be stored");
+    }
+    long offset = writer.append(envelope.bytes, envelope.bytesLength);
+    return new Envelope(envelope.specID, envelope.className, envelope.length, envelope.locations,
+        null, envelope.bytesLength, envelope.compressed, offset, store, null);
+  }
+
+  /**
+   * writes a split that was encoded, stored or read but not deserialized
+   * @param out where to write
+   * @param envelope the split
+   * @throws IOException
+   */
+  public void write(DataOutput out, Envelope envelope) throws IOException {
+    if (envelope.stream != null) {
+      throw new IllegalStateException("the delegate of an old split must be deserialized before it is written again");
+    }
+    out.writeShort(MARKER);
+    out.writeByte(VERSION);
+    writeIndexed(out, specIndexes, envelope.specID);
+    writeIndexed(out, classIndexes, envelope.className);
+    String[] locations = envelope.locations;
+    out.writeByte((envelope.compressed ? COMPRESSED : 0) | (locations == null ? 0 : SIZED) | (envelope.isStored() ? STORED : 0));
+    if (locations != null) {
+      WritableUtils.writeVLong(out, envelope.length);
+      WritableUtils.writeVInt(out, locations.length);
+      for (String location : locations) {
+        out.writeUTF(location);
+      }
+    }
+    if (envelope.isStored()) {
+      WritableUtils.writeVLong(out, envelope.offset);
+      WritableUtils.writeVInt(out, envelope.bytesLength);
+    } else {
+      WritableUtils.writeVInt(out, envelope.bytesLength);
+      out.write(envelope.bytes, 0, envelope.bytesLength);
+    }
+  }
+
+  /**
+   * The delegate is not deserialized nor inflated
+   * @param in where to read from
+   * @return the spec and class of the split and the stream to read the delegate from
+   * @throws IOException
+   */
+  public Envelope read(DataInput in) throws IOException {
+    short first = in.readShort();
+    if (first != MARKER) {
+      // before versioning: the first short is the length of the spec id
+      String specID = readUTF(first, in);
+      String className = in.readUTF();
+      DataInputStream stream = in instanceof DataInputStream ? (DataInputStream)in : new DataInputStream(new DataInputAdapter(in));
+      return new Envelope(specID, className, -1, null, null, 0, false, NOT_STORED, null, stream);
+    }
+    byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("unknown split format version " + version);
+    }
+    String specID = readIndexed(in, specIDs, "input spec");
+    int classIndex = WritableUtils.readVInt(in);
+    String className = classIndex == NOT_INDEXED ? in.readUTF() : lookup(getClassNames(), classIndex, "split class");
+    byte flags = in.readByte();
+    long length = -1;
+    String[] locations = null;
+    if ((flags & SIZED) != 0) {
+      length = WritableUtils.readVLong(in);
+      locations = new String[WritableUtils.readVInt(in)];
+      for (int i = 0; i < locations.length; i++) {
+        // the same hosts are shared by many splits
+        locations[i] = in.readUTF().intern();
+      }
+    }
+    boolean compressed = (flags & COMPRESSED) != 0;
+    if ((flags & STORED) != 0) {
+      long offset = WritableUtils.readVLong(in);
+      int bytesLength = WritableUtils.readVInt(in);
+      return new Envelope(specID, className, length, locations, null, bytesLength, compressed, offset, store, null);
+    }
+    byte[] bytes = new byte[WritableUtils.readVInt(in)];
+    in.readFully(bytes);
+    return new Envelope(specID, className, length, locations, bytes, bytes.length, compressed, NOT_STORED, null, null);
+  }
+
+  /**
+   * The serialization is looked up once per spec and class
+   * @param specID the spec of the split
+   * @param splitClass the class of the split
+   * @param conf the conf to create the serialization from the first time
+   * @return the serialization for that class
+   * @throws IOException if none is configured
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Serialization<T> getSerialization(String specID, Class<T> splitClass, Configuration conf) throws IOException {
+    String key = specID + "/" + splitClass.getName();
+    Serialization<?> serialization = serializations.get(key);
+    if (serialization == null) {
+      serialization = new SerializationFactory(conf).getSerialization(splitClass);
+      if (serialization == null) {
+        throw new IOException("no serialization for " + splitClass + " in io.serializations");
+      }
+      serializations.put(key, serialization);
+    }
+    return (Serialization<T>)serialization;
+  }
+
+  private static void writeIndexed(DataOutput out, Map<String, Integer> indexes, String value) throws IOException {
+    Integer index = indexes.get(value);
+    if (index == null) {
+      WritableUtils.writeVInt(out, NOT_INDEXED);
+      out.writeUTF(value);
+    } else {
+      WritableUtils.writeVInt(out, index);
+    }
+  }
+
+  private List<String> getClassNames() throws IOException {
+    List<String> result = classNames;
+    if (result == null) {
+      synchronized (this) {
+        if (classNames == null) {
+          if (store == null) {
+            throw new IOException("the split classes are not in the conf and the job directory is not set");
+          }
+          classNames = Arrays.asList(store.readSplitClasses());
+        }
+        result = classNames;
+      }
+    }
+    return result;
+  }
+
+  private static String readIndexed(DataInput in, List<String> values, String type) throws IOException {
+    int index = WritableUtils.readVInt(in);
+    return index == NOT_INDEXED ? in.readUTF() : lookup(values, index, type);
+  }
+
+  private static String lookup(List<String> values, int index, String type) throws IOException {
+    if (index < 0 || index >= values.size()) {
+      throw new IOException(type + " " + index + " not found in " + values + ", the conf is not the one the split was written with");
+    }
+    return values.get(index);
+  }
+
+  private static String readUTF(short length, DataInput in) throws IOException {
+    int utfLength = length & 0xFFFF;
+    byte[] bytes = new byte[utfLength + 2];
+    bytes[0] = (byte)(utfLength >>> 8);
+    bytes[1] = (byte)utfLength;
+    in.readFully(bytes, 2, utfLength);
+    return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+  }
+
+  private static byte[] deflate(byte[] bytes, int length) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(bytes, 0, length);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] bytes) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(bytes);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 2);
+      byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if (count == 0 && inflater.needsInput()) {
+          throw new IOException("truncated compressed split");
+        }
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException("corrupted compressed split", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * reads a DataInput as an InputStream for the deserializers of old splits
+   */
+  private static final class DataInputAdapter extends InputStream {
+    private final DataInput in;
+
+    DataInputAdapter(DataInput in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return in.readUnsignedByte();
+      } catch (EOFException e) {
+        return -1;
+      }
+    }
+  }
+}
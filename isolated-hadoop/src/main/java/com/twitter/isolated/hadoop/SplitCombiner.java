@@ -0,0 +1,227 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.combineMaxSizeFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.combineSizeFromConf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.net.CachedDNSToSwitchMapping;
+import org.apache.hadoop.net.DNSToSwitchMapping;
+import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.net.ScriptBasedMapping;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Packs the splits of one or many specs into combined splits, the same way for both APIs:
+ *  - first the splits that share a node, combined splits are local to that node
+ *  - then the splits that share a rack, combined splits are local to that rack
+ *  - then what is left
+ * A combined split is complete once it reaches {@link IsolatedConf#setCombineSize(Configuration, long)}
+ * and does not grow beyond {@link IsolatedConf#setCombineMaxSize(Configuration, long)}.
+ * Racks are resolved with the DNSToSwitchMapping of the cluster (topology.node.switch.mapping.impl).
+ *
+ * @author Julien Le Dem
+ *
+ * @param <S> the type of split
+ */
+public final class SplitCombiner<S> {
+
+  private static final int MAX_LOCATIONS = 5;
+
+  /**
+   * a group of splits to read in the same task
+   *
+   * @param <S> the type of split
+   */
+  public static final class Combined<S> {
+    private final List<S> splits = new ArrayList<S>();
+    private final Map<String, Long> bytesByHost = new HashMap<String, Long>();
+    private long length;
+    private String[] locations;
+
+    private void add(Item<S> item) {
+      splits.add(item.split);
+      length += item.length;
+      for (String host : item.locations) {
+        Long bytes = bytesByHost.get(host);
+        bytesByHost.put(host, (bytes == null ? 0 : bytes) + item.length);
+      }
+    }
+
+    /**
+     * @param hosts the hosts to consider, null for all
+     */
+    private void locate(Set<String> hosts) {
+      List<Entry<String, Long>> candidates = new ArrayList<Entry<String, Long>>();
+      for (Entry<String, Long> e : bytesByHost.entrySet()) {
+        if (hosts == null || hosts.contains(e.getKey())) {
+          candidates.add(e);
+        }
+      }
+      // the hosts that have the most data first
+      Collections.sort(candidates, new Comparator<Entry<String, Long>>() {
+        @Override
+        public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+          int c = o2.getValue().compareTo(o1.getValue());
+          return c != 0 ? c : o1.getKey().compareTo(o2.getKey());
+        }
+      });
+      locations = new String[Math.min(MAX_LOCATIONS, candidates.size())];
+      for (int i = 0; i < locations.length; i++) {
+        locations[i] = candidates.get(i).getKey();
+      }
+    }
+
+    public List<S> getSplits() {
+      return splits;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public String[] getLocations() {
+      return locations;
+    }
+  }
+
+  private static final class Item<S> {
+    private final S split;
+    private final long length;
+    private final String[] locations;
+    private boolean assigned;
+
+    Item(S split, long length, String[] locations) {
+      this.split = split;
+      this.length = length;
+      this.locations = locations == null ? new String[0] : locations;
+    }
+  }
+
+  private final long size;
+  private final long maxSize;
+  private final DNSToSwitchMapping dnsToSwitchMapping;
+  private final List<Item<S>> items = new ArrayList<Item<S>>();
+
+  /**
+   * @param conf the conf of the job
+   */
+  public SplitCombiner(Configuration conf) {
+    this.size = combineSizeFromConf(conf);
+    this.maxSize = combineMaxSizeFromConf(conf);
+    DNSToSwitchMapping mapping = ReflectionUtils.newInstance(
+        conf.getClass("topology.node.switch.mapping.impl", ScriptBasedMapping.class, DNSToSwitchMapping.class),
+        conf);
+    this.dnsToSwitchMapping = mapping instanceof CachedDNSToSwitchMapping ? mapping : new CachedDNSToSwitchMapping(mapping);
+  }
+
+  /**
+   * @param split the split to combine
+   * @param length its length
+   * @param locations its locations
+   */
+  public void add(S split, long length, String[] locations) {
+    items.add(new Item<S>(split, length, locations));
+  }
+
+  /**
+   * @return the combined splits, each split added is in exactly one of them
+   */
+  public List<Combined<S>> combine() {
+    Map<String, List<Item<S>>> itemsByHost = new LinkedHashMap<String, List<Item<S>>>();
+    for (Item<S> item : items) {
+      for (String host : item.locations) {
+        List<Item<S>> hostItems = itemsByHost.get(host);
+        if (hostItems == null) {
+          hostItems = new ArrayList<Item<S>>();
+          itemsByHost.put(host, hostItems);
+        }
+        hostItems.add(item);
+      }
+    }
+    List<Combined<S>> result = new ArrayList<Combined<S>>();
+    for (Entry<String, List<Item<S>>> host : itemsByHost.entrySet()) {
+      pack(host.getValue(), Collections.singleton(host.getKey()), false, result);
+    }
+    for (Entry<String, Set<String>> rack : racks(itemsByHost.keySet()).entrySet()) {
+      Set<Item<S>> rackItems = new LinkedHashSet<Item<S>>();
+      for (String host : rack.getValue()) {
+        rackItems.addAll(itemsByHost.get(host));
+      }
+      pack(rackItems, rack.getValue(), false, result);
+    }
+    pack(items, null, true, result);
+    return result;
+  }
+
+  private Map<String, Set<String>> racks(Set<String> hosts) {
+    List<String> hostList = new ArrayList<String>(hosts);
+    List<String> rackList = hostList.isEmpty() ? Collections.<String>emptyList() : dnsToSwitchMapping.resolve(hostList);
+    Map<String, Set<String>> hostsByRack = new LinkedHashMap<String, Set<String>>();
+    for (int i = 0; i < hostList.size(); i++) {
+      String rack = rackList == null || rackList.get(i) == null ? NetworkTopology.DEFAULT_RACK : rackList.get(i);
+      Set<String> rackHosts = hostsByRack.get(rack);
+      if (rackHosts == null) {
+        rackHosts = new LinkedHashSet<String>();
+        hostsByRack.put(rack, rackHosts);
+      }
+      rackHosts.add(hostList.get(i));
+    }
+    return hostsByRack;
+  }
+
+  /**
+   * @param candidates the splits to pack, the ones already assigned are skipped
+   * @param hosts where the combined splits will be local, null for anywhere
+   * @param keepRemainder whether the last combined split is kept when it is smaller than the target size
+   * @param result where to add the combined splits
+   */
+  private void pack(Iterable<Item<S>> candidates, Set<String> hosts, boolean keepRemainder, List<Combined<S>> result) {
+    List<Item<S>> current = new ArrayList<Item<S>>();
+    long currentLength = 0;
+    for (Item<S> item : candidates) {
+      if (item.assigned) {
+        continue;
+      }
+      if (!current.isEmpty() && currentLength + item.length > maxSize) {
+        if (!keepRemainder) {
+          // a later pass will take it
+          continue;
+        }
+        result.add(combined(current, hosts));
+        current.clear();
+        currentLength = 0;
+      }
+      current.add(item);
+      currentLength += item.length;
+      if (currentLength >= size) {
+        result.add(combined(current, hosts));
+        current.clear();
+        currentLength = 0;
+      }
+    }
+    if (keepRemainder && !current.isEmpty()) {
+      result.add(combined(current, hosts));
+    }
+  }
+
+  private Combined<S> combined(List<Item<S>> items, Set<String> hosts) {
+    Combined<S> combined = new Combined<S>();
+    for (Item<S> item : items) {
+      item.assigned = true;
+      combined.add(item);
+    }
+    combined.locate(hosts);
+    return combined;
+  }
+}
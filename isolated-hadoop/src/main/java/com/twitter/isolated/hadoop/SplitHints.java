@@ -0,0 +1,140 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.specMaxSplitsFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.specMinSplitsFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.splitsProportionalFromConf;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Divides the numSplits hint of the mapred API across the input specs in proportion of the size of their input,
+ * so that the total number of splits asked for stays close to the hint whatever the number of specs.
+ * The hint of each spec is then bounded by {@link IsolatedConf#setSpecSplits(Configuration, String, int, int)}.
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class SplitHints {
+
+  private static final Log LOG = LogFactory.getLog(SplitHints.class);
+
+  /**
+   * the size of an input that could not be estimated
+   */
+  public static final long UNKNOWN = -1;
+
+  private SplitHints() {
+  }
+
+  /**
+   * @param conf the conf
+   * @return whether the input of the specs should be sized to divide the hint
+   */
+  public static boolean isProportional(Configuration conf) {
+    return splitsProportionalFromConf(conf);
+  }
+
+  /**
+   * Cheap sizing of the input paths (mapred.input.dir) of a spec: one status per path, one content summary per directory.
+   * Best effort, some input formats do not use input paths.
+   * @param conf the conf of the spec
+   * @return the size in bytes of the input or {@link #UNKNOWN}
+   */
+  public static long estimateInputSize(Configuration conf) {
+    String dirs = conf.get("mapred.input.dir");
+    if (dirs == null) {
+      return UNKNOWN;
+    }
+    try {
+      long size = 0;
+      for (String dir : StringUtils.split(dirs)) {
+        Path path = new Path(StringUtils.unEscapeString(dir));
+        FileSystem fs = path.getFileSystem(conf);
+        FileStatus[] matches = fs.globStatus(path);
+        if (matches == null) {
+          // the input format will report missing inputs
+          continue;
+        }
+        for (FileStatus match : matches) {
+          size += match.isDir() ? fs.getContentSummary(match.getPath()).getLength() : match.getLen();
+        }
+      }
+      return size;
+    } catch (IOException e) {
+      LOG.warn("could not estimate the size of " + dirs, e);
+      return UNKNOWN;
+    }
+  }
+
+  /**
+   * @param conf the job conf
+   * @param numSplits the hint for the whole job
+   * @param specIDs the input specs
+   * @param sizes the estimated size of the input of each spec or null to give the full hint to each spec
+   * @return the hint for each spec
+   */
+  public static Map<String, Integer> numSplitsBySpec(Configuration conf, int numSplits, List<String> specIDs, List<Long> sizes) {
+    int[] min = new int[specIDs.size()];
+    int[] max = new int[specIDs.size()];
+    for (int i = 0; i < min.length; i++) {
+      min[i] = specMinSplitsFromConf(conf, specIDs.get(i));
+      max[i] = specMaxSplitsFromConf(conf, specIDs.get(i));
+    }
+    int[] hints = distribute(numSplits, sizes, min, max);
+    Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < hints.length; i++) {
+      result.put(specIDs.get(i), hints[i]);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("numSplits " + numSplits + " divided as " + result + " for input sizes " + sizes);
+    }
+    return result;
+  }
+
+  /**
+   * specs of unknown size are given the average size of the others
+   */
+  static int[] distribute(int numSplits, List<Long> sizes, int[] min, int[] max) {
+    int[] result = new int[min.length];
+    double[] weights = new double[min.length];
+    double total = 0;
+    if (sizes != null) {
+      long known = 0;
+      int knownCount = 0;
+      for (long size : sizes) {
+        if (size != UNKNOWN) {
+          known += size;
+          ++knownCount;
+        }
+      }
+      double average = knownCount == 0 ? 1 : (double)known / knownCount;
+      for (int i = 0; i < weights.length; i++) {
+        weights[i] = sizes.get(i) == UNKNOWN ? average : sizes.get(i);
+        total += weights[i];
+      }
+    }
+    for (int i = 0; i < result.length; i++) {
+      int hint;
+      if (sizes == null) {
+        hint = numSplits;
+      } else if (total == 0) {
+        hint = numSplits / result.length;
+      } else {
+        hint = (int)Math.round(numSplits * weights[i] / total);
+      }
+      result[i] = Math.min(max[i], Math.max(min[i], Math.max(1, hint)));
+    }
+    return result;
+  }
+}
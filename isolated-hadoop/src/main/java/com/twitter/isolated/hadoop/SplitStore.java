@@ -0,0 +1,220 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.splitsStoreFromConf;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The files of the isolated splits in the job directory:
+ * the split classes the splits refer to by index and optionally a side file holding the serialized delegate splits.
+ * The splits in job.split then only refer to their delegate by offset and length, see {@link SplitCodec}.
+ * Tasks read their own delegate with a positioned read, or from a memory mapped file when the side file is local.
+ * Tasks find the files from the job directory in their conf:
+ * what is set in the conf at planning time does not always reach them (the LocalJobRunner of Hadoop 1 runs them with the conf the job was submitted with).
+ * The files are removed with the job directory when the job completes.
+ *
+ * @author Julien Le Dem
+ *
+ */
+public final class SplitStore {
+
+  private static final Log LOG = LogFactory.getLog(SplitStore.class);
+
+  static final String FILE_NAME = "isolated.splits";
+  static final String CLASSES_FILE_NAME = "isolated.classes";
+  // set by the JobClient before the splits are computed
+  static final String JOB_DIR = "mapreduce.job.dir";
+
+  /**
+   * appends delegate splits to the side file at planning time
+   */
+  public static final class Writer {
+    private final FSDataOutputStream out;
+
+    private Writer(FSDataOutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * @param bytes the serialized delegate
+     * @param length its length
+     * @return its offset in the side file
+     * @throws IOException
+     */
+    public long append(byte[] bytes, int length) throws IOException {
+      long offset = out.getPos();
+      out.write(bytes, 0, length);
+      return offset;
+    }
+
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * to call at planning time before the splits are serialized
+   * @param conf the job conf
+   * @return the writer of the side file, null if the splits are inline
+   * @throws IOException if the side file can not be created
+   */
+  public static Writer create(Configuration conf) throws IOException {
+    if (!splitsStoreFromConf(conf)) {
+      return null;
+    }
+    Path jobDir = jobDir(conf);
+    if (jobDir == null) {
+      LOG.warn(JOB_DIR + " is not set, the splits are inline");
+      return null;
+    }
+    Path path = new Path(jobDir, FILE_NAME);
+    return new Writer(path.getFileSystem(conf).create(path, true));
+  }
+
+  /**
+   * to call at planning time before the splits are serialized.
+   * The classes are saved in the conf and in the job directory if set
+   * @param conf the job conf
+   * @param classNames the delegate split classes of the job
+   * @throws IOException if they can not be saved
+   */
+  public static void saveSplitClasses(Configuration conf, Collection<String> classNames) throws IOException {
+    SplitCodec.setSplitClasses(conf, classNames);
+    saveSplitClassesInJobDir(conf, classNames);
+  }
+
+  /**
+   * saves the classes in the job directory only, for a planning conf that does not reach the tasks
+   * @param conf the job conf
+   * @param classNames the delegate split classes of the job
+   * @return false if the job directory is not set
+   * @throws IOException if they can not be saved
+   */
+  public static boolean saveSplitClassesInJobDir(Configuration conf, Collection<String> classNames) throws IOException {
+    Path jobDir = jobDir(conf);
+    if (jobDir == null) {
+      return false;
+    }
+    Path path = new Path(jobDir, CLASSES_FILE_NAME);
+    FSDataOutputStream out = path.getFileSystem(conf).create(path, true);
+    try {
+      WritableUtils.writeVInt(out, classNames.size());
+      for (String className : classNames) {
+        out.writeUTF(className);
+      }
+    } finally {
+      out.close();
+    }
+    return true;
+  }
+
+  /**
+   * @param conf the job conf
+   * @return the files of the splits of this job, null if the job directory is not set
+   */
+  static SplitStore fromConf(Configuration conf) {
+    Path jobDir = jobDir(conf);
+    return jobDir == null ? null : new SplitStore(jobDir, conf);
+  }
+
+  private static Path jobDir(Configuration conf) {
+    String jobDir = conf.get(JOB_DIR);
+    return jobDir == null ? null : new Path(jobDir);
+  }
+
+  private final Path jobDir;
+  private final Configuration conf;
+  private MappedByteBuffer mapped;
+  private FSDataInputStream in;
+
+  /**
+   * @param jobDir the job directory
+   * @param conf to resolve the file system
+   */
+  private SplitStore(Path jobDir, Configuration conf) {
+    this.jobDir = jobDir;
+    this.conf = conf;
+  }
+
+  /**
+   * @return the split classes saved at planning time
+   * @throws IOException if they were not saved in this job directory
+   */
+  String[] readSplitClasses() throws IOException {
+    Path path = new Path(jobDir, CLASSES_FILE_NAME);
+    FSDataInputStream classes;
+    try {
+      classes = path.getFileSystem(conf).open(path);
+    } catch (FileNotFoundException e) {
+      throw new IOException("the split classes are neither in the conf nor in " + path, e);
+    }
+    try {
+      String[] classNames = new String[WritableUtils.readVInt(classes)];
+      for (int i = 0; i < classNames.length; i++) {
+        classNames[i] = classes.readUTF();
+      }
+      return classNames;
+    } finally {
+      classes.close();
+    }
+  }
+
+  /**
+   * The file is opened the first time and stays open for the life of the task
+   * @param offset where the delegate starts
+   * @param length the length of the delegate
+   * @return the serialized delegate
+   * @throws IOException
+   */
+  synchronized byte[] read(long offset, int length) throws IOException {
+    if (mapped == null && in == null) {
+      open();
+    }
+    byte[] bytes = new byte[length];
+    if (mapped != null) {
+      ByteBuffer buffer = mapped.duplicate();
+      buffer.position((int)offset);
+      buffer.get(bytes);
+    } else {
+      in.readFully(offset, bytes);
+    }
+    return bytes;
+  }
+
+  private void open() throws IOException {
+    Path path = new Path(jobDir, FILE_NAME);
+    FileSystem fs = path.getFileSystem(conf);
+    if (fs instanceof LocalFileSystem || fs instanceof RawLocalFileSystem) {
+      File file = new File(fs.makeQualified(path).toUri().getPath());
+      if (file.length() <= Integer.MAX_VALUE) {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+          // the mapping stays valid after the channel is closed
+          mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+          raf.close();
+        }
+        return;
+      }
+    }
+    in = fs.open(path);
+  }
+}
@@ -0,0 +1,33 @@
+package com.twitter.isolated.hadoop.mapred;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+import com.twitter.isolated.hadoop.IsolatedConf;
+
+/**
+ * Like {@link IsolatedInputFormat} but the splits of all the specs are packed into fewer bigger splits,
+ * see {@link IsolatedConf#setCombineSize(Configuration, long)}
+ *
+ * @author Julien Le Dem
+ *
+ */
+public class CombineIsolatedInputFormat<K, V> implements InputFormat<K, V> {
+
+  @Override
+  public InputSplit[] getSplits(JobConf jobConf, int numSplits) throws IOException {
+    return new MapredContextManager(jobConf).getCombinedSplits(numSplits);
+  }
+
+  @Override
+  public RecordReader<K, V> getRecordReader(InputSplit split, JobConf jobConf, Reporter reporter) throws IOException {
+    return new CombinedIsolatedRecordReader<K, V>((CombinedIsolatedInputSplit)split, new MapredContextManager(jobConf), reporter);
+  }
+
+}
@@ -0,0 +1,74 @@
+package com.twitter.isolated.hadoop.mapred;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobConfigurable;
+
+/**
+ * a group of splits from one or many specs read in the same task
+ *
+ * @author Julien Le Dem
+ *
+ */
+public class CombinedIsolatedInputSplit implements InputSplit, JobConfigurable {
+
+  private IsolatedInputSplit[] splits;
+  private long length;
+  // only used for scheduling, not serialized
+  private String[] locations = new String[0];
+  private JobConf configuration;
+
+  public CombinedIsolatedInputSplit() {
+    // for deserialization
+  }
+
+  CombinedIsolatedInputSplit(IsolatedInputSplit[] splits, long length, String[] locations, JobConf configuration) {
+    this.splits = splits;
+    this.length = length;
+    this.locations = locations;
+    this.configuration = configuration;
+  }
+
+  @Override
+  public void readFields(DataInput input) throws IOException {
+    this.length = input.readLong();
+    this.splits = new IsolatedInputSplit[input.readInt()];
+    for (int i = 0; i < splits.length; i++) {
+      splits[i] = new IsolatedInputSplit();
+      splits[i].configure(configuration);
+      splits[i].readFields(input);
+    }
+  }
+
+  @Override
+  public void write(DataOutput output) throws IOException {
+    output.writeLong(length);
+    output.writeInt(splits.length);
+    for (IsolatedInputSplit split : splits) {
+      split.write(output);
+    }
+  }
+
+  @Override
+  public long getLength() throws IOException {
+    return length;
+  }
+
+  @Override
+  public String[] getLocations() throws IOException {
+    return locations;
+  }
+
+  public IsolatedInputSplit[] getSplits() {
+    return splits;
+  }
+
+  @Override
+  public void configure(JobConf conf) {
+    this.configuration = conf;
+  }
+}
@@ -0,0 +1,101 @@
+package com.twitter.isolated.hadoop.mapred;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Reads the splits of a {@link CombinedIsolatedInputSplit} one after the other.
+ * Each reader is created in the context of the spec of its split and its records are read
+ * with the class loader of that spec as the context class loader, see {@link IsolatedRecordReader}.
+ * The specs combined must produce the same key and value classes.
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class CombinedIsolatedRecordReader<K, V> implements RecordReader<K, V> {
+  private final IsolatedInputSplit[] splits;
+  private final long length;
+  private final MapredContextManager contextManager;
+  private final Reporter reporter;
+
+  private int index = -1;
+  private RecordReader<K, V> current;
+  private long currentLength;
+  private long completedLength;
+
+  CombinedIsolatedRecordReader(CombinedIsolatedInputSplit split, MapredContextManager contextManager, Reporter reporter) throws IOException {
+    this.splits = split.getSplits();
+    this.length = split.getLength();
+    this.contextManager = contextManager;
+    this.reporter = reporter;
+    nextReader();
+  }
+
+  /**
+   * closes the current reader and opens the next one
+   * @return false if there are no more splits
+   */
+  private boolean nextReader() throws IOException {
+    if (current != null) {
+      completedLength += currentLength;
+      current.close();
+      current = null;
+    }
+    ++index;
+    if (index >= splits.length) {
+      return false;
+    }
+    IsolatedInputSplit split = splits[index];
+    currentLength = split.getLength();
+    current = contextManager.getRecordReader(split, reporter);
+    return true;
+  }
+
+  @Override
+  public boolean next(K key, V value) throws IOException {
+    while (current != null) {
+      if (current.next(key, value)) {
+        return true;
+      }
+      nextReader();
+    }
+    return false;
+  }
+
+  @Override
+  public K createKey() {
+    return current.createKey();
+  }
+
+  @Override
+  public V createValue() {
+    return current.createValue();
+  }
+
+  @Override
+  public long getPos() throws IOException {
+    return current == null ? completedLength : current.getPos();
+  }
+
+  @Override
+  public float getProgress() throws IOException {
+    if (current == null) {
+      return 1.0f;
+    }
+    if (length == 0) {
+      return (float)index / splits.length;
+    }
+    return Math.min(1.0f, (completedLength + current.getProgress() * currentLength) / length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (current != null) {
+      current.close();
+      current = null;
+    }
+  }
+
+}
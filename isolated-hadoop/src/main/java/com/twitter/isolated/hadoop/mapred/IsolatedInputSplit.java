@@ -2,16 +2,24 @@ package com.twitter.isolated.hadoop.mapred;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.JobConfigurable;
 
+import com.twitter.isolated.hadoop.SplitCodec;
+import com.twitter.isolated.hadoop.SplitCodec.Envelope;
+import com.twitter.isolated.hadoop.SplitCodec.PayloadWriter;
+import com.twitter.isolated.hadoop.SplitStore;
+
 public class IsolatedInputSplit implements InputSplit, JobConfigurable {
 
   private String inputSpecID;
   private InputSplit delegate;
+  // the delegate as read until it is needed
+  private Envelope envelope;
   private JobConf configuration;
 
   public IsolatedInputSplit() {
@@ -24,31 +32,85 @@ public class IsolatedInputSplit implements InputSplit, JobConfigurable {
     this.configuration = configuration;
   }
 
+  /**
+   * @return the conf of the split, shared by all the splits of a planning run
+   */
+  JobConf getConf() {
+    return configuration;
+  }
+
+  /**
+   * The delegate is deserialized in its context only when {@link #readDelegate()} is called
+   */
   @Override
   public void readFields(DataInput input) throws IOException {
-    this.inputSpecID = input.readUTF();
-    String className = input.readUTF();
-    this.delegate = new MapredContextManager(configuration).readSplit(inputSpecID, className, input);
+    Envelope envelope = SplitCodec.fromConf(configuration).read(input);
+    this.inputSpecID = envelope.getSpecID();
+    this.delegate = null;
+    this.envelope = envelope;
+    if (!envelope.isSized()) {
+      // length and locations are known only from the delegate
+      readDelegate();
+    }
   }
 
   @Override
   public void write(DataOutput output) throws IOException {
-    output.writeUTF(this.inputSpecID);
-    output.writeUTF(this.delegate.getClass().getName());
-    delegate.write(output);
+    SplitCodec codec = SplitCodec.fromConf(configuration);
+    codec.write(output, delegate == null ? envelope : encode(codec));
+  }
+
+  /**
+   * moves the delegate to the side file, the split then only keeps its position
+   * @param writer the side file
+   * @throws IOException
+   */
+  void store(SplitStore.Writer writer) throws IOException {
+    SplitCodec codec = SplitCodec.fromConf(configuration);
+    this.envelope = codec.store(encode(codec), writer);
+    this.delegate = null;
+  }
+
+  private Envelope encode(SplitCodec codec) throws IOException {
+    return codec.encode(inputSpecID, delegate.getClass().getName(), delegate.getLength(), delegate.getLocations(), new PayloadWriter() {
+      @Override
+      public void write(DataOutputStream out) throws IOException {
+        delegate.write(out);
+      }
+    });
   }
 
   @Override
   public long getLength() throws IOException {
-    return delegate.getLength();
+    return delegate == null ? envelope.getLength() : delegate.getLength();
   }
 
   @Override
   public String[] getLocations() throws IOException {
-    return delegate.getLocations();
+    return delegate == null ? envelope.getLocations() : delegate.getLocations();
   }
 
+  /**
+   * @return the delegate split, deserialized in the context of its spec the first time
+   * @throws RuntimeException wrapping the IOException if it can not be deserialized
+   */
   public InputSplit getDelegate() {
+    try {
+      return readDelegate();
+    } catch (IOException e) {
+      throw new RuntimeException("could not deserialize the split of spec " + inputSpecID, e);
+    }
+  }
+
+  /**
+   * @return the delegate split, deserialized in the context of its spec the first time
+   * @throws IOException if it can not be deserialized
+   */
+  InputSplit readDelegate() throws IOException {
+    if (delegate == null) {
+      delegate = new MapredContextManager(configuration).readSplit(inputSpecID, envelope.getClassName(), envelope.getPayload());
+      envelope = null;
+    }
     return delegate;
   }
 
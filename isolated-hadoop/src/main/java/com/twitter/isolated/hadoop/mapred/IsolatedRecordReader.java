@@ -0,0 +1,218 @@
+package com.twitter.isolated.hadoop.mapred;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+import com.twitter.isolated.hadoop.ContextSwitch;
+import com.twitter.isolated.hadoop.IsolationCounters;
+import com.twitter.isolated.hadoop.RecordCounters;
+import com.twitter.isolated.hadoop.RecordPrefetcher;
+
+/**
+ * calls the delegate with the class loader of its spec as the context class loader,
+ * counts the records it reads and reads them ahead if prefetching.
+ * The position and progress after a record are read from the delegate in the same call as the record
+ * (the task asks for them around each record), so that reading a record switches the context class loader once
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class IsolatedRecordReader<K, V> implements RecordReader<K, V> {
+  private final RecordReader<K, V> delegate;
+  private final ContextSwitch contextSwitch;
+  private final RecordCounters counters;
+  private final long splitLength;
+  private final Reporter reporter;
+  private RecordPrefetcher<K, V> prefetcher;
+  // the position and progress after the current record, negative before the first one
+  private long pos = -1;
+  private float progress = -1;
+
+  /**
+   * @param delegate the actual reader
+   * @param contextSwitch to the class loader of the spec of the delegate
+   * @param counters null if records should not be counted
+   * @param splitLength to estimate the bytes read
+   * @param reporter to publish the counters
+   */
+  IsolatedRecordReader(RecordReader<K, V> delegate, ContextSwitch contextSwitch, RecordCounters counters, long splitLength, Reporter reporter) {
+    this.delegate = delegate;
+    this.contextSwitch = contextSwitch;
+    this.counters = counters;
+    this.splitLength = splitLength;
+    this.reporter = reporter;
+  }
+
+  /**
+   * starts reading ahead in a background thread if enabled
+   * @param conf the conf of the job
+   * @param countersID the counters id of the spec
+   */
+  void prefetch(Configuration conf, String countersID) throws IOException {
+    this.prefetcher = RecordPrefetcher.forReader(conf, countersID, contextSwitch.getClassLoader(), source());
+  }
+
+  /**
+   * @return the delegate as seen from the background thread
+   */
+  private RecordPrefetcher.Source<K, V> source() {
+    return new RecordPrefetcher.Source<K, V>() {
+      private final K key = createKey();
+      private final V value = createValue();
+
+      @Override
+      public boolean next() throws IOException {
+        return readNext(key, value);
+      }
+
+      @Override
+      public K getKey() {
+        return key;
+      }
+
+      @Override
+      public V getValue() {
+        return value;
+      }
+
+      @Override
+      public float getProgress() throws IOException {
+        return delegate.getProgress();
+      }
+
+      @Override
+      public long getPos() throws IOException {
+        return delegate.getPos();
+      }
+    };
+  }
+
+  @Override
+  public boolean next(K key, V value) throws IOException {
+    if (prefetcher == null) {
+      ClassLoader previous = contextSwitch.enter();
+      try {
+        boolean hasNext = readNext(key, value);
+        pos = delegate.getPos();
+        progress = delegate.getProgress();
+        return hasNext;
+      } finally {
+        contextSwitch.exit(previous);
+      }
+    }
+    try {
+      if (!prefetcher.next()) {
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("thread interrupted", e);
+    }
+    // the old API reads into the objects of the caller
+    if (prefetcher.readKey(key) != key || prefetcher.readValue(value) != value) {
+      throw new IOException("the serialization of " + key.getClass() + " or " + value.getClass() + " can not read into an existing object");
+    }
+    return true;
+  }
+
+  private boolean readNext(K key, V value) throws IOException {
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      if (counters == null) {
+        return delegate.next(key, value);
+      }
+      long start = counters.start();
+      boolean hasNext = delegate.next(key, value);
+      counters.end(start, hasNext);
+      return hasNext;
+    } finally {
+      contextSwitch.exit(previous);
+    }
+  }
+
+  @Override
+  public K createKey() {
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      return delegate.createKey();
+    } finally {
+      contextSwitch.exit(previous);
+    }
+  }
+
+  @Override
+  public V createValue() {
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      return delegate.createValue();
+    } finally {
+      contextSwitch.exit(previous);
+    }
+  }
+
+  /**
+   * when prefetching, the position of the delegate after the current record (the delegate is ahead)
+   */
+  @Override
+  public long getPos() throws IOException {
+    if (prefetcher != null) {
+      return prefetcher.getPos();
+    }
+    if (pos >= 0) {
+      return pos;
+    }
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      return delegate.getPos();
+    } finally {
+      contextSwitch.exit(previous);
+    }
+  }
+
+  @Override
+  public float getProgress() throws IOException {
+    if (prefetcher != null) {
+      return prefetcher.getProgress();
+    }
+    if (progress >= 0) {
+      return progress;
+    }
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      return delegate.getProgress();
+    } finally {
+      contextSwitch.exit(previous);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (prefetcher != null) {
+      // the delegate is not used anymore once the prefetcher is closed
+      prefetcher.close();
+    }
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      if (counters != null) {
+        counters.flush(bytesRead());
+      }
+      delegate.close();
+    } finally {
+      contextSwitch.exit(previous);
+    }
+    IsolationCounters.publish(reporter);
+  }
+
+  private long bytesRead() {
+    try {
+      return (long)(delegate.getProgress() * splitLength);
+    } catch (Exception e) {
+      // progress is best effort
+      return 0;
+    }
+  }
+
+}
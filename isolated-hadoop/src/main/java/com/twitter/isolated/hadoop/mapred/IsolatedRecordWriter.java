@@ -0,0 +1,94 @@
+package com.twitter.isolated.hadoop.mapred;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+
+import com.twitter.isolated.hadoop.AsyncRecordWriter;
+import com.twitter.isolated.hadoop.IsolationCounters;
+import com.twitter.isolated.hadoop.RecordCounters;
+
+/**
+ * counts the records written by the delegate and writes them in a background thread if asynchronous
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class IsolatedRecordWriter<K, V> implements RecordWriter<K, V> {
+  private final RecordWriter<K, V> delegate;
+  private final RecordCounters counters;
+  private AsyncRecordWriter<K, V> async;
+
+  /**
+   * @param delegate the actual writer
+   * @param counters null if records should not be counted
+   */
+  IsolatedRecordWriter(RecordWriter<K, V> delegate, RecordCounters counters) {
+    this.delegate = delegate;
+    this.counters = counters;
+  }
+
+  /**
+   * starts writing in a background thread if enabled
+   * @param conf the conf of the job
+   * @param countersID the counters id of the output spec
+   * @param classLoader the class loader of the output spec
+   */
+  void async(Configuration conf, String countersID, ClassLoader classLoader) {
+    this.async = AsyncRecordWriter.forWriter(conf, countersID, classLoader, new AsyncRecordWriter.Sink<K, V>() {
+      @Override
+      public void write(K key, V value) throws IOException {
+        writeNext(key, value);
+      }
+    });
+  }
+
+  @Override
+  public void write(K key, V value) throws IOException {
+    if (async == null) {
+      writeNext(key, value);
+      return;
+    }
+    try {
+      async.write(key, value);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("thread interrupted", e);
+    }
+  }
+
+  /**
+   * writes to the delegate, in the background thread when asynchronous
+   */
+  private void writeNext(K key, V value) throws IOException {
+    if (counters == null) {
+      delegate.write(key, value);
+      return;
+    }
+    long start = counters.start();
+    delegate.write(key, value);
+    counters.end(start, true);
+  }
+
+  @Override
+  public void close(Reporter reporter) throws IOException {
+    try {
+      if (async != null) {
+        // everything is written or the error of the delegate is thrown
+        async.close();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("thread interrupted", e);
+    } finally {
+      if (counters != null) {
+        counters.flush(0);
+      }
+      delegate.close(reporter);
+      IsolationCounters.publish(reporter);
+    }
+  }
+
+}
@@ -3,7 +3,12 @@ package com.twitter.isolated.hadoop.mapred;
 import java.io.DataInput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.mapred.InputFormat;
@@ -16,8 +21,16 @@ import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.Progressable;
 
+import com.twitter.isolated.hadoop.AsyncRecordWriter;
 import com.twitter.isolated.hadoop.ContextManager;
+import com.twitter.isolated.hadoop.ContextSwitch;
+import com.twitter.isolated.hadoop.IsolationCounters;
+import com.twitter.isolated.hadoop.RecordCounters;
 import com.twitter.isolated.hadoop.Spec;
+import com.twitter.isolated.hadoop.SplitCombiner;
+import com.twitter.isolated.hadoop.SplitHints;
+import com.twitter.isolated.hadoop.SplitStore;
+import com.twitter.isolated.hadoop.SplitCombiner.Combined;
 
 class MapredContextManager extends ContextManager {
 
@@ -29,61 +42,174 @@ class MapredContextManager extends ContextManager {
 
   // input format
 
-  InputSplit[] getSplits(final int numSplits) throws IOException {
-    List<IsolatedInputSplit> result = new ArrayList<IsolatedInputSplit>();
-    for (final Spec inputSpec : super.getInputSpecs()) {
-      result.addAll(callInContext(inputSpec, new MapredContextualCall<List<IsolatedInputSplit>>() {
+  /**
+   * @param numSplits the hint for the whole job
+   * @return the hint for each input spec
+   */
+  private Map<String, Integer> numSplitsBySpec(int numSplits) throws IOException {
+    Collection<Spec> specs = getInputSpecs();
+    List<String> specIDs = new ArrayList<String>(specs.size());
+    for (Spec spec : specs) {
+      specIDs.add(spec.getId());
+    }
+    List<Long> sizes = null;
+    if (specs.size() > 1 && SplitHints.isProportional(globalConf)) {
+      sizes = callInEachContext(specs, "estimateInputSize", new MapredContextualCall<Long>() {
         @Override
-        public List<IsolatedInputSplit> call(MapredCallContext context) throws IOException, InterruptedException {
-          InputFormat<?, ?> inputFormat = context.newInstanceFromSpec(InputFormat.class);
-          List<IsolatedInputSplit> finalSplits = new ArrayList<IsolatedInputSplit>();
-          for (InputSplit inputSplit : inputFormat.getSplits(context.localJobConf, numSplits)) {
-            finalSplits.add(new IsolatedInputSplit(context.spec.getId(), inputSplit, new JobConf(globalConf)));
-          }
-          return finalSplits;
+        public Long call(MapredCallContext context) throws IOException, InterruptedException {
+          return SplitHints.estimateInputSize(context.localJobConf);
+        }
+      });
+    }
+    return SplitHints.numSplitsBySpec(globalConf, numSplits, specIDs, sizes);
+  }
+
+  InputSplit[] getSplits(int numSplits) throws IOException {
+    final Map<String, Integer> numSplitsBySpec = numSplitsBySpec(numSplits);
+    List<InputSplit[]> splitsBySpec = callInEachContext(super.getInputSpecs(), "getSplits", new MapredContextualCall<InputSplit[]>() {
+      @Override
+      public InputSplit[] call(MapredCallContext context) throws IOException, InterruptedException {
+        InputFormat<?, ?> inputFormat = context.newInstanceFromSpec(InputFormat.class);
+        return inputFormat.getSplits(context.localJobConf, numSplitsBySpec.get(context.spec.getId()));
+      }
+    });
+    // the delegate classes are saved in the conf (before the splits copy it) and the job directory so that they are written as indexes
+    Set<String> splitClasses = new LinkedHashSet<String>();
+    for (InputSplit[] splits : splitsBySpec) {
+      for (InputSplit split : splits) {
+        splitClasses.add(split.getClass().getName());
+      }
+    }
+    SplitStore.saveSplitClasses(globalConf, splitClasses);
+    SplitStore.Writer store = SplitStore.create(globalConf);
+    // one copy shared by all the splits: a copy per split does not scale to large jobs
+    JobConf splitConf = new JobConf(globalConf);
+    List<IsolatedInputSplit> result = new ArrayList<IsolatedInputSplit>();
+    Iterator<Spec> specs = getInputSpecs().iterator();
+    for (InputSplit[] splits : splitsBySpec) {
+      String specID = specs.next().getId();
+      for (InputSplit inputSplit : splits) {
+        result.add(new IsolatedInputSplit(specID, inputSplit, splitConf));
+      }
+    }
+    if (store != null) {
+      try {
+        for (IsolatedInputSplit split : result) {
+          split.store(store);
         }
-      }));
+      } finally {
+        store.close();
+      }
     }
+    // no counters at planning time
+    IsolationCounters.log();
     return result.toArray(new InputSplit[result.size()]);
   }
 
+  InputSplit[] getCombinedSplits(int numSplits) throws IOException {
+    SplitCombiner<IsolatedInputSplit> combiner = new SplitCombiner<IsolatedInputSplit>(globalConf);
+    for (InputSplit split : getSplits(numSplits)) {
+      combiner.add((IsolatedInputSplit)split, split.getLength(), split.getLocations());
+    }
+    List<Combined<IsolatedInputSplit>> combinedSplits = combiner.combine();
+    InputSplit[] result = new InputSplit[combinedSplits.size()];
+    JobConf conf = new JobConf(globalConf);
+    for (int i = 0; i < result.length; i++) {
+      Combined<IsolatedInputSplit> combined = combinedSplits.get(i);
+      List<IsolatedInputSplit> splits = combined.getSplits();
+      result[i] = new CombinedIsolatedInputSplit(
+          splits.toArray(new IsolatedInputSplit[splits.size()]), combined.getLength(), combined.getLocations(), conf);
+    }
+    return result;
+  }
+
   <K, V> RecordReader<K, V> getRecordReader(InputSplit split, final Reporter reporter) throws IOException {
     final IsolatedInputSplit isolatedSplit = (IsolatedInputSplit)split;
+    // deserialized in its own context
+    final InputSplit delegateSplit = isolatedSplit.readDelegate();
     final Spec inputSpec = getSpec(isolatedSplit.getInputSpecID());
-    return callInContext(inputSpec, new MapredContextualCall<RecordReader<K, V>>() {
+    RecordReader<K, V> recordReader = callInContext(inputSpec, "getRecordReader", new MapredContextualCall<RecordReader<K, V>>() {
       public RecordReader<K, V> call(MapredCallContext context) throws IOException, InterruptedException {
         @SuppressWarnings("unchecked") // wishful thinking
         InputFormat<K, V> inputFormat = context.newInstanceFromSpec(InputFormat.class);
-        return inputFormat.getRecordReader(isolatedSplit.getDelegate(), context.localJobConf, reporter);
+        return inputFormat.getRecordReader(delegateSplit, context.localJobConf, reporter);
       }
     });
+    IsolationCounters.publish(reporter);
+    String countersID = getCountersID(inputSpec.getId());
+    // always wrapped: the records are read with the class loader of the spec
+    IsolatedRecordReader<K, V> isolatedReader = new IsolatedRecordReader<K, V>(recordReader,
+        new ContextSwitch(getClassLoader(inputSpec.getId())),
+        RecordCounters.forReader(globalConf, countersID),
+        isolatedSplit.getLength(), reporter);
+    isolatedReader.prefetch(globalConf, countersID);
+    return isolatedReader;
   }
 
 
   // output format
 
-  <K, V> void checkOutputSpecs(final FileSystem ignored) throws IOException {
-    callInContext(getOutputSpec(), new MapredContextualRun() {
-      public void run(MapredCallContext context) throws IOException, InterruptedException {
-        @SuppressWarnings("unchecked") // wishful thinking
-        OutputFormat<K, V> outputFormat = context.newInstanceFromSpec(OutputFormat.class);
-        outputFormat.checkOutputSpecs(ignored, context.localJobConf);
+  /**
+   * the mapred API has no per output work directory or committer: several outputs would write to the same part files
+   * (the work directory of the job) and would not be committed
+   * @throws IOException if several output specs are configured
+   */
+  private void checkSingleOutputSpec() throws IOException {
+    List<Spec> outputSpecs = getOutputSpecs();
+    if (outputSpecs.size() > 1) {
+      List<String> ids = new ArrayList<String>();
+      for (Spec outputSpec : outputSpecs) {
+        ids.add(outputSpec.getId());
       }
-    });
+      throw new IOException("the mapred IsolatedOutputFormat writes to one output spec, " + ids
+          + " are configured: use the mapreduce IsolatedOutputFormat to write to several outputs");
+    }
+  }
+
+  <K, V> void checkOutputSpecs(final FileSystem ignored) throws IOException {
+    checkSingleOutputSpec();
+    for (Spec outputSpec : getOutputSpecs()) {
+      callInContext(outputSpec, "checkOutputSpecs", new MapredContextualRun() {
+        public void run(MapredCallContext context) throws IOException, InterruptedException {
+          @SuppressWarnings("unchecked") // wishful thinking
+          OutputFormat<K, V> outputFormat = context.newInstanceFromSpec(OutputFormat.class);
+          outputFormat.checkOutputSpecs(ignored, context.localJobConf);
+        }
+      });
+    }
   }
 
-  <K, V> RecordWriter<K, V> getRecordWriter(final FileSystem ignored, final String name, final Progressable p) throws IOException {
-    return callInContext(getOutputSpec(), new MapredContextualCall<RecordWriter<K, V>>() {
+  /**
+   * @return the writer of the output spec
+   */
+  <K, V> RecordWriter<K, V> getRecordWriter(FileSystem ignored, String name, Progressable p) throws IOException {
+    checkSingleOutputSpec();
+    return getRecordWriter(getOutputSpec(), ignored, name, p);
+  }
+
+  private <K, V> RecordWriter<K, V> getRecordWriter(Spec outputSpec, final FileSystem ignored, final String name, final Progressable p) throws IOException {
+    RecordWriter<K, V> recordWriter = callInContext(outputSpec, "getRecordWriter", new MapredContextualCall<RecordWriter<K, V>>() {
       public RecordWriter<K, V> call(MapredCallContext ctxt) throws IOException, InterruptedException {
         @SuppressWarnings("unchecked") // wishful thinking
         OutputFormat<K, V> outputFormat = ctxt.newInstanceFromSpec(OutputFormat.class);
         return outputFormat.getRecordWriter(ignored, ctxt.localJobConf, name, p);
       }
     });
+    if (p instanceof Reporter) {
+      IsolationCounters.publish((Reporter)p);
+    }
+    String countersID = getCountersID(outputSpec.getId());
+    RecordCounters counters = RecordCounters.forWriter(globalConf, countersID);
+    if (counters == null && !AsyncRecordWriter.isEnabled(globalConf)) {
+      return recordWriter;
+    }
+    IsolatedRecordWriter<K, V> isolatedWriter = new IsolatedRecordWriter<K, V>(recordWriter, counters);
+    isolatedWriter.async(globalConf, countersID, getClassLoader(outputSpec.getId()));
+    return isolatedWriter;
   }
 
   InputSplit readSplit(String inputSpecID, final String className, final DataInput input) throws IOException {
-    return callInContext(inputSpecID, new ContextualCall<InputSplit>() {
+    return callInContext(inputSpecID, "readSplit", new ContextualCall<InputSplit>() {
       @Override
       public InputSplit call(CallContext ctxt) throws IOException, InterruptedException {
         InputSplit delegate = ctxt.newInstance(className, InputSplit.class);
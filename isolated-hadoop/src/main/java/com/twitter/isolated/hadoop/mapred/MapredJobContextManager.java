@@ -14,8 +14,15 @@ class MapredJobContextManager extends MapredContextManager {
     this.globalJobContext = globalJobContext;
   }
 
+  /**
+   * without output spec the committer of the job conf is called directly, with the context of the job
+   */
   void setupJob(final OutputCommitter delegate) throws IOException {
-    callInContext(getOutputSpec(),  new JobContextualRun() {
+    if (getOutputSpecs().isEmpty()) {
+      delegate.setupJob(globalJobContext);
+      return;
+    }
+    callInContext(getOutputSpec(), "setupJob", new JobContextualRun() {
       public void run(JobCallContext ctxt) throws IOException, InterruptedException {
         delegate.setupJob(ctxt.localJobContext);
       }
@@ -14,8 +14,20 @@ class MapredTaskAttemptContextManager extends MapredContextManager {
     this.globalTaskContext = globalTaskContext;
   }
 
+  /**
+   * the committer comes from the job conf and not from an output spec:
+   * without output spec it is called directly, with the context of the task
+   */
+  private boolean passThrough() {
+    return getOutputSpecs().isEmpty();
+  }
+
   void setupTask(final OutputCommitter delegate) throws IOException {
-    callInContext(getOutputSpec(),  new TaskContextualRun() {
+    if (passThrough()) {
+      delegate.setupTask(globalTaskContext);
+      return;
+    }
+    callInContext(getOutputSpec(), "setupTask", new TaskContextualRun() {
       public void run(TaskCallContext ctxt) throws IOException, InterruptedException {
         delegate.setupTask(ctxt.localTaskContext);
       }
@@ -23,7 +35,10 @@ class MapredTaskAttemptContextManager extends MapredContextManager {
   }
 
   boolean needsTaskCommit(final OutputCommitter delegate) throws IOException {
-    return callInContext(getOutputSpec(),  new TaskContextualCall<Boolean>() {
+    if (passThrough()) {
+      return delegate.needsTaskCommit(globalTaskContext);
+    }
+    return callInContext(getOutputSpec(), "needsTaskCommit", new TaskContextualCall<Boolean>() {
       public Boolean call(TaskCallContext ctxt) throws IOException, InterruptedException {
         return delegate.needsTaskCommit(ctxt.localTaskContext);
       }
@@ -31,7 +46,11 @@ class MapredTaskAttemptContextManager extends MapredContextManager {
   }
 
   void commitTask(final OutputCommitter delegate) throws IOException {
-    callInContext(getOutputSpec(),  new TaskContextualRun() {
+    if (passThrough()) {
+      delegate.commitTask(globalTaskContext);
+      return;
+    }
+    callInContext(getOutputSpec(), "commitTask", new TaskContextualRun() {
       public void run(TaskCallContext ctxt) throws IOException, InterruptedException {
         delegate.commitTask(ctxt.localTaskContext);
       }
@@ -39,7 +58,11 @@ class MapredTaskAttemptContextManager extends MapredContextManager {
   }
 
   void abortTask(final OutputCommitter delegate) throws IOException {
-    callInContext(getOutputSpec(),  new TaskContextualRun() {
+    if (passThrough()) {
+      delegate.abortTask(globalTaskContext);
+      return;
+    }
+    callInContext(getOutputSpec(), "abortTask", new TaskContextualRun() {
       public void run(TaskCallContext ctxt) throws IOException, InterruptedException {
         delegate.abortTask(ctxt.localTaskContext);
       }
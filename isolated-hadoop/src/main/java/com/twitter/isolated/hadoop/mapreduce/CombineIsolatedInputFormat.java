@@ -0,0 +1,35 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.twitter.isolated.hadoop.IsolatedConf;
+
+/**
+ * Like {@link IsolatedInputFormat} but the splits of all the specs are packed into fewer bigger splits,
+ * see {@link IsolatedConf#setCombineSize(Configuration, long)}
+ *
+ * @author Julien Le Dem
+ *
+ */
+public class CombineIsolatedInputFormat<K, V> extends InputFormat<K, V> {
+
+  @Override
+  public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException {
+    return new MapreduceJobContextManager(context).getCombinedSplits();
+  }
+
+  @Override
+  public RecordReader<K, V> createRecordReader(InputSplit split, TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    return new CombinedIsolatedRecordReader<K, V>();
+  }
+
+}
@@ -0,0 +1,81 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+/**
+ * a group of splits from one or many specs read in the same task
+ *
+ * @author Julien Le Dem
+ *
+ */
+public class CombinedIsolatedInputSplit extends InputSplit implements Writable, Configurable {
+
+  private IsolatedInputSplit[] splits;
+  private long length;
+  // only used for scheduling, not serialized
+  private String[] locations = new String[0];
+  transient private Configuration configuration;
+
+  public CombinedIsolatedInputSplit() {
+    // Writable
+  }
+
+  CombinedIsolatedInputSplit(IsolatedInputSplit[] splits, long length, String[] locations, Configuration configuration) {
+    this.splits = splits;
+    this.length = length;
+    this.locations = locations;
+    this.configuration = configuration;
+  }
+
+  @Override
+  public long getLength() throws IOException, InterruptedException {
+    return length;
+  }
+
+  @Override
+  public String[] getLocations() throws IOException, InterruptedException {
+    return locations;
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    this.length = in.readLong();
+    this.splits = new IsolatedInputSplit[in.readInt()];
+    for (int i = 0; i < splits.length; i++) {
+      splits[i] = new IsolatedInputSplit();
+      splits[i].setConf(configuration);
+      splits[i].readFields(in);
+    }
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(length);
+    out.writeInt(splits.length);
+    for (IsolatedInputSplit split : splits) {
+      split.write(out);
+    }
+  }
+
+  IsolatedInputSplit[] getSplits() {
+    return splits;
+  }
+
+  @Override
+  public Configuration getConf() {
+    return configuration;
+  }
+
+  @Override
+  public void setConf(Configuration configuration) {
+    this.configuration = configuration;
+  }
+
+}
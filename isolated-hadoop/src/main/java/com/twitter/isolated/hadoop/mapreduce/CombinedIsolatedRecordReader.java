@@ -0,0 +1,107 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.twitter.isolated.hadoop.ContextSwitch;
+import com.twitter.isolated.hadoop.RecordCounters;
+
+/**
+ * Reads the splits of a {@link CombinedIsolatedInputSplit} one after the other.
+ * Each reader is created and initialized in the context of the spec of its split and its records are read
+ * with the class loader of that spec as the context class loader, see {@link IsolatedRecordReader}.
+ * The specs combined must produce the same key and value classes.
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class CombinedIsolatedRecordReader<K, V> extends RecordReader<K, V> {
+  private IsolatedInputSplit[] splits;
+  private long length;
+  private TaskAttemptContext context;
+  private MapreduceTaskAttemptContextManager contextManager;
+
+  private int index = -1;
+  private RecordReader<K, V> current;
+  private long currentLength;
+  private long completedLength;
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    CombinedIsolatedInputSplit combinedSplit = (CombinedIsolatedInputSplit)split;
+    this.splits = combinedSplit.getSplits();
+    this.length = combinedSplit.getLength();
+    this.context = context;
+    this.contextManager = new MapreduceTaskAttemptContextManager(context);
+    nextReader();
+  }
+
+  /**
+   * closes the current reader and opens the next one
+   * @return false if there are no more splits
+   */
+  private boolean nextReader() throws IOException, InterruptedException {
+    if (current != null) {
+      completedLength += currentLength;
+      current.close();
+      current = null;
+    }
+    ++index;
+    if (index >= splits.length) {
+      return false;
+    }
+    IsolatedInputSplit split = splits[index];
+    currentLength = split.getLength();
+    String specID = split.getInputSpecID();
+    current = new IsolatedRecordReader<K, V>(
+        contextManager.<K, V>createRecordReader(split),
+        new ContextSwitch(contextManager.getClassLoader(specID)),
+        RecordCounters.forReader(context.getConfiguration(), contextManager.getCountersID(specID)));
+    current.initialize(split, context);
+    return true;
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    while (current != null) {
+      if (current.nextKeyValue()) {
+        return true;
+      }
+      nextReader();
+    }
+    return false;
+  }
+
+  @Override
+  public K getCurrentKey() throws IOException, InterruptedException {
+    return current.getCurrentKey();
+  }
+
+  @Override
+  public V getCurrentValue() throws IOException, InterruptedException {
+    return current.getCurrentValue();
+  }
+
+  @Override
+  public float getProgress() throws IOException, InterruptedException {
+    if (current == null) {
+      return 1.0f;
+    }
+    if (length == 0) {
+      return (float)index / splits.length;
+    }
+    return Math.min(1.0f, (completedLength + current.getProgress() * currentLength) / length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (current != null) {
+      current.close();
+      current = null;
+    }
+  }
+}
@@ -9,6 +9,9 @@ import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
+import com.twitter.isolated.hadoop.ContextSwitch;
+import com.twitter.isolated.hadoop.RecordCounters;
+
 public class IsolatedInputFormat<K, V> extends InputFormat<K, V> {
 
   @Override
@@ -19,7 +22,12 @@ public class IsolatedInputFormat<K, V> extends InputFormat<K, V> {
   @Override
   public RecordReader<K, V> createRecordReader(InputSplit split, TaskAttemptContext context)
       throws IOException, InterruptedException {
-    return new IsolatedRecordReader<K, V>(new MapreduceTaskAttemptContextManager(context).<K, V>createRecordReader(split));
+    String specID = ((IsolatedInputSplit)split).getInputSpecID();
+    MapreduceTaskAttemptContextManager contextManager = new MapreduceTaskAttemptContextManager(context);
+    return new IsolatedRecordReader<K, V>(
+        contextManager.<K, V>createRecordReader(split),
+        new ContextSwitch(contextManager.getClassLoader(specID)),
+        RecordCounters.forReader(context.getConfiguration(), contextManager.getCountersID(specID)));
   }
 
 }
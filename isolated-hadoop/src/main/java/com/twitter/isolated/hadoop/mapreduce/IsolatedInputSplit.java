@@ -2,20 +2,26 @@ package com.twitter.isolated.hadoop.mapreduce;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Writable;
-import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.io.serializer.Serializer;
 import org.apache.hadoop.mapreduce.InputSplit;
 
+import com.twitter.isolated.hadoop.SplitCodec;
+import com.twitter.isolated.hadoop.SplitCodec.Envelope;
+import com.twitter.isolated.hadoop.SplitCodec.PayloadWriter;
+import com.twitter.isolated.hadoop.SplitStore;
+
 public class IsolatedInputSplit extends InputSplit implements Writable, Configurable {
 
   private InputSplit delegate;
+  // the delegate as read until it is needed
+  private Envelope envelope;
   private String inputSpecID;
   transient private Configuration configuration;
 
@@ -32,36 +38,68 @@ public class IsolatedInputSplit extends InputSplit implements Writable, Configur
 
   @Override
   public long getLength() throws IOException, InterruptedException {
-    return delegate.getLength();
+    return delegate == null ? envelope.getLength() : delegate.getLength();
   }
 
   @Override
   public String[] getLocations() throws IOException, InterruptedException {
-    return delegate.getLocations();
+    return delegate == null ? envelope.getLocations() : delegate.getLocations();
   }
 
+  /**
+   * The delegate is deserialized in its context only when {@link #getDelegate()} is called
+   */
   @Override
   public void readFields(DataInput in) throws IOException {
-    this.inputSpecID = in.readUTF();
-    this.delegate = deserialize((InputStream)in, in.readUTF());
+    Envelope envelope = SplitCodec.fromConf(configuration).read(in);
+    this.inputSpecID = envelope.getSpecID();
+    this.delegate = null;
+    this.envelope = envelope;
+    if (!envelope.isSized()) {
+      // length and locations are known only from the delegate
+      getDelegate();
+    }
   }
 
-  private InputSplit deserialize(InputStream in, String name) throws IOException {
-    return new MapreduceContextManager(configuration).deserializeSplit(in, inputSpecID, name);
+  @Override
+  public void write(DataOutput out) throws IOException {
+    SplitCodec codec = SplitCodec.fromConf(configuration);
+    codec.write(out, delegate == null ? envelope : encode(codec));
   }
 
-  @Override
-  public void write(final DataOutput out) throws IOException {
-    out.writeUTF(this.inputSpecID);
-    Class<?> delegateClass = this.delegate.getClass();
-    out.writeUTF(delegateClass.getName());
-    serializeDelegate(new AdapterOutput(out), delegateClass);
+  /**
+   * moves the delegate to the side file, the split then only keeps its position
+   * @param writer the side file
+   * @throws IOException
+   */
+  void store(SplitStore.Writer writer) throws IOException {
+    SplitCodec codec = SplitCodec.fromConf(configuration);
+    this.envelope = codec.store(encode(codec), writer);
+    this.delegate = null;
   }
 
-  private <T> void serializeDelegate(OutputStream out, Class<T> delegateClass) throws IOException {
+  private Envelope encode(final SplitCodec codec) throws IOException {
+    final Class<?> delegateClass = this.delegate.getClass();
+    long length;
+    String[] locations;
+    try {
+      length = delegate.getLength();
+      locations = delegate.getLocations();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("thread interrupted", e);
+    }
+    return codec.encode(inputSpecID, delegateClass.getName(), length, locations, new PayloadWriter() {
+      @Override
+      public void write(DataOutputStream payload) throws IOException {
+        serializeDelegate(codec, payload, delegateClass);
+      }
+    });
+  }
+
+  private <T> void serializeDelegate(SplitCodec codec, OutputStream out, Class<T> delegateClass) throws IOException {
     // TODO: this should happen in context of the classloader and conf
-    SerializationFactory factory = new SerializationFactory(configuration);
-    Serializer<T> serializer = factory.getSerializer(delegateClass);
+    Serializer<T> serializer = codec.getSerialization(inputSpecID, delegateClass, configuration).getSerializer(delegateClass);
     serializer.open(out);
     serializer.serialize(delegateClass.cast(this.delegate));
   }
@@ -70,7 +108,15 @@ public class IsolatedInputSplit extends InputSplit implements Writable, Configur
     return inputSpecID;
   }
 
-  InputSplit getDelegate() {
+  /**
+   * @return the delegate split, deserialized in the context of its spec the first time
+   * @throws IOException if it can not be deserialized
+   */
+  InputSplit getDelegate() throws IOException {
+    if (delegate == null) {
+      delegate = new MapreduceContextManager(configuration).deserializeSplit(envelope.getPayload(), inputSpecID, envelope.getClassName());
+      envelope = null;
+    }
     return delegate;
   }
 
@@ -84,22 +130,4 @@ public class IsolatedInputSplit extends InputSplit implements Writable, Configur
     this.configuration = configuration;
   }
 
-  private static final class AdapterOutput extends OutputStream {
-    private final DataOutput out;
-
-    private AdapterOutput(DataOutput out) {
-      this.out = out;
-    }
-
-    @Override
-    public void write(int b) throws IOException {
-      out.write(b);
-    }
-
-    @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-      out.write(b, off, len);
-    }
-  }
-
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus.State;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Commits several output specs: each step is done for every output in its context, in the order of the output specs.
+ * Setup and commit stop at the first failure, abort and cleanup go through all the outputs.
+ * A task needs a commit if one of the outputs needs one. Committing the job is not atomic across outputs.
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class IsolatedOutputCommitter extends OutputCommitter {
+  private final List<OutputCommitter> delegates;
+
+  /**
+   * @param delegates the committers in the order of the output specs
+   */
+  IsolatedOutputCommitter(List<OutputCommitter> delegates) {
+    this.delegates = delegates;
+  }
+
+  @Override
+  public void setupJob(JobContext context) throws IOException {
+    new MapreduceJobContextManager(context).setupJob(delegates);
+  }
+
+  @Override
+  public void commitJob(JobContext context) throws IOException {
+    new MapreduceJobContextManager(context).commitJob(delegates);
+  }
+
+  @Override
+  @Deprecated
+  public void cleanupJob(JobContext context) throws IOException {
+    new MapreduceJobContextManager(context).cleanupJob(delegates);
+  }
+
+  @Override
+  public void abortJob(JobContext context, State state) throws IOException {
+    new MapreduceJobContextManager(context).abortJob(delegates, state);
+  }
+
+  @Override
+  public void setupTask(TaskAttemptContext context) throws IOException {
+    new MapreduceTaskAttemptContextManager(context).setupTask(delegates);
+  }
+
+  @Override
+  public boolean needsTaskCommit(TaskAttemptContext context) throws IOException {
+    return new MapreduceTaskAttemptContextManager(context).needsTaskCommit(delegates);
+  }
+
+  @Override
+  public void commitTask(TaskAttemptContext context) throws IOException {
+    new MapreduceTaskAttemptContextManager(context).commitTask(delegates);
+  }
+
+  @Override
+  public void abortTask(TaskAttemptContext context) throws IOException {
+    new MapreduceTaskAttemptContextManager(context).abortTask(delegates);
+  }
+}
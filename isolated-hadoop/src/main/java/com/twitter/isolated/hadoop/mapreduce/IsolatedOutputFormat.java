@@ -1,6 +1,8 @@
 package com.twitter.isolated.hadoop.mapreduce;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.OutputCommitter;
@@ -8,6 +10,12 @@ import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
+import com.twitter.isolated.hadoop.AsyncRecordWriter;
+import com.twitter.isolated.hadoop.IsolationCounters;
+import com.twitter.isolated.hadoop.OutputRouter;
+import com.twitter.isolated.hadoop.RecordCounters;
+import com.twitter.isolated.hadoop.Spec;
+
 public class IsolatedOutputFormat<K, V> extends OutputFormat<K, V> {
 
   @Override
@@ -22,10 +30,39 @@ public class IsolatedOutputFormat<K, V> extends OutputFormat<K, V> {
     return new MapreduceTaskAttemptContextManager(context).getOutputCommitter();
   }
 
+  /**
+   * @return the writer of the output spec or one routing the records to the writers of the output specs if there are several
+   */
   @Override
   public RecordWriter<K, V> getRecordWriter(TaskAttemptContext context)
       throws IOException, InterruptedException {
-    return new MapreduceTaskAttemptContextManager(context).getRecordWriter();
+    MapreduceTaskAttemptContextManager contextManager = new MapreduceTaskAttemptContextManager(context);
+    List<Spec> outputSpecs = contextManager.getOutputSpecs();
+    if (outputSpecs.size() == 1) {
+      return getRecordWriter(context, contextManager, outputSpecs.get(0));
+    }
+    List<RecordWriter<K, V>> writers = new ArrayList<RecordWriter<K, V>>();
+    List<String> outputSpecIDs = new ArrayList<String>();
+    for (Spec outputSpec : outputSpecs) {
+      writers.add(getRecordWriter(context, contextManager, outputSpec));
+      outputSpecIDs.add(outputSpec.getId());
+    }
+    return new RoutingRecordWriter<K, V>(writers, outputSpecIDs, OutputRouter.<K, V>fromConf(context.getConfiguration()));
+  }
+
+  private RecordWriter<K, V> getRecordWriter(TaskAttemptContext context, MapreduceTaskAttemptContextManager contextManager, Spec outputSpec)
+      throws IOException {
+    RecordWriter<K, V> recordWriter = contextManager.getRecordWriter(outputSpec);
+    IsolationCounters.publish(context);
+    String outputSpecID = outputSpec.getId();
+    String countersID = contextManager.getCountersID(outputSpecID);
+    RecordCounters counters = RecordCounters.forWriter(context.getConfiguration(), countersID);
+    if (counters == null && !AsyncRecordWriter.isEnabled(context.getConfiguration())) {
+      return recordWriter;
+    }
+    IsolatedRecordWriter<K, V> isolatedWriter = new IsolatedRecordWriter<K, V>(recordWriter, counters);
+    isolatedWriter.async(context.getConfiguration(), countersID, contextManager.getClassLoader(outputSpecID));
+    return isolatedWriter;
   }
 
 }
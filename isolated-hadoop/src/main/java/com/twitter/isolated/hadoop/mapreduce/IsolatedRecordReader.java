@@ -6,42 +6,172 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
+import com.twitter.isolated.hadoop.ContextSwitch;
+import com.twitter.isolated.hadoop.IsolationCounters;
+import com.twitter.isolated.hadoop.RecordCounters;
+import com.twitter.isolated.hadoop.RecordPrefetcher;
+
+/**
+ * calls the delegate with the class loader of its spec as the context class loader,
+ * counts the records it reads and reads them ahead if prefetching.
+ * The key, value and progress of a record are read from the delegate in the same call as the record,
+ * so that reading a record switches the context class loader once
+ *
+ * @author Julien Le Dem
+ *
+ */
 final class IsolatedRecordReader<K, V> extends RecordReader<K, V> {
   private final RecordReader<K, V> delegate;
+  private final ContextSwitch contextSwitch;
+  private final RecordCounters counters;
+  private TaskAttemptContext context;
+  private long splitLength;
+  private RecordPrefetcher<K, V> prefetcher;
+  private K key;
+  private V value;
+  // the progress after the current record, negative before the first one
+  private float progress = -1;
 
-  IsolatedRecordReader(RecordReader<K, V> delegate) {
+  /**
+   * @param delegate the actual reader
+   * @param contextSwitch to the class loader of the spec of the delegate
+   * @param counters null if records should not be counted
+   */
+  IsolatedRecordReader(RecordReader<K, V> delegate, ContextSwitch contextSwitch, RecordCounters counters) {
     this.delegate = delegate;
+    this.contextSwitch = contextSwitch;
+    this.counters = counters;
   }
 
   @Override
   public void close() throws IOException {
-    delegate.close();
+    if (prefetcher != null) {
+      // the delegate is not used anymore once the prefetcher is closed
+      prefetcher.close();
+    }
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      if (counters != null) {
+        counters.flush(bytesRead());
+      }
+      delegate.close();
+    } finally {
+      contextSwitch.exit(previous);
+    }
+    IsolationCounters.publish(context);
+  }
 
+  private long bytesRead() {
+    try {
+      return (long)(delegate.getProgress() * splitLength);
+    } catch (Exception e) {
+      // progress is best effort
+      return 0;
+    }
   }
 
   @Override
   public K getCurrentKey() throws IOException, InterruptedException {
-    return delegate.getCurrentKey();
+    return key;
   }
 
   @Override
   public V getCurrentValue() throws IOException, InterruptedException {
-    return delegate.getCurrentValue();
+    return value;
   }
 
   @Override
   public float getProgress() throws IOException, InterruptedException {
-    return delegate.getProgress();
+    if (prefetcher != null) {
+      return prefetcher.getProgress();
+    }
+    if (progress >= 0) {
+      return progress;
+    }
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      return delegate.getProgress();
+    } finally {
+      contextSwitch.exit(previous);
+    }
   }
 
   @Override
   public void initialize(InputSplit split, TaskAttemptContext context)
       throws IOException, InterruptedException {
-    new MapreduceTaskAttemptContextManager(context).initializeRecordReader(delegate, split);
+    this.context = context;
+    this.splitLength = split.getLength();
+    MapreduceTaskAttemptContextManager contextManager = new MapreduceTaskAttemptContextManager(context);
+    contextManager.initializeRecordReader(delegate, split);
+    IsolationCounters.publish(context);
+    String specID = ((IsolatedInputSplit)split).getInputSpecID();
+    prefetcher = RecordPrefetcher.forReader(context.getConfiguration(), contextManager.getCountersID(specID), contextSwitch.getClassLoader(),
+        new RecordPrefetcher.Source<K, V>() {
+          @Override
+          public boolean next() throws IOException, InterruptedException {
+            return readNext();
+          }
+
+          @Override
+          public K getKey() throws IOException, InterruptedException {
+            return delegate.getCurrentKey();
+          }
+
+          @Override
+          public V getValue() throws IOException, InterruptedException {
+            return delegate.getCurrentValue();
+          }
+
+          @Override
+          public float getProgress() throws IOException, InterruptedException {
+            return delegate.getProgress();
+          }
+
+          @Override
+          public long getPos() {
+            // the new API has no position
+            return 0;
+          }
+        });
   }
 
   @Override
   public boolean nextKeyValue() throws IOException, InterruptedException {
-    return delegate.nextKeyValue();
+    if (prefetcher == null) {
+      ClassLoader previous = contextSwitch.enter();
+      try {
+        boolean hasNext = readNext();
+        key = hasNext ? delegate.getCurrentKey() : null;
+        value = hasNext ? delegate.getCurrentValue() : null;
+        progress = delegate.getProgress();
+        return hasNext;
+      } finally {
+        contextSwitch.exit(previous);
+      }
+    }
+    if (!prefetcher.next()) {
+      return false;
+    }
+    key = prefetcher.readKey(key);
+    value = prefetcher.readValue(value);
+    return true;
+  }
+
+  /**
+   * reads the next record from the delegate, in the background thread when prefetching
+   */
+  private boolean readNext() throws IOException, InterruptedException {
+    ClassLoader previous = contextSwitch.enter();
+    try {
+      if (counters == null) {
+        return delegate.nextKeyValue();
+      }
+      long start = counters.start();
+      boolean hasNext = delegate.nextKeyValue();
+      counters.end(start, hasNext);
+      return hasNext;
+    } finally {
+      contextSwitch.exit(previous);
+    }
   }
-}
\ No newline at end of file
+}
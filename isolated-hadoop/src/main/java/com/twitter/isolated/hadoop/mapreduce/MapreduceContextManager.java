@@ -5,12 +5,12 @@ import java.io.InputStream;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.serializer.Deserializer;
-import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.util.ReflectionUtils;
 
 import com.twitter.isolated.hadoop.ContextManager;
+import com.twitter.isolated.hadoop.SplitCodec;
 
 class MapreduceContextManager extends ContextManager {
 
@@ -24,8 +24,8 @@ class MapreduceContextManager extends ContextManager {
 
   // methods that make sure delegated calls are executed in the right context
 
-  InputSplit deserializeSplit(final InputStream in, String inputSpecID, final String name) throws IOException {
-    return callInContext(inputSpecID, new ContextualCall<InputSplit>() {
+  InputSplit deserializeSplit(final InputStream in, final String inputSpecID, final String name) throws IOException {
+    return callInContext(inputSpecID, "readSplit", new ContextualCall<InputSplit>() {
       public InputSplit call(CallContext ctxt) throws IOException,
           InterruptedException {
         try {
@@ -39,8 +39,7 @@ class MapreduceContextManager extends ContextManager {
       // we need to define a common T for these calls to work together
       private <T extends InputSplit> InputSplit deserialize(final InputStream in, Configuration localConf, Class<T> splitClass) throws IOException {
         T delegateInstance = ReflectionUtils.newInstance(splitClass, localConf);
-        SerializationFactory factory = new SerializationFactory(localConf);
-        Deserializer<T> deserializer = factory.getDeserializer(splitClass);
+        Deserializer<T> deserializer = SplitCodec.fromConf(globalConf).getSerialization(inputSpecID, splitClass, localConf).getDeserializer(splitClass);
         deserializer.open(in);
         return deserializer.deserialize(delegateInstance);
       }
@@ -2,14 +2,24 @@ package com.twitter.isolated.hadoop.mapreduce;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus.State;
+import org.apache.hadoop.mapreduce.OutputCommitter;
 import org.apache.hadoop.mapreduce.OutputFormat;
 
+import com.twitter.isolated.hadoop.IsolationCounters;
 import com.twitter.isolated.hadoop.Spec;
+import com.twitter.isolated.hadoop.SplitCodec;
+import com.twitter.isolated.hadoop.SplitCombiner;
+import com.twitter.isolated.hadoop.SplitStore;
+import com.twitter.isolated.hadoop.SplitCombiner.Combined;
 
 class MapreduceJobContextManager extends MapreduceContextManager {
 
@@ -21,31 +31,144 @@ class MapreduceJobContextManager extends MapreduceContextManager {
   }
 
   List<InputSplit> getSplits() throws IOException {
+    List<List<InputSplit>> splitsBySpec = callInEachContext(getInputSpecs(), "getSplits", new JobContextualCall<List<InputSplit>>() {
+      List<InputSplit> call(JobCallContext ctxt) throws IOException, InterruptedException {
+        InputFormat<?, ?> inputFormat = ctxt.newInstanceFromSpec(InputFormat.class);
+        return inputFormat.getSplits(ctxt.localJobContext);
+      }
+    });
+    // the delegate classes are saved in the job directory so that they are written as indexes.
+    // The conf of the JobContext is a copy that does not reach job.xml:
+    // without job directory each split has the name of its class
+    Set<String> splitClasses = new LinkedHashSet<String>();
+    for (List<InputSplit> splits : splitsBySpec) {
+      for (InputSplit split : splits) {
+        splitClasses.add(split.getClass().getName());
+      }
+    }
+    if (!SplitStore.saveSplitClassesInJobDir(globalConf, splitClasses)) {
+      splitClasses.clear();
+    }
+    SplitCodec.setSplitClasses(globalConf, splitClasses);
+    SplitStore.Writer store = SplitStore.create(globalConf);
     final List<InputSplit> finalSplits = new ArrayList<InputSplit>();
-    for (final Spec inputSpec : getInputSpecs()) {
-      callInContext(inputSpec, new JobContextualRun() {
-        public void run(JobCallContext ctxt) throws IOException, InterruptedException {
-          InputFormat<?, ?> inputFormat = ctxt.newInstanceFromSpec(InputFormat.class);
-          List<InputSplit> splits = inputFormat.getSplits(ctxt.localJobContext);
-          for (InputSplit inputSplit : splits) {
-            finalSplits.add(new IsolatedInputSplit(ctxt.spec.getId(), inputSplit, globalConf));
-          }
+    Iterator<Spec> specs = getInputSpecs().iterator();
+    for (List<InputSplit> splits : splitsBySpec) {
+      String specID = specs.next().getId();
+      for (InputSplit inputSplit : splits) {
+        finalSplits.add(new IsolatedInputSplit(specID, inputSplit, globalConf));
+      }
+    }
+    if (store != null) {
+      try {
+        for (InputSplit split : finalSplits) {
+          ((IsolatedInputSplit)split).store(store);
         }
-      });
+      } finally {
+        store.close();
+      }
     }
+    // no counters at planning time
+    IsolationCounters.log();
     return finalSplits;
   }
 
+  List<InputSplit> getCombinedSplits() throws IOException, InterruptedException {
+    SplitCombiner<IsolatedInputSplit> combiner = new SplitCombiner<IsolatedInputSplit>(globalConf);
+    for (InputSplit split : getSplits()) {
+      combiner.add((IsolatedInputSplit)split, split.getLength(), split.getLocations());
+    }
+    List<InputSplit> result = new ArrayList<InputSplit>();
+    for (Combined<IsolatedInputSplit> combined : combiner.combine()) {
+      List<IsolatedInputSplit> splits = combined.getSplits();
+      result.add(new CombinedIsolatedInputSplit(
+          splits.toArray(new IsolatedInputSplit[splits.size()]), combined.getLength(), combined.getLocations(), globalConf));
+    }
+    return result;
+  }
+
   void checkOutputSpecs() throws IOException {
-    callInContext(getOutputSpec(), new JobContextualRun() {
-      @Override
-      void run(JobCallContext ctxt) throws IOException, InterruptedException {
-        OutputFormat<?, ?> outputFormat = ctxt.newInstanceFromSpec(OutputFormat.class);
-        outputFormat.checkOutputSpecs(ctxt.localJobContext);
+    for (Spec outputSpec : getOutputSpecs()) {
+      callInContext(outputSpec, "checkOutputSpecs", new JobContextualRun() {
+        @Override
+        void run(JobCallContext ctxt) throws IOException, InterruptedException {
+          OutputFormat<?, ?> outputFormat = ctxt.newInstanceFromSpec(OutputFormat.class);
+          outputFormat.checkOutputSpecs(ctxt.localJobContext);
+        }
+      });
+    }
+  }
+
+  // output committer of several output specs
+
+  void setupJob(List<OutputCommitter> committers) throws IOException {
+    forEachOutput("setupJob", committers, false, new CommitterRun() {
+      void run(OutputCommitter committer, JobContext context) throws IOException {
+        committer.setupJob(context);
+      }
+    });
+  }
+
+  void commitJob(List<OutputCommitter> committers) throws IOException {
+    forEachOutput("commitJob", committers, false, new CommitterRun() {
+      void run(OutputCommitter committer, JobContext context) throws IOException {
+        committer.commitJob(context);
+      }
+    });
+  }
+
+  @SuppressWarnings("deprecation")
+  void cleanupJob(List<OutputCommitter> committers) throws IOException {
+    forEachOutput("cleanupJob", committers, true, new CommitterRun() {
+      void run(OutputCommitter committer, JobContext context) throws IOException {
+        committer.cleanupJob(context);
+      }
+    });
+  }
+
+  void abortJob(List<OutputCommitter> committers, final State state) throws IOException {
+    forEachOutput("abortJob", committers, true, new CommitterRun() {
+      void run(OutputCommitter committer, JobContext context) throws IOException {
+        committer.abortJob(context, state);
       }
     });
   }
 
+  private abstract static class CommitterRun {
+    abstract void run(OutputCommitter committer, JobContext context) throws IOException;
+  }
+
+  /**
+   * calls the committer of each output spec in its context
+   * @param committers the committers in the order of the output specs
+   * @param all true to call all of them even if one fails, the first error is thrown after
+   */
+  private void forEachOutput(String operation, List<OutputCommitter> committers, boolean all, final CommitterRun run) throws IOException {
+    IOException error = null;
+    Iterator<OutputCommitter> it = committers.iterator();
+    for (Spec outputSpec : getOutputSpecs()) {
+      final OutputCommitter committer = it.next();
+      try {
+        callInContext(outputSpec, operation, new JobContextualRun() {
+          @Override
+          void run(JobCallContext ctxt) throws IOException, InterruptedException {
+            run.run(committer, ctxt.localJobContext);
+          }
+        });
+      } catch (IOException e) {
+        if (!all) {
+          throw e;
+        }
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
   private static class JobCallContext extends CallContext {
 
     private JobContext localJobContext;
@@ -57,19 +180,29 @@ class MapreduceJobContextManager extends MapreduceContextManager {
 
   }
 
-  private abstract class JobContextualRun extends ContextualCall<Void> {
+  private abstract class JobContextualRun extends JobContextualCall<Void> {
 
     abstract void run(JobCallContext ctxt) throws IOException, InterruptedException;
 
     @Override
-    final public Void call(CallContext ctxt) throws IOException, InterruptedException {
-      this.run(
+    final Void call(JobCallContext ctxt) throws IOException, InterruptedException {
+      this.run(ctxt);
+      return null;
+    }
+  }
+
+  private abstract class JobContextualCall<T> extends ContextualCall<T> {
+
+    abstract T call(JobCallContext ctxt) throws IOException, InterruptedException;
+
+    @Override
+    final public T call(CallContext ctxt) throws IOException, InterruptedException {
+      return this.call(
           new JobCallContext(
               ctxt,
               new JobContext(
                   ctxt.localConf(),
                   globalJobContext.getJobID())));
-      return null;
     }
   }
 }
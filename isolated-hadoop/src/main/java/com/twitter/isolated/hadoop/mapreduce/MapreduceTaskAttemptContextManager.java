@@ -1,6 +1,9 @@
 package com.twitter.isolated.hadoop.mapreduce;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.InputSplit;
@@ -10,6 +13,8 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
+import com.twitter.isolated.hadoop.Spec;
+
 class MapreduceTaskAttemptContextManager extends MapreduceContextManager {
 
   private final TaskAttemptContext globalTaskContext;
@@ -21,27 +26,45 @@ class MapreduceTaskAttemptContextManager extends MapreduceContextManager {
 
   <K, V> RecordReader<K, V> createRecordReader(InputSplit split) throws IOException {
     final IsolatedInputSplit isolatedSplit = (IsolatedInputSplit)split;
-    return callInContext(isolatedSplit.getInputSpecID(), new TaskContextualCall<RecordReader<K, V>>() {
+    // deserialized in its own context
+    final InputSplit delegateSplit = isolatedSplit.getDelegate();
+    return callInContext(isolatedSplit.getInputSpecID(), "createRecordReader", new TaskContextualCall<RecordReader<K, V>>() {
       public RecordReader<K, V> call(TaskCallContext ctxt) throws IOException,
           InterruptedException {
         @SuppressWarnings("unchecked") // wishful thinking
         InputFormat<K, V> inputFormat = ctxt.newInstanceFromSpec(InputFormat.class);
-        return inputFormat.createRecordReader(isolatedSplit.getDelegate(), ctxt.localTaskContext);
+        return inputFormat.createRecordReader(delegateSplit, ctxt.localTaskContext);
       }
     });
   }
 
   <K, V> void initializeRecordReader(final RecordReader<K, V> delegate, InputSplit split) throws IOException {
     final IsolatedInputSplit isolatedSplit = (IsolatedInputSplit)split;
-    callInContext(isolatedSplit.getInputSpecID(), new TaskContextualRun() {
+    final InputSplit delegateSplit = isolatedSplit.getDelegate();
+    callInContext(isolatedSplit.getInputSpecID(), "initialize", new TaskContextualRun() {
       public void run(TaskCallContext ctxt) throws IOException, InterruptedException {
-        delegate.initialize(isolatedSplit.getDelegate(), ctxt.localTaskContext);
+        delegate.initialize(delegateSplit, ctxt.localTaskContext);
       }
     });
   }
 
+  /**
+   * @return the committer of the output spec or one committing all of them if there are several
+   */
   OutputCommitter getOutputCommitter() throws IOException {
-    return callInContext(getOutputSpec(), new TaskContextualCall<OutputCommitter>() {
+    List<Spec> outputSpecs = getOutputSpecs();
+    if (outputSpecs.size() == 1) {
+      return getOutputCommitter(outputSpecs.get(0));
+    }
+    List<OutputCommitter> committers = new ArrayList<OutputCommitter>();
+    for (Spec outputSpec : outputSpecs) {
+      committers.add(getOutputCommitter(outputSpec));
+    }
+    return new IsolatedOutputCommitter(committers);
+  }
+
+  private OutputCommitter getOutputCommitter(Spec outputSpec) throws IOException {
+    return callInContext(outputSpec, "getOutputCommitter", new TaskContextualCall<OutputCommitter>() {
       @Override
       OutputCommitter call(TaskCallContext ctxt) throws IOException, InterruptedException {
         OutputFormat<?, ?> outputFormat = ctxt.newInstanceFromSpec(OutputFormat.class);
@@ -50,8 +73,8 @@ class MapreduceTaskAttemptContextManager extends MapreduceContextManager {
     });
   }
 
-  <K,V> RecordWriter<K, V> getRecordWriter() throws IOException {
-    return callInContext(getOutputSpec(), new TaskContextualCall<RecordWriter<K, V>>() {
+  <K,V> RecordWriter<K, V> getRecordWriter(Spec outputSpec) throws IOException {
+    return callInContext(outputSpec, "getRecordWriter", new TaskContextualCall<RecordWriter<K, V>>() {
       @Override
       RecordWriter<K, V> call(TaskCallContext ctxt) throws IOException, InterruptedException {
         @SuppressWarnings("unchecked") // wishful thinking
@@ -61,6 +84,79 @@ class MapreduceTaskAttemptContextManager extends MapreduceContextManager {
     });
   }
 
+  // output committer of several output specs
+
+  void setupTask(List<OutputCommitter> committers) throws IOException {
+    forEachOutput("setupTask", committers, false, new CommitterRun() {
+      void run(OutputCommitter committer, TaskAttemptContext context) throws IOException {
+        committer.setupTask(context);
+      }
+    });
+  }
+
+  boolean needsTaskCommit(List<OutputCommitter> committers) throws IOException {
+    final boolean[] needed = { false };
+    forEachOutput("needsTaskCommit", committers, false, new CommitterRun() {
+      void run(OutputCommitter committer, TaskAttemptContext context) throws IOException {
+        needed[0] |= committer.needsTaskCommit(context);
+      }
+    });
+    return needed[0];
+  }
+
+  void commitTask(List<OutputCommitter> committers) throws IOException {
+    forEachOutput("commitTask", committers, false, new CommitterRun() {
+      void run(OutputCommitter committer, TaskAttemptContext context) throws IOException {
+        if (committer.needsTaskCommit(context)) {
+          committer.commitTask(context);
+        }
+      }
+    });
+  }
+
+  void abortTask(List<OutputCommitter> committers) throws IOException {
+    forEachOutput("abortTask", committers, true, new CommitterRun() {
+      void run(OutputCommitter committer, TaskAttemptContext context) throws IOException {
+        committer.abortTask(context);
+      }
+    });
+  }
+
+  private abstract static class CommitterRun {
+    abstract void run(OutputCommitter committer, TaskAttemptContext context) throws IOException;
+  }
+
+  /**
+   * calls the committer of each output spec in its context
+   * @param committers the committers in the order of the output specs
+   * @param all true to call all of them even if one fails, the first error is thrown after
+   */
+  private void forEachOutput(String operation, List<OutputCommitter> committers, boolean all, final CommitterRun run) throws IOException {
+    IOException error = null;
+    Iterator<OutputCommitter> it = committers.iterator();
+    for (Spec outputSpec : getOutputSpecs()) {
+      final OutputCommitter committer = it.next();
+      try {
+        callInContext(outputSpec, operation, new TaskContextualRun() {
+          @Override
+          void run(TaskCallContext ctxt) throws IOException, InterruptedException {
+            run.run(committer, ctxt.localTaskContext);
+          }
+        });
+      } catch (IOException e) {
+        if (!all) {
+          throw e;
+        }
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
   private static class TaskCallContext extends CallContext {
 
     private final TaskAttemptContext localTaskContext;
@@ -0,0 +1,63 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.twitter.isolated.hadoop.OutputRouter;
+import com.twitter.isolated.hadoop.OutputRouter.Routes;
+
+/**
+ * writes each record to the outputs chosen by the {@link OutputRouter}
+ *
+ * @author Julien Le Dem
+ *
+ */
+final class RoutingRecordWriter<K, V> extends RecordWriter<K, V> {
+  private final List<RecordWriter<K, V>> writers;
+  private final OutputRouter<K, V> router;
+  private final Routes routes;
+
+  /**
+   * @param writers the writers of the output specs
+   * @param outputSpecIDs the output specs, in the same order
+   * @param router chooses the outputs of each record
+   */
+  RoutingRecordWriter(List<RecordWriter<K, V>> writers, List<String> outputSpecIDs, OutputRouter<K, V> router) {
+    this.writers = writers;
+    this.router = router;
+    this.routes = new Routes(outputSpecIDs);
+  }
+
+  @Override
+  public void write(K key, V value) throws IOException, InterruptedException {
+    routes.clear();
+    router.route(key, value, routes);
+    for (int i = 0; i < routes.size(); i++) {
+      writers.get(routes.get(i)).write(key, value);
+    }
+  }
+
+  /**
+   * closes all the writers, the first error is thrown once they are all closed
+   */
+  @Override
+  public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+    IOException error = null;
+    for (RecordWriter<K, V> writer : writers) {
+      try {
+        writer.close(context);
+      } catch (IOException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+}
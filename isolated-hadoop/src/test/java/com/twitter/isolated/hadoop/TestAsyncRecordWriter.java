@@ -0,0 +1,189 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.AsyncRecordWriter.Handoff;
+import com.twitter.isolated.hadoop.AsyncRecordWriter.Sink;
+
+public class TestAsyncRecordWriter {
+
+  private static final ClassLoader SPEC_CLASS_LOADER = new URLClassLoader(new URL[0]);
+
+  /**
+   * keeps what it is given, failing after failAfter records if >= 0
+   */
+  private static class ListSink implements Sink<LongWritable, Text> {
+    private final int failAfter;
+    private final List<String> written = new ArrayList<String>();
+    private final List<LongWritable> keys = new ArrayList<LongWritable>();
+
+    ListSink(int failAfter) {
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public void write(LongWritable key, Text value) throws IOException {
+      assertSame(SPEC_CLASS_LOADER, Thread.currentThread().getContextClassLoader());
+      if (written.size() == failAfter) {
+        throw new IOException("failed after " + failAfter);
+      }
+      written.add(key.get() + ":" + value);
+      keys.add(key);
+    }
+  }
+
+  private static Configuration conf(int depth, long budget, Handoff handoff) {
+    Configuration conf = new Configuration();
+    IsolatedConf.setAsyncWriter(conf, true);
+    IsolatedConf.setAsyncWriterDepth(conf, depth);
+    IsolatedConf.setAsyncWriterBudget(conf, budget);
+    IsolatedConf.setAsyncWriterHandoff(conf, handoff);
+    return conf;
+  }
+
+  @Test
+  public void testDisabled() {
+    assertNull(AsyncRecordWriter.forWriter(new Configuration(), "0", SPEC_CLASS_LOADER, new ListSink(-1)));
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    // a small queue for the task and the background thread to wait for each other
+    for (Configuration conf : new Configuration[] { conf(4, 1024 * 1024, Handoff.RECYCLE), conf(1000, 64, Handoff.COPY), conf(1, 0, Handoff.RECYCLE) }) {
+      int count = 10000;
+      ListSink sink = new ListSink(-1);
+      AsyncRecordWriter<LongWritable, Text> writer = AsyncRecordWriter.forWriter(conf, "async", SPEC_CLASS_LOADER, sink);
+      // the task reuses its objects
+      LongWritable key = new LongWritable();
+      Text value = new Text();
+      for (int i = 0; i < count; i++) {
+        key.set(i);
+        value.set("record " + i);
+        writer.write(key, value);
+      }
+      // everything is written on close
+      writer.close();
+      assertEquals(count, sink.written.size());
+      for (int i = 0; i < count; i++) {
+        assertEquals(i + ":record " + i, sink.written.get(i));
+      }
+      assertNotSame(key, sink.keys.get(0));
+      if (IsolatedConf.asyncWriterHandoffFromConf(conf) == Handoff.RECYCLE) {
+        assertSame(sink.keys.get(0), sink.keys.get(count - 1));
+      } else {
+        assertNotSame(sink.keys.get(0), sink.keys.get(count - 1));
+      }
+    }
+    assertTrue(IsolationCounters.snapshot().get(IsolationCounters.SPEC_GROUP + "async").containsKey(AsyncRecordWriter.FULL_MS));
+  }
+
+  @Test
+  public void testReference() throws Exception {
+    ListSink sink = new ListSink(-1);
+    AsyncRecordWriter<LongWritable, Text> writer = AsyncRecordWriter.forWriter(conf(16, 1024, Handoff.REFERENCE), "0", SPEC_CLASS_LOADER, sink);
+    List<LongWritable> keys = new ArrayList<LongWritable>();
+    for (int i = 0; i < 100; i++) {
+      LongWritable key = new LongWritable(i);
+      keys.add(key);
+      writer.write(key, new Text("record " + i));
+    }
+    writer.close();
+    assertEquals(keys, sink.keys);
+    for (int i = 0; i < keys.size(); i++) {
+      assertSame(keys.get(i), sink.keys.get(i));
+    }
+  }
+
+  @Test
+  public void testNullsAndClassChanges() throws Exception {
+    for (Handoff handoff : new Handoff[] { Handoff.RECYCLE, Handoff.COPY }) {
+      final List<String> written = new ArrayList<String>();
+      AsyncRecordWriter<Object, Object> writer = AsyncRecordWriter.forWriter(conf(4, 1024, handoff), "0", SPEC_CLASS_LOADER, new Sink<Object, Object>() {
+        @Override
+        public void write(Object key, Object value) {
+          written.add(key + ":" + value + (value == null ? "" : ":" + value.getClass().getSimpleName()));
+        }
+      });
+      // TextOutputFormat accepts null keys and values
+      writer.write(null, new Text("a"));
+      writer.write(new LongWritable(1), null);
+      writer.write(new Text("b"), new LongWritable(2));
+      writer.write(new Text("c"), new Text("d"));
+      writer.close();
+      assertEquals(asList("null:a:Text", "1:null", "b:2:LongWritable", "c:d:Text"), written);
+    }
+  }
+
+  @Test
+  public void testNoSerialization() throws Exception {
+    AsyncRecordWriter<Object, Object> writer = AsyncRecordWriter.forWriter(conf(4, 1024, Handoff.RECYCLE), "0", SPEC_CLASS_LOADER, new Sink<Object, Object>() {
+      @Override
+      public void write(Object key, Object value) {
+      }
+    });
+    try {
+      writer.write(new Object(), null);
+      fail("java.lang.Object has no serialization");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("com.twitter.isolated.asyncwriter"));
+    }
+    writer.close();
+  }
+
+  @Test
+  public void testError() throws Exception {
+    AsyncRecordWriter<LongWritable, Text> writer = AsyncRecordWriter.forWriter(conf(16, 1024, Handoff.RECYCLE), "0", SPEC_CLASS_LOADER, new ListSink(100));
+    LongWritable key = new LongWritable();
+    Text value = new Text("record");
+    try {
+      // the error is thrown by a later write once the queue is full
+      for (int i = 0; i < 10000; i++) {
+        key.set(i);
+        writer.write(key, value);
+      }
+      fail("the error of the delegate should be thrown");
+    } catch (IOException e) {
+      assertEquals("failed after 100", e.getMessage());
+    }
+    try {
+      writer.close();
+      fail("the error of the delegate should be thrown");
+    } catch (IOException e) {
+      assertEquals("failed after 100", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testErrorOnClose() throws Exception {
+    ListSink sink = new ListSink(5);
+    AsyncRecordWriter<LongWritable, Text> writer = AsyncRecordWriter.forWriter(conf(100, 1024 * 1024, Handoff.RECYCLE), "0", SPEC_CLASS_LOADER, sink);
+    try {
+      // the background thread can fail while records are still being written
+      for (int i = 0; i < 10; i++) {
+        writer.write(new LongWritable(i), new Text("record"));
+      }
+      writer.close();
+      fail("the error of the delegate should be thrown");
+    } catch (IOException e) {
+      assertEquals("failed after 5", e.getMessage());
+    }
+    assertEquals(5, sink.written.size());
+  }
+}
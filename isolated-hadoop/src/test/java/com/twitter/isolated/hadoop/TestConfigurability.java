@@ -4,14 +4,17 @@ import static com.twitter.isolated.hadoop.IsolatedConf.classDefinitionsFromConf;
 import static com.twitter.isolated.hadoop.IsolatedConf.inputSpecsFromConf;
 import static com.twitter.isolated.hadoop.IsolatedConf.librariesFromConf;
 import static com.twitter.isolated.hadoop.IsolatedConf.outputSpecFromConf;
+import static com.twitter.isolated.hadoop.IsolatedConf.outputSpecsFromConf;
 import static com.twitter.isolated.hadoop.IsolatedConf.setClassDefinitions;
 import static com.twitter.isolated.hadoop.IsolatedConf.setInputSpecs;
 import static com.twitter.isolated.hadoop.IsolatedConf.setLibraries;
 import static com.twitter.isolated.hadoop.IsolatedConf.setOutputSpec;
+import static com.twitter.isolated.hadoop.IsolatedConf.setOutputSpecs;
 import static com.twitter.isolated.hadoop.IsolatedConf.setSpecs;
 import static com.twitter.isolated.hadoop.IsolatedConf.specsFromConf;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -19,11 +22,14 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.junit.Test;
 
+import com.twitter.isolated.hadoop.IsolatedConf.Index;
+
 public class TestConfigurability {
 
   @Test(expected = IllegalArgumentException.class)
@@ -40,7 +46,8 @@ public class TestConfigurability {
   public void testConf() throws IOException {
     Configuration conf = new Configuration(false);
     List<Library> libs = asList(
-        new Library("parquet-lib", new Path("foo"))
+        new Library("parquet-lib", new Path("foo")),
+        new Library("hive-lib", asList(new Path("bar"), new Path("baz")), asList("com.foo."), asList("org.apache.hadoop.hive.", "com.foo.bar."))
         );
     setLibraries(conf, libs);
     List<Library> librariesFromConf = librariesFromConf(conf);
@@ -68,7 +75,45 @@ public class TestConfigurability {
 
     setOutputSpec(conf, "o");
     assertEquals("o", outputSpecFromConf(conf));
+    assertEquals(asList("o"), outputSpecsFromConf(new Index(conf)));
+    setOutputSpecs(conf, "o1", "o2");
+    assertEquals(asList("o1", "o2"), outputSpecsFromConf(new Index(conf)));
+
+  }
 
+  @Test
+  public void testIndex() throws IOException {
+    Configuration conf = new Configuration(false);
+    List<Spec> specs = asList(
+        new Spec("1", "text-inputformat", "mapred.input.dir=/foo/bar/1"),
+        new Spec("10", "text-inputformat", "mapred.input.dir=/foo/bar/10", "mapred.input.dir.recursive=true"),
+        new Spec("1-a", "text-inputformat", "mapred.input.dir=/foo/bar/1-a")
+        );
+    setSpecs(conf, specs);
+    conf.set("com.twitter.isolated.spec.1.conf.my.dir", "${mapred.input.base}/1");
+    conf.set("mapred.input.base", "/base");
+    conf.set("com.twitter.isolatedother.spec.2.class", "ignored");
+
+    Index index = new Index(conf);
+    List<Spec> specsFromConf = specsFromConf(index);
+    assertEquals(3, specsFromConf.size());
+    assertEquals("/base/1", specsFromConf.get(0).getConf().get("my.dir"));
+    assertEquals("/foo/bar/1-a", specsFromConf.get(1).getConf().get("mapred.input.dir"));
+    assertEquals("/foo/bar/10", specsFromConf.get(2).getConf().get("mapred.input.dir"));
+    assertEquals(2, specsFromConf.get(2).getConf().size());
+
+    // repeated keys are shared across specs
+    assertSame(keyOf(specsFromConf.get(0).getConf(), "mapred.input.dir"), keyOf(specsFromConf.get(2).getConf(), "mapred.input.dir"));
+    assertSame(specsFromConf.get(0).getClassDefinitionID(), specsFromConf.get(2).getClassDefinitionID());
+  }
+
+  private String keyOf(Map<String, String> map, String key) {
+    for (String k : map.keySet()) {
+      if (k.equals(key)) {
+        return k;
+      }
+    }
+    return null;
   }
 
   private List<Spec> sortISs(List<Spec> iss) {
@@ -0,0 +1,129 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.setClassDefinitions;
+import static com.twitter.isolated.hadoop.IsolatedConf.setInputSpecs;
+import static com.twitter.isolated.hadoop.IsolatedConf.setSpecs;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.ContextManager.CallContext;
+import com.twitter.isolated.hadoop.ContextManager.ContextualCall;
+
+public class TestContextCache {
+
+  private Configuration newConf(String inputDir) {
+    Configuration conf = new Configuration(false);
+    setClassDefinitions(conf, asList(
+        new ClassDefinition("text-inputformat", null, "org.apache.hadoop.mapreduce.lib.input.TextInputFormat")
+        ));
+    setSpecs(conf, asList(
+        new Spec("0", "text-inputformat", "mapred.input.dir=" + inputDir),
+        new Spec("1", "text-inputformat", "mapred.input.dir=/foo/bar/2")
+        ));
+    setInputSpecs(conf, "0", "1");
+    return conf;
+  }
+
+  @Before
+  public void setup() {
+    ContextCache.clear();
+  }
+
+  @Test
+  public void testHitsAndMisses() {
+    new ContextManager(newConf("/foo/bar/1"));
+    assertEquals(0, ContextCache.getHitCount());
+    assertEquals(1, ContextCache.getMissCount());
+
+    Configuration conf = newConf("/foo/bar/1");
+    conf.set("some.other.key", "ignored");
+    new ContextManager(conf);
+    assertEquals(1, ContextCache.getHitCount());
+    assertEquals(1, ContextCache.getMissCount());
+
+    // the confs of the specs are not part of the definition
+    ContextManager changed = new ContextManager(newConf("/foo/bar/3"));
+    assertEquals(2, ContextCache.getHitCount());
+    assertEquals(1, ContextCache.getMissCount());
+    assertEquals(1, ContextCache.size());
+    assertEquals("/foo/bar/3", changed.getSpec("0").getConf().get("mapred.input.dir"));
+
+    Configuration other = newConf("/foo/bar/1");
+    setSpecs(other, asList(new Spec("0", "text-inputformat"), new Spec("1", "text-inputformat"), new Spec("2", "text-inputformat")));
+    new ContextManager(other);
+    assertEquals(2, ContextCache.getMissCount());
+    assertEquals(2, ContextCache.size());
+  }
+
+  @Test
+  public void testSameConfAfterPlanningAndCalls() throws IOException {
+    Configuration conf = newConf("/foo/bar/1");
+    ContextManager first = new ContextManager(conf);
+    assertEquals(1, ContextCache.getMissCount());
+
+    // planning saves the classes of the splits
+    conf.set(IsolatedConf.key("splits", "classes"), "org.apache.hadoop.mapreduce.lib.input.FileSplit");
+    new ContextManager(conf);
+    assertEquals(1, ContextCache.getHitCount());
+    assertEquals(1, ContextCache.getMissCount());
+
+    first.callInContext("0", new ContextualCall<Void>() {
+      @Override
+      public Void call(CallContext context) throws IOException, InterruptedException {
+        context.localConf().set("my.key", "my.value");
+        context.localConf().set("mapred.input.dir", "/foo/bar/4");
+        return null;
+      }
+    });
+    ContextManager after = new ContextManager(conf);
+    assertEquals(2, ContextCache.getHitCount());
+    assertEquals(1, ContextCache.getMissCount());
+    assertEquals("my.value", after.getSpec("0").getConf().get("my.key"));
+    assertEquals("/foo/bar/4", after.getSpec("0").getConf().get("mapred.input.dir"));
+
+    // the conf of a spec changed without a call
+    conf.set(IsolatedConf.key("spec", "0", "conf", "mapred.input.dir"), "/foo/bar/5");
+    assertEquals("/foo/bar/5", new ContextManager(conf).getSpec("0").getConf().get("mapred.input.dir"));
+    assertEquals(1, ContextCache.getMissCount());
+  }
+
+  @Test
+  public void testCachedManagersAreIndependent() throws IOException {
+    ContextManager first = new ContextManager(newConf("/foo/bar/1"));
+    ContextManager second = new ContextManager(newConf("/foo/bar/1"));
+    assertEquals(1, ContextCache.getHitCount());
+    assertNotSame(first.getSpec("0"), second.getSpec("0"));
+    assertEquals(first.getSpec("0"), second.getSpec("0"));
+
+    first.callInContext("0", new ContextualCall<Void>() {
+      @Override
+      public Void call(CallContext context) throws IOException, InterruptedException {
+        context.localConf().set("my.key", "my.value");
+        return null;
+      }
+    });
+    assertEquals("my.value", first.getSpec("0").getConf().get("my.key"));
+    assertNull(second.getSpec("0").getConf().get("my.key"));
+    assertNull(new ContextManager(newConf("/foo/bar/1")).getSpec("0").getConf().get("my.key"));
+    assertEquals(asList(second.getSpec("0"), second.getSpec("1")), second.getInputSpecs());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadConfIsNotCached() {
+    Configuration conf = newConf("/foo/bar/1");
+    setInputSpecs(conf, "0", "missing");
+    try {
+      new ContextManager(conf);
+    } finally {
+      assertEquals(0, ContextCache.size());
+    }
+  }
+}
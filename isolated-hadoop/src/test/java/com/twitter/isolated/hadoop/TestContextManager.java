@@ -0,0 +1,228 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.setClassDefinitions;
+import static com.twitter.isolated.hadoop.IsolatedConf.setInputSpecs;
+import static com.twitter.isolated.hadoop.IsolatedConf.setSpecs;
+import static com.twitter.isolated.hadoop.IsolatedConf.setSplitsParallelism;
+import static com.twitter.isolated.hadoop.IsolatedConf.setSplitsTimeout;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.ContextManager.CallContext;
+import com.twitter.isolated.hadoop.ContextManager.ContextualCall;
+
+public class TestContextManager {
+
+  private Configuration newConf(int specCount) {
+    Configuration conf = new Configuration(false);
+    setClassDefinitions(conf, asList(
+        new ClassDefinition("text-inputformat", null, "org.apache.hadoop.mapreduce.lib.input.TextInputFormat", "my.classdef.key=classdef")
+        ));
+    List<Spec> specs = new ArrayList<Spec>();
+    String[] ids = new String[specCount];
+    for (int i = 0; i < specCount; i++) {
+      ids[i] = String.valueOf(i);
+      // later specs are faster so that they complete first
+      specs.add(new Spec(ids[i], "text-inputformat", "my.spec.key=" + i, "my.sleep=" + (specCount - i) * 20));
+    }
+    setSpecs(conf, specs);
+    setInputSpecs(conf, ids);
+    return conf;
+  }
+
+  private static final class SleepyCall extends ContextualCall<String> {
+    @Override
+    public String call(CallContext context) throws IOException, InterruptedException {
+      Thread.sleep(context.localConf().getInt("my.sleep", 0));
+      if (context.localConf().get("my.fail") != null) {
+        throw new IOException(context.localConf().get("my.fail"));
+      }
+      context.localConf().set("my.result", "done");
+      return context.localConf().get("my.spec.key") + "/" + context.localConf().get("my.classdef.key");
+    }
+  }
+
+  @Test
+  public void testParallelCallsKeepSpecOrder() throws IOException {
+    Configuration conf = newConf(10);
+    setSplitsParallelism(conf, 10);
+    ContextManager contextManager = new ContextManager(conf);
+    long t0 = System.currentTimeMillis();
+    List<String> results = contextManager.callInEachContext(contextManager.getInputSpecs(), new SleepyCall());
+    long t1 = System.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i + "/classdef", results.get(i));
+      assertEquals("done", contextManager.getSpec(String.valueOf(i)).getConf().get("my.result"));
+      assertEquals("done", conf.get("com.twitter.isolated.spec." + i + ".conf.my.result"));
+    }
+    // sequentially this takes 20 * (1 + 2 + ... + 10) = 1100ms
+    assertTrue("took " + (t1 - t0), t1 - t0 < 800);
+  }
+
+  @Test
+  public void testOnlyChangesArePropagated() throws IOException {
+    Configuration conf = newConf(2);
+    conf.set("com.twitter.isolated.spec.0.conf.my.removed", "removed");
+    ContextManager contextManager = new ContextManager(conf);
+    long before = ContextManager.getPropagatedKeyCount();
+    contextManager.callInEachContext(contextManager.getInputSpecs(), new ContextualCall<Void>() {
+      @Override
+      public Void call(CallContext context) throws IOException, InterruptedException {
+        Configuration localConf = context.localConf();
+        // same value: not a change
+        localConf.set("my.classdef.key", "classdef");
+        localConf.set("my.spec.key", localConf.get("my.spec.key"));
+        localConf.unset("my.removed");
+        localConf.set("my.new.key", "new");
+        return null;
+      }
+    });
+    // my.new.key twice and my.removed once
+    assertEquals(3, ContextManager.getPropagatedKeyCount() - before);
+    for (String id : asList("0", "1")) {
+      assertEquals("new", contextManager.getSpec(id).getConf().get("my.new.key"));
+      assertEquals("new", conf.get("com.twitter.isolated.spec." + id + ".conf.my.new.key"));
+      assertNull(conf.get("com.twitter.isolated.spec." + id + ".conf.my.classdef.key"));
+    }
+    assertNull(contextManager.getSpec("0").getConf().get("my.removed"));
+    assertNull(conf.get("com.twitter.isolated.spec.0.conf.my.removed"));
+  }
+
+  @Test
+  public void testMergeKeepsSpecIdentity() {
+    Spec spec = new Spec("0", "classdef", "my.key=value");
+    Set<Spec> specs = new HashSet<Spec>(asList(spec));
+    List<String> unsets = new ArrayList<String>(asList("my.key", "not.defined"));
+    Map<String, String> sets = new TreeMap<String, String>();
+    sets.put("my.new.key", "new");
+    assertEquals(new TreeSet<String>(asList("my.key")), spec.merge(sets, unsets));
+    assertEquals(asList("my.key", "not.defined"), unsets);
+    assertEquals("new", spec.getConf().get("my.new.key"));
+    assertTrue(specs.contains(spec));
+  }
+
+  @Test
+  public void testConcurrentCalls() throws Exception {
+    final int specCount = 4;
+    final int threadCount = 8;
+    final int callsPerThread = 500;
+    Configuration conf = newConf(specCount);
+    final ContextManager contextManager = new ContextManager(conf);
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < threadCount; t++) {
+        final int thread = t;
+        final String specID = String.valueOf(t % specCount);
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            for (int i = 0; i < callsPerThread; i++) {
+              final int callIndex = i;
+              contextManager.callInContext(specID, new ContextualCall<Void>() {
+                @Override
+                public Void call(CallContext context) throws IOException, InterruptedException {
+                  Configuration localConf = context.localConf();
+                  assertEquals(specID, localConf.get("my.spec.key"));
+                  assertSame(contextManager.getClassLoader(specID), Thread.currentThread().getContextClassLoader());
+                  // the next thread calls in another spec
+                  assertNull(localConf.get("my.thread." + (thread + 1) % threadCount));
+                  localConf.set("my.thread." + thread, String.valueOf(callIndex));
+                  return null;
+                }
+              });
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        // rethrows the assertion errors of the calls
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    String last = String.valueOf(callsPerThread - 1);
+    for (int t = 0; t < threadCount; t++) {
+      String specID = String.valueOf(t % specCount);
+      // no change lost
+      assertEquals(last, contextManager.getSpec(specID).getConf().get("my.thread." + t));
+      assertEquals(last, conf.get("com.twitter.isolated.spec." + specID + ".conf.my.thread." + t));
+      assertNull(contextManager.getSpec(String.valueOf((t + 1) % specCount)).getConf().get("my.thread." + t));
+    }
+  }
+
+  @Test
+  public void testSequential() throws IOException {
+    Configuration conf = newConf(3);
+    setSplitsParallelism(conf, 1);
+    ContextManager contextManager = new ContextManager(conf);
+    assertEquals(asList("0/classdef", "1/classdef", "2/classdef"), contextManager.callInEachContext(contextManager.getInputSpecs(), new SleepyCall()));
+  }
+
+  @Test
+  public void testFailure() throws IOException {
+    Configuration conf = newConf(3);
+    conf.set("com.twitter.isolated.spec.1.conf.my.fail", "failure in 1");
+    ContextManager contextManager = new ContextManager(conf);
+    try {
+      contextManager.callInEachContext(contextManager.getInputSpecs(), new SleepyCall());
+      fail("should have failed");
+    } catch (IOException e) {
+      assertEquals("failure in 1", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testTimeout() throws IOException {
+    Configuration conf = newConf(3);
+    conf.set("com.twitter.isolated.spec.2.conf.my.sleep", "5000");
+    setSplitsTimeout(conf, 200);
+    ContextManager contextManager = new ContextManager(conf);
+    try {
+      contextManager.callInEachContext(contextManager.getInputSpecs(), new SleepyCall());
+      fail("should have timed out");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("spec 2"));
+    }
+  }
+
+  @Test
+  public void testTimeoutOfAllSpecs() throws IOException {
+    Configuration conf = newConf(3);
+    // each spec completes within the timeout but not all of them
+    for (int i = 0; i < 3; i++) {
+      conf.set("com.twitter.isolated.spec." + i + ".conf.my.sleep", "200");
+    }
+    setSplitsTimeout(conf, 450);
+    setSplitsParallelism(conf, 1);
+    ContextManager contextManager = new ContextManager(conf);
+    try {
+      contextManager.callInEachContext(contextManager.getInputSpecs(), new SleepyCall());
+      fail("should have timed out");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("spec 2"));
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.IsolatedConf.setClassDefinitions;
+import static com.twitter.isolated.hadoop.IsolatedConf.setInputSpecs;
+import static com.twitter.isolated.hadoop.IsolatedConf.setSpecs;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.Counters.CountersExceededException;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.ContextManager.CallContext;
+import com.twitter.isolated.hadoop.ContextManager.ContextualCall;
+
+public class TestIsolationCounters {
+
+  private static class CountingReporter implements Reporter {
+    private final Map<String, Long> counters = new HashMap<String, Long>();
+
+    long get(String group, String name) {
+      Long value = counters.get(group + "/" + name);
+      return value == null ? 0 : value;
+    }
+
+    @Override
+    public void incrCounter(String group, String counter, long amount) {
+      counters.put(group + "/" + counter, get(group, counter) + amount);
+    }
+
+    @Override
+    public void progress() {
+    }
+
+    @Override
+    public void setStatus(String status) {
+    }
+
+    @Override
+    public Counter getCounter(Enum<?> name) {
+      return null;
+    }
+
+    @Override
+    public Counter getCounter(String group, String name) {
+      return null;
+    }
+
+    @Override
+    public void incrCounter(Enum<?> key, long amount) {
+    }
+
+    @Override
+    public float getProgress() {
+      return 0;
+    }
+
+    @Override
+    public InputSplit getInputSplit() throws UnsupportedOperationException {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test
+  public void testCallsArePublishedAsDeltas() throws IOException {
+    Configuration conf = new Configuration(false);
+    setClassDefinitions(conf, asList(new ClassDefinition("text-inputformat", null, "org.apache.hadoop.mapreduce.lib.input.TextInputFormat")));
+    setSpecs(conf, asList(new Spec("counted", "text-inputformat", "my.sleep=20")));
+    setInputSpecs(conf, "counted");
+    ContextManager contextManager = new ContextManager(conf);
+    ContextualCall<Void> sleep = new ContextualCall<Void>() {
+      @Override
+      public Void call(CallContext context) throws IOException, InterruptedException {
+        Thread.sleep(context.localConf().getInt("my.sleep", 0));
+        return null;
+      }
+    };
+    String group = IsolationCounters.SPEC_GROUP + "counted";
+    CountingReporter reporter = new CountingReporter();
+    IsolationCounters.publish(reporter);
+    long calls = reporter.get(group, "getSplits" + IsolationCounters.CALLS);
+    long total = reporter.get(group, "getSplits" + IsolationCounters.TOTAL_MS);
+
+    contextManager.callInContext("counted", "getSplits", sleep);
+    contextManager.callInContext("counted", "getSplits", sleep);
+    IsolationCounters.publish(reporter);
+    assertEquals(calls + 2, reporter.get(group, "getSplits" + IsolationCounters.CALLS));
+    assertTrue(reporter.get(group, "getSplits" + IsolationCounters.TOTAL_MS) - total >= 40);
+
+    // nothing changed: nothing published
+    Map<String, Long> before = new HashMap<String, Long>(reporter.counters);
+    IsolationCounters.publish(reporter);
+    assertEquals(before, reporter.counters);
+  }
+
+  @Test
+  public void testRecordCounters() {
+    Configuration conf = new Configuration(false);
+    IsolatedConf.setRecordSampling(conf, 10);
+    RecordCounters counters = RecordCounters.forReader(conf, "records");
+    String group = IsolationCounters.SPEC_GROUP + "records";
+    long records = IsolationCounters.get(group, RecordCounters.RECORDS_READ);
+    int sampled = 0;
+    for (int i = 0; i < 100; i++) {
+      long start = counters.start();
+      if (start != 0) {
+        ++sampled;
+      }
+      counters.end(start, true);
+    }
+    // the end of the input is not a record
+    counters.end(counters.start(), false);
+    assertEquals(10, sampled);
+    assertEquals(records, IsolationCounters.get(group, RecordCounters.RECORDS_READ));
+    counters.flush(1000);
+    assertEquals(records + 100, IsolationCounters.get(group, RecordCounters.RECORDS_READ));
+    assertTrue(IsolationCounters.get(group, RecordCounters.BYTES_READ) >= 1000);
+
+    IsolatedConf.setRecordCounters(conf, false);
+    assertNull(RecordCounters.forReader(conf, "records"));
+    assertNull(RecordCounters.forWriter(conf, "records"));
+  }
+
+  @Test
+  public void testManySpecsShareOneGroup() throws IOException {
+    Configuration conf = new Configuration(false);
+    setClassDefinitions(conf, asList(new ClassDefinition("text-inputformat", null, "org.apache.hadoop.mapreduce.lib.input.TextInputFormat")));
+    setSpecs(conf, asList(new Spec("a", "text-inputformat"), new Spec("b", "text-inputformat"), new Spec("c", "text-inputformat")));
+    setInputSpecs(conf, "a", "b", "c");
+    assertEquals("a", new ContextManager(conf).getCountersID("a"));
+    IsolatedConf.setSpecCounters(conf, 2);
+    assertEquals(IsolationCounters.ALL_SPECS, new ContextManager(conf).getCountersID("a"));
+  }
+
+  @Test
+  public void testCounterLimitDoesNotFailTheTask() {
+    IsolationCounters.increment("test", "limit", 1);
+    IsolationCounters.publish(new CountingReporter() {
+      @Override
+      public void incrCounter(String group, String counter, long amount) {
+        throw new CountersExceededException("Error: Exceeded limits on number of counters");
+      }
+    });
+  }
+
+  @Test
+  public void testShortCallsAddUp() {
+    String group = IsolationCounters.SPEC_GROUP + "short";
+    CountingReporter reporter = new CountingReporter();
+    // 0.3ms each
+    for (int i = 0; i < 10; i++) {
+      IsolationCounters.recordCall("short", "next", 300000);
+      IsolationCounters.publish(reporter);
+    }
+    assertEquals(10, reporter.get(group, "next" + IsolationCounters.CALLS));
+    assertEquals(3, reporter.get(group, "next" + IsolationCounters.TOTAL_MS));
+  }
+}
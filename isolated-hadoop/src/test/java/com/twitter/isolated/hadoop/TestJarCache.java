@@ -0,0 +1,172 @@
+package com.twitter.isolated.hadoop;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestJarCache {
+
+  private final File root = new File("target/testData/TestJarCache");
+  private final File cacheDir = new File(root, "cache");
+  private FileSystem fs;
+
+  @Before
+  public void setup() throws IOException {
+    JarCache.clear();
+    FileUtil.fullyDelete(root);
+    root.mkdirs();
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  private FileStatus newJar(String name, int entries) throws IOException {
+    File file = new File(root, name);
+    JarOutputStream jar = new JarOutputStream(new FileOutputStream(file));
+    for (int i = 0; i < entries; i++) {
+      jar.putNextEntry(new JarEntry("entry" + i));
+      jar.write(new byte[1024]);
+      jar.closeEntry();
+    }
+    jar.close();
+    return fs.getFileStatus(new Path(file.getAbsolutePath()));
+  }
+
+  @Test
+  public void testHitAndMiss() throws IOException {
+    JarCache jarCache = new JarCache(cacheDir, Long.MAX_VALUE);
+    FileStatus status = newJar("a.jar", 10);
+    long hits = JarCache.getHitCount();
+    long misses = JarCache.getMissCount();
+    long saved = JarCache.getBytesSaved();
+
+    File first = jarCache.get(fs, status);
+    assertEquals(misses + 1, JarCache.getMissCount());
+    assertEquals(status.getLen(), first.length());
+
+    File second = jarCache.get(fs, status);
+    assertEquals(first, second);
+    assertEquals(hits + 1, JarCache.getHitCount());
+    assertEquals(misses + 1, JarCache.getMissCount());
+    assertEquals(saved + status.getLen(), JarCache.getBytesSaved());
+
+    // a new version of the jar is a new entry
+    FileStatus newVersion = newJar("a.jar", 20);
+    File third = jarCache.get(fs, newVersion);
+    assertFalse(first.equals(third));
+    assertEquals(misses + 2, JarCache.getMissCount());
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    FileStatus a = newJar("a.jar", 10);
+    FileStatus b = newJar("b.jar", 10);
+    FileStatus c = newJar("c.jar", 10);
+    JarCache jarCache = new JarCache(cacheDir, a.getLen() + b.getLen());
+    File cachedA = jarCache.get(fs, a);
+    File cachedB = jarCache.get(fs, b);
+    cachedA.setLastModified(System.currentTimeMillis() - 20000);
+    cachedB.setLastModified(System.currentTimeMillis() - 10000);
+    // the JVMs that used them exited
+    JarCache.clear();
+    // a was used more recently than b
+    jarCache.get(fs, a);
+    File cachedC = jarCache.get(fs, c);
+    assertTrue(cachedA.exists());
+    assertFalse(cachedB.exists());
+    assertTrue(cachedC.exists());
+    // nothing is left behind by b
+    assertEquals(0, remainingFiles(cachedB).length);
+  }
+
+  private String[] remainingFiles(File evicted) {
+    final String key = evicted.getName().replace(".jar", "");
+    return cacheDir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(key);
+      }
+    });
+  }
+
+  @Test
+  public void testUsedEntriesAreNotEvicted() throws IOException {
+    FileStatus a = newJar("a.jar", 10);
+    FileStatus b = newJar("b.jar", 10);
+    JarCache jarCache = new JarCache(cacheDir, a.getLen());
+    File cachedA = jarCache.get(fs, a);
+    cachedA.setLastModified(System.currentTimeMillis() - 10000);
+    // this JVM may still open a
+    File cachedB = jarCache.get(fs, b);
+    assertTrue(cachedA.exists());
+    assertTrue(cachedB.exists());
+  }
+
+  @Test
+  public void testCorruptedJarIsDownloadedAgain() throws IOException {
+    JarCache jarCache = new JarCache(cacheDir, Long.MAX_VALUE);
+    FileStatus status = newJar("a.jar", 10);
+    File cached = jarCache.get(fs, status);
+    JarCache.clear();
+    // same length, different content
+    RandomAccessFile file = new RandomAccessFile(cached, "rw");
+    file.seek(cached.length() / 2);
+    file.write(42);
+    file.close();
+    long misses = JarCache.getMissCount();
+    assertEquals(cached, jarCache.get(fs, status));
+    assertEquals(misses + 1, JarCache.getMissCount());
+    assertArrayEquals(readFully(new File(root, "a.jar")), readFully(cached));
+  }
+
+  private byte[] readFully(File file) throws IOException {
+    byte[] bytes = new byte[(int)file.length()];
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    in.readFully(bytes);
+    in.close();
+    return bytes;
+  }
+
+  @Test
+  public void testPrivateDirectory() throws IOException {
+    JarCache jarCache = new JarCache(cacheDir, Long.MAX_VALUE);
+    FileStatus status = newJar("a.jar", 10);
+    File cached = jarCache.get(fs, status);
+    assertEquals(cacheDir.getAbsoluteFile(), cached.getParentFile());
+    assertEquals(new FsPermission((short)0700), fs.getFileStatus(new Path(cacheDir.getAbsolutePath())).getPermission());
+  }
+
+  @Test
+  public void testSharedDirectoryIsNotUsed() throws IOException {
+    cacheDir.mkdirs();
+    fs.setPermission(new Path(cacheDir.getAbsolutePath()), new FsPermission((short)0777));
+    File copy = new JarCache(cacheDir, Long.MAX_VALUE).get(fs, newJar("a.jar", 10));
+    assertFalse(cacheDir.getAbsoluteFile().equals(copy.getParentFile()));
+    assertEquals(0, cacheDir.list().length);
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotAJar() throws IOException {
+    File file = new File(root, "not-a.jar");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("not a jar".getBytes());
+    out.close();
+    new JarCache(cacheDir, Long.MAX_VALUE).get(fs, fs.getFileStatus(new Path(file.getAbsolutePath())));
+  }
+}
@@ -0,0 +1,121 @@
+package com.twitter.isolated.hadoop;
+
+import static com.twitter.isolated.hadoop.LayeredConfiguration.newLayeredConf;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+public class TestLayeredConfiguration {
+
+  private static Map<String, String> map(String... kvs) {
+    Map<String, String> map = new HashMap<String, String>();
+    for (int i = 0; i < kvs.length; i += 2) {
+      map.put(kvs[i], kvs[i + 1]);
+    }
+    return map;
+  }
+
+  @SuppressWarnings("unchecked")
+  private JobConf newConf() {
+    return newLayeredConf(asList(
+        map("a", "spec", "s", "spec"),
+        map("a", "classdef", "b", "classdef"),
+        map("a", "base", "b", "base", "c", "base", "ref", "${c}")));
+  }
+
+  private Map<String, String> toMap(Configuration conf) {
+    Map<String, String> result = new HashMap<String, String>();
+    for (Entry<String, String> e : conf) {
+      result.put(e.getKey(), e.getValue());
+    }
+    return result;
+  }
+
+  @Test
+  public void testReadsAndWrites() {
+    JobConf conf = newConf();
+    assertEquals("spec", conf.get("a"));
+    assertEquals("classdef", conf.get("b"));
+    assertEquals("base", conf.get("c"));
+    assertEquals("base", conf.get("ref"));
+    assertEquals(5, conf.size());
+
+    conf.set("b", "local");
+    conf.set("d", "local");
+    conf.unset("c");
+    assertEquals("local", conf.get("b"));
+    assertEquals("local", conf.get("d"));
+    assertNull(conf.get("c"));
+    assertEquals(map("a", "spec", "s", "spec", "b", "local", "d", "local", "ref", "${c}"), toMap(conf));
+
+    conf.set("c", "back");
+    assertEquals("back", conf.get("c"));
+  }
+
+  @Test
+  public void testCopiesAreIsolated() {
+    JobConf conf = newConf();
+    conf.set("d", "local");
+    JobConf copy = new JobConf(conf);
+    Configuration copy2 = new Configuration(conf);
+    copy.set("a", "copy");
+    copy.unset("b");
+    assertEquals("spec", conf.get("a"));
+    assertEquals("classdef", conf.get("b"));
+    assertEquals("copy", copy.get("a"));
+    assertNull(copy.get("b"));
+    assertEquals("local", copy.get("d"));
+    assertEquals(toMap(conf), toMap(copy2));
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    JobConf conf = newConf();
+    conf.set("d", "local");
+    conf.unset("c");
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    conf.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    Configuration read = new Configuration(false);
+    read.readFields(in);
+    assertEquals(toMap(conf), toMap(read));
+
+    ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    conf.writeXml(xml);
+    Configuration fromXml = new Configuration(false);
+    fromXml.addResource(new ByteArrayInputStream(xml.toByteArray()));
+    assertEquals(toMap(conf), toMap(fromXml));
+  }
+
+  @Test
+  public void testAddResource() throws IOException {
+    Configuration other = new Configuration(false);
+    other.set("e", "resource");
+    ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    other.writeXml(xml);
+
+    JobConf conf = newConf();
+    conf.set("d", "local");
+    conf.addResource(new ByteArrayInputStream(xml.toByteArray()));
+    assertEquals("resource", conf.get("e"));
+    assertEquals("spec", conf.get("a"));
+    assertEquals("local", conf.get("d"));
+    assertEquals("base", conf.get("c"));
+    assertEquals(7, conf.size());
+  }
+}
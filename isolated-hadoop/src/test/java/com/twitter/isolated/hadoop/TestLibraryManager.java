@@ -0,0 +1,210 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLibraryManager {
+
+  public static class Loaded0 {}
+  public static class Loaded1 {}
+  public static class Loaded2 {}
+  public static class Loaded3 {}
+  public static class Loaded4 {}
+
+  private static final Class<?>[] LOADED = { Loaded0.class, Loaded1.class, Loaded2.class, Loaded3.class, Loaded4.class };
+
+  // the classes of this framework are parent first by default
+  private static final List<String> CHILD_FIRST = asList(TestLibraryManager.class.getName() + "$Loaded");
+
+  private MiniDFSCluster dfsCluster;
+  private Configuration conf;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    System.setProperty("hadoop.log.dir", "/tmp/logs");
+    dfsCluster = new MiniDFSCluster(conf, 1, true, null);
+    IsolatedConf.setJarCacheDir(conf, "target/testData/TestLibraryManager/cache");
+  }
+
+  @After
+  public void tearDown() {
+    dfsCluster.shutdown();
+  }
+
+  /**
+   * @return a jar on HDFS containing the Loaded classes
+   */
+  private Path newJar(String name) throws IOException {
+    FileSystem fs = dfsCluster.getFileSystem();
+    Path path = fs.makeQualified(new Path("/libs/" + name));
+    JarOutputStream jar = new JarOutputStream(fs.create(path));
+    for (Class<?> c : LOADED) {
+      String resource = c.getName().replace('.', '/') + ".class";
+      jar.putNextEntry(new JarEntry(resource));
+      InputStream in = c.getClassLoader().getResourceAsStream(resource);
+      IOUtils.copyBytes(in, jar, 4096, false);
+      in.close();
+      jar.closeEntry();
+    }
+    jar.close();
+    return path;
+  }
+
+  private static Library library(String id, Path jar) {
+    return new Library(id, asList(jar), Collections.<String>emptyList(), CHILD_FIRST);
+  }
+
+  @Test
+  public void testConcurrentLoading() throws Exception {
+    final Path jar = newJar("loaded.jar");
+    final int threads = 16;
+    final int iterations = 1000;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Class<?>[]>> futures = new ArrayList<Future<Class<?>[]>>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(new Callable<Class<?>[]>() {
+        @Override
+        public Class<?>[] call() throws Exception {
+          start.await();
+          Class<?>[] result = new Class<?>[LOADED.length];
+          for (int i = 0; i < iterations; i++) {
+            // equal definitions must get the same class loader
+            ClassLoader classLoader = LibraryManager.getClassLoader(library("concurrent-lib", jar), conf);
+            for (int j = 0; j < LOADED.length; j++) {
+              Class<?> c = classLoader.loadClass(LOADED[j].getName());
+              if (result[j] == null) {
+                result[j] = c;
+              } else if (result[j] != c) {
+                throw new AssertionError(c + " loaded twice");
+              }
+            }
+          }
+          return result;
+        }
+      }));
+    }
+    long t0 = System.currentTimeMillis();
+    start.countDown();
+    Class<?>[] first = futures.get(0).get();
+    for (Future<Class<?>[]> future : futures) {
+      Class<?>[] classes = future.get();
+      for (int j = 0; j < LOADED.length; j++) {
+        assertSame(first[j], classes[j]);
+      }
+    }
+    long t1 = System.currentTimeMillis();
+    executor.shutdown();
+    System.out.println(threads * iterations * LOADED.length + " class loads in " + (t1 - t0) + "ms");
+
+    ClassLoader classLoader = LibraryManager.getClassLoader(library("concurrent-lib", jar), conf);
+    String group = IsolationCounters.LIBRARY_GROUP + "concurrent-lib";
+    assertEquals(LOADED.length, IsolationCounters.get(group, IsolationCounters.CLASSES_DEFINED));
+    assertTrue(IsolationCounters.get(group, IsolationCounters.CLASSES_LOADED) >= threads * iterations * LOADED.length);
+    assertTrue(IsolationCounters.get(group, IsolationCounters.JAR_BYTES_DOWNLOADED) > 0);
+    for (int j = 0; j < LOADED.length; j++) {
+      // loaded from the library, not the parent
+      assertNotSame(LOADED[j], first[j]);
+      assertSame(classLoader, first[j].getClassLoader());
+    }
+    // classes not in the library come from the parent
+    assertSame(String.class, classLoader.loadClass(String.class.getName()));
+    assertSame(TestLibraryManager.class, classLoader.loadClass(TestLibraryManager.class.getName()));
+  }
+
+  @Test
+  public void testResources() throws Exception {
+    Path jar = newJar("resources.jar");
+    ClassLoader classLoader = LibraryManager.getClassLoader(library("resources", jar), conf);
+    String inLibrary = Loaded0.class.getName().replace('.', '/') + ".class";
+    String notInLibrary = TestLibraryManager.class.getName().replace('.', '/') + ".class";
+    // both the parent and the library have it
+    assertEquals(2, Collections.list(classLoader.getResources(inLibrary)).size());
+    assertEquals(1, Collections.list(classLoader.getResources(notInLibrary)).size());
+    assertEquals(getClass().getClassLoader().getResource(notInLibrary), classLoader.getResource(notInLibrary));
+    assertNull(classLoader.getResource("not/there.txt"));
+    assertEquals(0, Collections.list(classLoader.getResources("not/there.txt")).size());
+    try {
+      classLoader.loadClass("not.There");
+      fail("not.There should not be found");
+    } catch (ClassNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParentFirst() throws Exception {
+    Path jar = newJar("parentfirst.jar");
+    // without the child first rule the framework classes come from the parent
+    ClassLoader classLoader = LibraryManager.getClassLoader(new Library("parentfirst", jar), conf);
+    assertSame(Loaded0.class, classLoader.loadClass(Loaded0.class.getName()));
+    classLoader = LibraryManager.getClassLoader(
+        new Library("parentfirst-except-1", asList(jar), Collections.<String>emptyList(), asList(Loaded1.class.getName())), conf);
+    assertSame(Loaded0.class, classLoader.loadClass(Loaded0.class.getName()));
+    assertNotSame(Loaded1.class, classLoader.loadClass(Loaded1.class.getName()));
+  }
+
+  @Test
+  public void testDelegationRules() {
+    DelegationRules rules = DelegationRules.forLibrary(
+        new Library("rules", asList(new Path("foo")), asList("com.foo."), asList("org.apache.hadoop.hive.", "com.foo.bar.")));
+    assertTrue(rules.isParentFirst("java.lang.String"));
+    assertTrue(rules.isParentFirst("javax.xml.Foo"));
+    assertTrue(rules.isParentFirst("org.apache.hadoop.fs.Path"));
+    assertTrue(rules.isParentFirst("org.apache.commons.logging.Log"));
+    assertTrue(rules.isParentFirst("com.foo.Foo"));
+    assertFalse(rules.isParentFirst("com.foo.bar.Bar"));
+    assertFalse(rules.isParentFirst("org.apache.hadoop.hive.ql.Driver"));
+    assertFalse(rules.isParentFirst("parquet.hadoop.ParquetInputFormat"));
+    assertFalse(rules.isParentFirst("jav"));
+    assertFalse(rules.isParentFirst(""));
+  }
+
+  @Test
+  public void testDefaultDelegationRules() {
+    DelegationRules rules = DelegationRules.forLibrary(library("defaults", new Path("foo")));
+    assertTrue(rules.isParentFirst("org.apache.hadoop.mapreduce.InputFormat"));
+    assertTrue(rules.isParentFirst("org.apache.hadoop.conf.Configuration"));
+    // other projects in org.apache.hadoop are not part of hadoop-core
+    assertFalse(rules.isParentFirst("org.apache.hadoop.hive.ql.io.RCFileInputFormat"));
+    assertFalse(rules.isParentFirst("org.apache.hadoop.hbase.mapreduce.TableInputFormat"));
+  }
+
+  @Test
+  public void testOneClassLoaderPerLibrary() throws Exception {
+    Path jar = newJar("a.jar");
+    ClassLoader a = LibraryManager.getClassLoader(library("a", jar), conf);
+    assertSame(a, LibraryManager.getClassLoader(library("a", jar), conf));
+    assertNotSame(a, LibraryManager.getClassLoader(library("b", jar), conf));
+    assertEquals(LibraryManager.class.getClassLoader(), LibraryManager.getClassLoader(null, conf));
+  }
+}
@@ -0,0 +1,63 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.OutputRouter.Routes;
+
+public class TestOutputRouter {
+
+  public static class EvenRouter extends OutputRouter<Integer, String> {
+    @Override
+    public void route(Integer key, String value, Routes routes) {
+      routes.add(key % 2 == 0 ? "even" : "odd");
+      routes.add("all");
+    }
+  }
+
+  @Test
+  public void testRoutes() {
+    Routes routes = new Routes(asList("a", "b", "c"));
+    routes.add("c");
+    routes.add("a");
+    routes.add("c");
+    assertEquals(2, routes.size());
+    assertEquals(2, routes.get(0));
+    assertEquals(0, routes.get(1));
+    routes.clear();
+    assertEquals(0, routes.size());
+    routes.add("b");
+    routes.addAll();
+    assertEquals(3, routes.size());
+    assertEquals(1, routes.get(0));
+    assertEquals(0, routes.get(1));
+    assertEquals(2, routes.get(2));
+    try {
+      routes.add("d");
+      fail("d is not an output");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("d not found"));
+    }
+  }
+
+  @Test
+  public void testFromConf() throws Exception {
+    Configuration conf = new Configuration(false);
+    Routes routes = new Routes(asList("all", "even", "odd"));
+    // all outputs by default
+    OutputRouter.<Integer, String>fromConf(conf).route(1, "1", routes);
+    assertEquals(3, routes.size());
+    IsolatedConf.setOutputRouter(conf, EvenRouter.class);
+    OutputRouter<Integer, String> router = OutputRouter.fromConf(conf);
+    routes.clear();
+    router.route(3, "3", routes);
+    assertEquals(2, routes.size());
+    assertEquals(2, routes.get(0));
+    assertEquals(0, routes.get(1));
+  }
+}
@@ -0,0 +1,214 @@
+package com.twitter.isolated.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.RecordPrefetcher.Source;
+
+public class TestRecordPrefetcher {
+
+  /**
+   * numbered records, failing after failAfter records if >= 0
+   */
+  private static class NumberSource implements Source<LongWritable, Text> {
+    private final int count;
+    private final int failAfter;
+    private final ClassLoader expectedClassLoader;
+    private final LongWritable key = new LongWritable();
+    private final Text value = new Text();
+    private volatile int read;
+
+    NumberSource(int count, int failAfter, ClassLoader expectedClassLoader) {
+      this.count = count;
+      this.failAfter = failAfter;
+      this.expectedClassLoader = expectedClassLoader;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      assertSame(expectedClassLoader, Thread.currentThread().getContextClassLoader());
+      if (read == failAfter) {
+        throw new IOException("failed after " + failAfter);
+      }
+      if (read == count) {
+        return false;
+      }
+      key.set(read);
+      value.set("record " + read);
+      ++read;
+      return true;
+    }
+
+    @Override
+    public LongWritable getKey() {
+      return key;
+    }
+
+    @Override
+    public Text getValue() {
+      return value;
+    }
+
+    @Override
+    public float getProgress() {
+      return (float)read / count;
+    }
+
+    @Override
+    public long getPos() {
+      return read * 10L;
+    }
+  }
+
+  /**
+   * records with null keys, a value of another class every other record
+   */
+  private static class MixedSource implements Source<Object, Object> {
+    private final Object value;
+    private int read;
+
+    MixedSource(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    public boolean next() {
+      return ++read <= 10;
+    }
+
+    @Override
+    public Object getKey() {
+      return null;
+    }
+
+    @Override
+    public Object getValue() {
+      return read % 2 == 0 ? new LongWritable(read) : value;
+    }
+
+    @Override
+    public float getProgress() {
+      return 0;
+    }
+
+    @Override
+    public long getPos() {
+      return 0;
+    }
+  }
+
+  private static Configuration conf(int depth, long budget) {
+    Configuration conf = new Configuration();
+    IsolatedConf.setPrefetch(conf, true);
+    IsolatedConf.setPrefetchDepth(conf, depth);
+    IsolatedConf.setPrefetchBudget(conf, budget);
+    return conf;
+  }
+
+  private static final ClassLoader SPEC_CLASS_LOADER = new URLClassLoader(new URL[0]);
+
+  @Test
+  public void testDisabled() throws IOException {
+    assertNull(RecordPrefetcher.forReader(new Configuration(), "0", SPEC_CLASS_LOADER, new NumberSource(10, -1, SPEC_CLASS_LOADER)));
+  }
+
+  @Test
+  public void testReadAhead() throws Exception {
+    // a small buffer for the reader and the background thread to wait for each other
+    for (Configuration conf : new Configuration[] { conf(4, 1024 * 1024), conf(1000, 64), conf(1, 0) }) {
+      int count = 10000;
+      RecordPrefetcher<LongWritable, Text> prefetcher = RecordPrefetcher.forReader(conf, "prefetch", SPEC_CLASS_LOADER, new NumberSource(count, -1, SPEC_CLASS_LOADER));
+      LongWritable key = new LongWritable();
+      Text value = new Text();
+      float progress = 0;
+      assertEquals(0, prefetcher.getPos());
+      for (int i = 0; i < count; i++) {
+        assertTrue(prefetcher.next());
+        // the position of the delegate after this record, not after the records read ahead
+        assertEquals((i + 1) * 10L, prefetcher.getPos());
+        assertSame(key, prefetcher.readKey(key));
+        assertSame(value, prefetcher.readValue(value));
+        assertEquals(i, key.get());
+        assertEquals("record " + i, value.toString());
+        assertTrue(prefetcher.getProgress() >= progress);
+        progress = prefetcher.getProgress();
+      }
+      assertFalse(prefetcher.next());
+      assertEquals(1.0f, prefetcher.getProgress(), 0);
+      assertEquals(count * 10L, prefetcher.getPos());
+      prefetcher.close();
+    }
+    assertTrue(IsolationCounters.snapshot().get(IsolationCounters.SPEC_GROUP + "prefetch").containsKey(RecordPrefetcher.WAIT_MS));
+  }
+
+  @Test
+  public void testError() throws Exception {
+    RecordPrefetcher<LongWritable, Text> prefetcher = RecordPrefetcher.forReader(conf(16, 1024), "0", SPEC_CLASS_LOADER, new NumberSource(1000, 100, SPEC_CLASS_LOADER));
+    // the records read before the error are returned first
+    for (int i = 0; i < 100; i++) {
+      assertTrue(prefetcher.next());
+      assertEquals(i, prefetcher.readKey(null).get());
+      prefetcher.readValue(null);
+    }
+    try {
+      prefetcher.next();
+      fail("the error of the delegate should be thrown");
+    } catch (IOException e) {
+      assertEquals("failed after 100", e.getMessage());
+    }
+    prefetcher.close();
+  }
+
+  @Test
+  public void testNullsAndClassChanges() throws Exception {
+    RecordPrefetcher<Object, Object> prefetcher = RecordPrefetcher.forReader(conf(4, 1024), "0", SPEC_CLASS_LOADER, new MixedSource(new Text("text")));
+    Object value = null;
+    for (int i = 1; i <= 10; i++) {
+      assertTrue(prefetcher.next());
+      assertNull(prefetcher.readKey(null));
+      value = prefetcher.readValue(value);
+      assertEquals(i % 2 == 0 ? new LongWritable(i) : new Text("text"), value);
+    }
+    assertFalse(prefetcher.next());
+    prefetcher.close();
+  }
+
+  @Test
+  public void testNoSerialization() throws Exception {
+    RecordPrefetcher<Object, Object> prefetcher = RecordPrefetcher.forReader(conf(4, 1024), "0", SPEC_CLASS_LOADER, new MixedSource(new Object()));
+    try {
+      prefetcher.next();
+      fail("java.lang.Object has no serialization");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("java.lang.Object"));
+      assertTrue(e.getMessage(), e.getMessage().contains("com.twitter.isolated.prefetch"));
+    }
+    prefetcher.close();
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    NumberSource source = new NumberSource(1000000, -1, SPEC_CLASS_LOADER);
+    RecordPrefetcher<LongWritable, Text> prefetcher = RecordPrefetcher.forReader(conf(8, 1024), "0", SPEC_CLASS_LOADER, source);
+    assertTrue(prefetcher.next());
+    prefetcher.close();
+    int read = source.read;
+    // the buffer is full: the background thread stopped before the end
+    assertTrue(read + " records read", read < 1000);
+    Thread.sleep(50);
+    assertEquals(read, source.read);
+  }
+}
@@ -0,0 +1,125 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.SplitCodec.Envelope;
+import com.twitter.isolated.hadoop.SplitCodec.PayloadWriter;
+
+public class TestSplitCodec {
+
+  private static final String SPLIT_CLASS = FileSplit.class.getName();
+
+  private static Configuration conf(boolean compress) {
+    Configuration conf = new Configuration(false);
+    IsolatedConf.setInputSpecs(conf, "a", "b");
+    SplitCodec.setSplitClasses(conf, asList(SPLIT_CLASS));
+    IsolatedConf.setSplitsCompress(conf, compress);
+    return conf;
+  }
+
+  private static PayloadWriter payload(final FileSplit split) {
+    return new PayloadWriter() {
+      @Override
+      public void write(DataOutputStream out) throws IOException {
+        split.write(out);
+      }
+    };
+  }
+
+  private static DataInputBuffer input(DataOutputBuffer out) {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    return in;
+  }
+
+  private static FileSplit readSplit(Envelope envelope) throws IOException {
+    FileSplit split = ReflectionUtils.newInstance(FileSplit.class, null);
+    split.readFields(envelope.getPayload());
+    return split;
+  }
+
+  private static void assertRoundTrip(Configuration conf, String specID, String className) throws IOException {
+    FileSplit split = new FileSplit(new Path("/data/" + specID + "/part-00000"), 10, 1000, new String[0]);
+    SplitCodec codec = SplitCodec.fromConf(conf);
+    DataOutputBuffer out = new DataOutputBuffer();
+    codec.write(out, specID, className, 1000, new String[] { "h1" }, payload(split));
+    // followed by something else
+    out.writeInt(42);
+    DataInputBuffer in = input(out);
+    Envelope envelope = codec.read(in);
+    assertEquals(specID, envelope.getSpecID());
+    assertEquals(className, envelope.getClassName());
+    assertTrue(envelope.isSized());
+    assertEquals(1000, envelope.getLength());
+    assertEquals("h1", envelope.getLocations()[0]);
+    FileSplit read = readSplit(envelope);
+    assertEquals(split.getPath(), read.getPath());
+    assertEquals(split.getStart(), read.getStart());
+    assertEquals(split.getLength(), read.getLength());
+    assertEquals(42, in.readInt());
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    assertRoundTrip(conf(false), "b", SPLIT_CLASS);
+    assertRoundTrip(conf(true), "a", SPLIT_CLASS);
+    // not in the tables
+    assertRoundTrip(conf(false), "c", "some.other.Split");
+    assertRoundTrip(conf(true), "c", "some.other.Split");
+  }
+
+  @Test
+  public void testCompact() throws IOException {
+    FileSplit split = new FileSplit(new Path("/data/a/part-00000"), 10, 1000, new String[0]);
+    DataOutputBuffer indexed = new DataOutputBuffer();
+    SplitCodec.fromConf(conf(false)).write(indexed, "a", SPLIT_CLASS, 1000, new String[0], payload(split));
+    DataOutputBuffer old = new DataOutputBuffer();
+    old.writeUTF("a");
+    old.writeUTF(SPLIT_CLASS);
+    split.write(old);
+    // the class name is replaced by an index, the header and the length of the split are a few bytes
+    assertTrue(indexed.getLength() + " < " + old.getLength(), indexed.getLength() < old.getLength() - SPLIT_CLASS.length() + 16);
+  }
+
+  @Test
+  public void testOldFormat() throws IOException {
+    FileSplit split = new FileSplit(new Path("/data/b/part-00000"), 10, 1000, new String[0]);
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeUTF("b");
+    out.writeUTF(SPLIT_CLASS);
+    split.write(out);
+    out.writeInt(42);
+    DataInputBuffer in = input(out);
+    Envelope envelope = SplitCodec.fromConf(conf(true)).read(in);
+    assertEquals("b", envelope.getSpecID());
+    assertEquals(SPLIT_CLASS, envelope.getClassName());
+    assertFalse(envelope.isSized());
+    assertEquals(split.getPath(), readSplit(envelope).getPath());
+    assertEquals(42, in.readInt());
+  }
+
+  @Test
+  public void testShared() throws IOException {
+    Configuration conf = conf(false);
+    SplitCodec codec = SplitCodec.fromConf(conf);
+    assertSame(codec, SplitCodec.fromConf(new Configuration(conf)));
+    assertSame(
+        codec.getSerialization("a", FileSplit.class, conf),
+        codec.getSerialization("a", FileSplit.class, conf));
+  }
+}
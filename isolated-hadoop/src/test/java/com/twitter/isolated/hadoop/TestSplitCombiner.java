@@ -0,0 +1,80 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.net.DNSToSwitchMapping;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.SplitCombiner.Combined;
+
+public class TestSplitCombiner {
+
+  public static class TwoRacks implements DNSToSwitchMapping {
+    @Override
+    public List<String> resolve(List<String> names) {
+      List<String> racks = new ArrayList<String>();
+      for (String name : names) {
+        racks.add(name.equals("h3") ? "/r2" : "/r1");
+      }
+      return racks;
+    }
+  }
+
+  private static Configuration conf() {
+    Configuration conf = new Configuration(false);
+    conf.setClass("topology.node.switch.mapping.impl", TwoRacks.class, DNSToSwitchMapping.class);
+    IsolatedConf.setCombineSize(conf, 100);
+    IsolatedConf.setCombineMaxSize(conf, 150);
+    return conf;
+  }
+
+  private static String[] hosts(String... hosts) {
+    return hosts;
+  }
+
+  @Test
+  public void testLocality() {
+    SplitCombiner<String> combiner = new SplitCombiner<String>(conf());
+    combiner.add("a", 60, hosts("h1"));
+    combiner.add("b", 60, hosts("h1"));
+    combiner.add("c", 60, hosts("h2"));
+    combiner.add("d", 60, hosts("h3"));
+    combiner.add("e", 60, null);
+    combiner.add("f", 300, hosts("h1"));
+    combiner.add("x", 60, hosts("h1"));
+    List<Combined<String>> combined = combiner.combine();
+    assertEquals(4, combined.size());
+    // node local
+    assertEquals(asList("a", "b"), combined.get(0).getSplits());
+    assertArrayEquals(hosts("h1"), combined.get(0).getLocations());
+    // bigger than the max on its own
+    assertEquals(asList("f"), combined.get(1).getSplits());
+    assertEquals(300, combined.get(1).getLength());
+    // rack local
+    assertEquals(asList("x", "c"), combined.get(2).getSplits());
+    assertArrayEquals(hosts("h1", "h2"), combined.get(2).getLocations());
+    // what is left
+    assertEquals(asList("d", "e"), combined.get(3).getSplits());
+    assertArrayEquals(hosts("h3"), combined.get(3).getLocations());
+  }
+
+  @Test
+  public void testMaxSize() {
+    SplitCombiner<String> combiner = new SplitCombiner<String>(conf());
+    combiner.add("a", 90, null);
+    combiner.add("b", 90, null);
+    combiner.add("c", 5, null);
+    List<Combined<String>> combined = combiner.combine();
+    assertEquals(2, combined.size());
+    assertEquals(asList("a"), combined.get(0).getSplits());
+    assertEquals(asList("b", "c"), combined.get(1).getSplits());
+    assertEquals(95, combined.get(1).getLength());
+    assertEquals(0, new SplitCombiner<String>(conf()).combine().size());
+  }
+}
@@ -0,0 +1,77 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+public class TestSplitHints {
+
+  @Test
+  public void testProportional() {
+    Configuration conf = new Configuration(false);
+    Map<String, Integer> hints = SplitHints.numSplitsBySpec(conf, 100, asList("big", "small", "empty"), asList(900L, 100L, 0L));
+    assertEquals(90, (int)hints.get("big"));
+    assertEquals(10, (int)hints.get("small"));
+    // at least one split
+    assertEquals(1, (int)hints.get("empty"));
+  }
+
+  @Test
+  public void testUnknownSizes() {
+    Configuration conf = new Configuration(false);
+    // unknown is the average of the others
+    Map<String, Integer> hints = SplitHints.numSplitsBySpec(conf, 90, asList("a", "b", "c"), asList(100L, 200L, SplitHints.UNKNOWN));
+    assertEquals(20, (int)hints.get("a"));
+    assertEquals(40, (int)hints.get("b"));
+    assertEquals(30, (int)hints.get("c"));
+    hints = SplitHints.numSplitsBySpec(conf, 90, asList("a", "b"), asList(SplitHints.UNKNOWN, SplitHints.UNKNOWN));
+    assertEquals(45, (int)hints.get("a"));
+    assertEquals(45, (int)hints.get("b"));
+    // not proportional
+    hints = SplitHints.numSplitsBySpec(conf, 90, asList("a", "b"), null);
+    assertEquals(90, (int)hints.get("a"));
+    assertEquals(90, (int)hints.get("b"));
+  }
+
+  @Test
+  public void testMinMax() {
+    Configuration conf = new Configuration(false);
+    IsolatedConf.setSpecSplits(conf, "big", 1, 50);
+    IsolatedConf.setSpecSplits(conf, "small", 20, 100);
+    Map<String, Integer> hints = SplitHints.numSplitsBySpec(conf, 100, asList("big", "small"), asList(900L, 100L));
+    assertEquals(50, (int)hints.get("big"));
+    assertEquals(20, (int)hints.get("small"));
+  }
+
+  private static void write(FileSystem fs, Path path, int length) throws IOException {
+    FSDataOutputStream out = fs.create(path);
+    out.write(new byte[length]);
+    out.close();
+  }
+
+  @Test
+  public void testEstimateInputSize() throws IOException {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = fs.makeQualified(new Path("target/testData/TestSplitHints"));
+    fs.delete(dir, true);
+    write(fs, new Path(dir, "a/part-0"), 100);
+    write(fs, new Path(dir, "a/part-1"), 50);
+    write(fs, new Path(dir, "b/part-0"), 10);
+    write(fs, new Path(dir, "c"), 7);
+    conf.set("mapred.input.dir", new Path(dir, "a") + "," + new Path(dir, "c") + "," + new Path(dir, "missing"));
+    assertEquals(157, SplitHints.estimateInputSize(conf));
+    conf.set("mapred.input.dir", new Path(dir, "*/part-0").toString());
+    assertEquals(110, SplitHints.estimateInputSize(conf));
+    conf.unset("mapred.input.dir");
+    assertEquals(SplitHints.UNKNOWN, SplitHints.estimateInputSize(conf));
+  }
+}
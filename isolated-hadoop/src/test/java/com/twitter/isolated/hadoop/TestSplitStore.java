@@ -0,0 +1,139 @@
+package com.twitter.isolated.hadoop;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.SplitCodec.Envelope;
+import com.twitter.isolated.hadoop.SplitCodec.PayloadWriter;
+
+public class TestSplitStore {
+
+  private static final int SPLITS = 100;
+
+  private static Configuration conf(Configuration base, String jobDir) {
+    Configuration conf = new Configuration(base);
+    conf.set("mapreduce.job.dir", jobDir);
+    IsolatedConf.setInputSpecs(conf, "a", "b");
+    SplitCodec.setSplitClasses(conf, asList(FileSplit.class.getName()));
+    IsolatedConf.setSplitsStore(conf, true);
+    return conf;
+  }
+
+  private static FileSplit split(int i) {
+    return new FileSplit(new Path("/data/part-" + i), i, 1000 + i, new String[0]);
+  }
+
+  /**
+   * writes the splits as the planning would, then reads them back as the tasks would
+   */
+  private static void assertStored(Configuration conf) throws IOException {
+    SplitStore.Writer writer = SplitStore.create(conf);
+    SplitCodec codec = SplitCodec.fromConf(conf);
+    DataOutputBuffer out = new DataOutputBuffer();
+    for (int i = 0; i < SPLITS; i++) {
+      final FileSplit split = split(i);
+      Envelope envelope = codec.encode(i % 2 == 0 ? "a" : "b", FileSplit.class.getName(), split.getLength(), new String[] { "h" + i }, new PayloadWriter() {
+        @Override
+        public void write(DataOutputStream payload) throws IOException {
+          split.write(payload);
+        }
+      });
+      codec.write(out, codec.store(envelope, writer));
+    }
+    writer.close();
+    // only the header of each split is inline
+    assertTrue(out.getLength() + " bytes", out.getLength() < SPLITS * 20);
+
+    // a task has its own conf from job.xml
+    SplitCodec taskCodec = SplitCodec.fromConf(new Configuration(conf));
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    List<Envelope> envelopes = new ArrayList<Envelope>();
+    for (int i = 0; i < SPLITS; i++) {
+      envelopes.add(taskCodec.read(in));
+    }
+    // in any order
+    for (int i = SPLITS - 1; i >= 0; i--) {
+      Envelope envelope = envelopes.get(i);
+      assertEquals(1000 + i, envelope.getLength());
+      assertEquals("h" + i, envelope.getLocations()[0]);
+      FileSplit read = ReflectionUtils.newInstance(FileSplit.class, null);
+      read.readFields(envelope.getPayload());
+      assertEquals(split(i).getPath(), read.getPath());
+      assertEquals(i, read.getStart());
+    }
+  }
+
+  @Test
+  public void testLocal() throws IOException {
+    Path jobDir = new Path("target/testData/TestSplitStore/job");
+    assertStored(conf(new Configuration(), jobDir.toString()));
+    Configuration compressed = conf(new Configuration(), jobDir.toString());
+    IsolatedConf.setSplitsCompress(compressed, true);
+    assertStored(compressed);
+  }
+
+  @Test
+  public void testHDFS() throws IOException {
+    Configuration base = new Configuration();
+    System.setProperty("hadoop.log.dir", "/tmp/logs");
+    MiniDFSCluster dfsCluster = new MiniDFSCluster(base, 1, true, null);
+    try {
+      FileSystem fs = dfsCluster.getFileSystem();
+      assertStored(conf(fs.getConf(), fs.makeQualified(new Path("/staging/job")).toString()));
+    } finally {
+      dfsCluster.shutdown();
+    }
+  }
+
+  @Test
+  public void testSplitClassesInTheJobDir() throws IOException {
+    Configuration conf = new Configuration();
+    conf.set("mapreduce.job.dir", "target/testData/TestSplitStore/classes");
+    IsolatedConf.setInputSpecs(conf, "a");
+    // the LocalJobRunner runs the tasks with the conf the job was submitted with
+    Configuration submitted = new Configuration(conf);
+    SplitStore.saveSplitClasses(conf, asList("some.other.Split", FileSplit.class.getName()));
+    final FileSplit split = split(1);
+    DataOutputBuffer out = new DataOutputBuffer();
+    SplitCodec.fromConf(conf).write(out, "a", FileSplit.class.getName(), split.getLength(), new String[0], new PayloadWriter() {
+      @Override
+      public void write(DataOutputStream payload) throws IOException {
+        split.write(payload);
+      }
+    });
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    Envelope envelope = SplitCodec.fromConf(submitted).read(in);
+    assertEquals(FileSplit.class.getName(), envelope.getClassName());
+    assertEquals(split.getLength(), envelope.getLength());
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    Configuration conf = new Configuration(false);
+    conf.set("mapreduce.job.dir", "target/testData/TestSplitStore/job");
+    assertNull(SplitStore.create(conf));
+    conf = new Configuration(false);
+    IsolatedConf.setSplitsStore(conf, true);
+    // no job dir: inline
+    assertNull(SplitStore.create(conf));
+  }
+}
@@ -4,10 +4,15 @@ import static com.twitter.isolated.hadoop.IsolatedConf.setClassDefinitions;
 import static com.twitter.isolated.hadoop.IsolatedConf.setInputSpecs;
 import static com.twitter.isolated.hadoop.IsolatedConf.setLibraries;
 import static com.twitter.isolated.hadoop.IsolatedConf.setOutputSpec;
+import static com.twitter.isolated.hadoop.IsolatedConf.setOutputSpecs;
 import static com.twitter.isolated.hadoop.IsolatedConf.setSpecs;
 import static java.lang.Thread.sleep;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -23,6 +28,8 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MiniMRCluster;
 import org.apache.hadoop.mapred.RunningJob;
@@ -140,6 +147,93 @@ public class TestIsolatedInputFormat {
     }
   }
 
+  @Test
+  public void testCombinedSplits() throws Exception {
+    FileSystem fileSystem = getFileSystem();
+    Path in = new Path("target/testData/TestIsolatedInputFormat/combined/in");
+    Path out = new Path("target/testData/TestIsolatedInputFormat/combined/out");
+    fileSystem.delete(in, true);
+    fileSystem.delete(out, true);
+    for (String name : asList("a", "b")) {
+      FSDataOutputStream input = fileSystem.create(new Path(in, name));
+      input.write(name.getBytes());
+      input.close();
+    }
+
+    // configure job
+    JobConf jobConf = mrCluster.createJobConf();
+    setClassDefinitions(jobConf, asList(new ClassDefinition("text-inputformat", null, TextInputFormat.class.getName())));
+    setSpecs(
+        jobConf,
+        asList(
+            new Spec("a", "text-inputformat", "mapred.input.dir=" + fileSystem.makeQualified(new Path(in, "a")).toUri()),
+            new Spec("b", "text-inputformat", "mapred.input.dir=" + fileSystem.makeQualified(new Path(in, "b")).toUri())
+            )
+        );
+    setInputSpecs(jobConf, "a", "b");
+
+    jobConf.setInputFormat(CombineIsolatedInputFormat.class);
+    jobConf.setNumReduceTasks(0);
+    jobConf.setOutputFormat(TextOutputFormat.class);
+    FileOutputFormat.setOutputPath(jobConf, out);
+
+    RunningJob runningJob = new JobClient(jobConf).submitJob(jobConf);
+    waitForJob(runningJob);
+    // both specs in one task
+    BufferedReader r = new BufferedReader(new InputStreamReader(fileSystem.open(new Path(out, "part-00000"))));
+    assertEquals("0\ta", r.readLine());
+    assertEquals("0\tb", r.readLine());
+    assertNull(r.readLine());
+    r.close();
+    assertFalse(fileSystem.exists(new Path(out, "part-00001")));
+  }
+
+  @Test
+  public void testSeveralOutputSpecsAreRejected() throws Exception {
+    FileSystem fileSystem = FileSystem.getLocal(conf);
+    Path in = new Path("target/testData/TestIsolatedInputFormat/severalOutputs/in");
+    Path all = new Path("target/testData/TestIsolatedInputFormat/severalOutputs/all");
+    Path ones = new Path("target/testData/TestIsolatedInputFormat/severalOutputs/ones");
+    fileSystem.delete(in, true);
+    fileSystem.delete(all, true);
+    fileSystem.delete(ones, true);
+    FSDataOutputStream input = fileSystem.create(new Path(in, "a"));
+    input.write("a".getBytes());
+    input.close();
+
+    // configure a LocalJobRunner job
+    JobConf jobConf = new JobConf();
+    jobConf.set("mapred.job.tracker", "local");
+    jobConf.set("fs.default.name", "file:///");
+    setClassDefinitions(jobConf, asList(
+        new ClassDefinition("text-inputformat", null, TextInputFormat.class.getName()),
+        new ClassDefinition("text-outputformat", null, TextOutputFormat.class.getName())
+        ));
+    setSpecs(
+        jobConf,
+        asList(
+            new Spec("a", "text-inputformat", "mapred.input.dir=" + fileSystem.makeQualified(in).toUri()),
+            new Spec("all", "text-outputformat", "mapred.output.dir=" + fileSystem.makeQualified(all).toUri()),
+            new Spec("ones", "text-outputformat", "mapred.output.dir=" + fileSystem.makeQualified(ones).toUri())
+            )
+        );
+    setInputSpecs(jobConf, "a");
+    setOutputSpecs(jobConf, "all", "ones");
+
+    jobConf.setInputFormat(IsolatedInputFormat.class);
+    jobConf.setNumReduceTasks(0);
+    jobConf.setOutputFormat(IsolatedOutputFormat.class);
+    try {
+      JobClient.runJob(jobConf);
+      fail("the mapred API can not commit several outputs");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("[all, ones]"));
+    }
+    // nothing was written
+    assertFalse(fileSystem.exists(all));
+    assertFalse(fileSystem.exists(ones));
+  }
+
   private void validate(InputStream s, String v) throws IOException {
     BufferedReader r = new BufferedReader(new InputStreamReader(s));
     assertEquals("key:" + v + "\tvalue:" + v, r.readLine());
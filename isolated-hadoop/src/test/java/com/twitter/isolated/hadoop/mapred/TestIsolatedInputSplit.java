@@ -0,0 +1,60 @@
+package com.twitter.isolated.hadoop.mapred;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.ClassDefinition;
+import com.twitter.isolated.hadoop.IsolatedConf;
+import com.twitter.isolated.hadoop.Spec;
+
+public class TestIsolatedInputSplit {
+
+  /**
+   * returns as many small splits as the hint
+   */
+  public static class ManySplitsInputFormat implements InputFormat<Void, Void> {
+
+    @Override
+    public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+      InputSplit[] splits = new InputSplit[numSplits];
+      for (int i = 0; i < numSplits; i++) {
+        splits[i] = new FileSplit(new Path("/data/part-" + i), 0, 1, new String[0]);
+      }
+      return splits;
+    }
+
+    @Override
+    public RecordReader<Void, Void> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test
+  public void testSplitsShareOneConf() throws Exception {
+    JobConf conf = new JobConf();
+    IsolatedConf.setClassDefinitions(conf, asList(new ClassDefinition("many", null, ManySplitsInputFormat.class.getName())));
+    IsolatedConf.setSpecs(conf, asList(new Spec("0", "many")));
+    IsolatedConf.setInputSpecs(conf, "0");
+    InputSplit[] splits = new IsolatedInputFormat<Void, Void>().getSplits(conf, 100);
+    assertEquals(100, splits.length);
+    // a copy of the conf per split does not scale to large jobs
+    JobConf splitConf = ((IsolatedInputSplit)splits[0]).getConf();
+    assertNotSame(conf, splitConf);
+    for (InputSplit split : splits) {
+      assertSame(splitConf, ((IsolatedInputSplit)split).getConf());
+    }
+  }
+}
@@ -3,6 +3,8 @@ package com.twitter.isolated.hadoop.mapreduce;
 import static java.lang.Thread.sleep;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -32,6 +34,8 @@ import com.twitter.isolated.hadoop.ClassDefinition;
 import com.twitter.isolated.hadoop.Spec;
 import com.twitter.isolated.hadoop.IsolatedConf;
 import com.twitter.isolated.hadoop.Library;
+import com.twitter.isolated.hadoop.OutputRouter;
+import com.twitter.isolated.hadoop.OutputRouter.Routes;
 import com.twitter.isolated.hadoop.mapreduce.IsolatedInputFormat;
 
 public class TestIsolatedInputFormat {
@@ -170,11 +174,113 @@ public class TestIsolatedInputFormat {
     waitForJob(job);
     validate(fileSystem.open(new Path(out, "part-m-00000")), "1");
     validate(fileSystem.open(new Path(out, "part-m-00001")), "2");
+    // one record per spec
+    assertEquals(1, job.getCounters().findCounter("Isolated spec 0", "records read").getValue());
+    assertEquals(1, job.getCounters().findCounter("Isolated spec 1", "records read").getValue());
+    assertEquals(1, job.getCounters().findCounter("Isolated spec 1", "initialize calls").getValue());
   }
 
-  private void validate(InputStream s, String v) throws IOException {
+  @Test
+  public void testCombinedSplits() throws Exception {
+    FileSystem fileSystem = getFileSystem();
+    Path out = new Path("target/testData/TestIsolatedInputFormat/combined");
+    fileSystem.delete(out, true);
+
+    // configure job
+    Job job = new Job(mrCluster.createJobConf());
+    IsolatedConf.setClassDefinitions(
+        job.getConfiguration(),
+        asList(
+            new ClassDefinition("ConfigModifierInputFormat", null, ConfigModifierInputFormat.class.getName())
+            )
+        );
+    IsolatedConf.setSpecs(
+        job.getConfiguration(),
+        asList(
+            new Spec("0", "ConfigModifierInputFormat", "my.external.key=1"),
+            new Spec("1", "ConfigModifierInputFormat", "my.external.key=2")
+            )
+        );
+    IsolatedConf.setInputSpecs(job.getConfiguration(), "0", "1");
+
+    job.setInputFormatClass(CombineIsolatedInputFormat.class);
+    job.setNumReduceTasks(0);
+    job.setOutputFormatClass(TextOutputFormat.class);
+    job.setMapperClass(MyMapper.class);
+    TextOutputFormat.setOutputPath(job, out);
+    job.submit();
+    waitForJob(job);
+    // both specs in one task, each read in its own context
+    validate(fileSystem.open(new Path(out, "part-m-00000")), "1", "2");
+    assertFalse(fileSystem.exists(new Path(out, "part-m-00001")));
+    assertEquals(1, job.getCounters().findCounter("Isolated spec 0", "records read").getValue());
+    assertEquals(1, job.getCounters().findCounter("Isolated spec 1", "records read").getValue());
+  }
+
+  /**
+   * every record to "all", the records of spec 0 to "ones" as well
+   */
+  public static class OnesRouter extends OutputRouter<String, String> {
+    @Override
+    public void route(String key, String value, Routes routes) {
+      routes.add("all");
+      if (key.equals("key:1")) {
+        routes.add("ones");
+      }
+    }
+  }
+
+  @Test
+  public void testMultipleOutputs() throws Exception {
+    FileSystem fileSystem = getFileSystem();
+    Path all = new Path("target/testData/TestIsolatedInputFormat/multiple/all");
+    Path ones = new Path("target/testData/TestIsolatedInputFormat/multiple/ones");
+    fileSystem.delete(all, true);
+    fileSystem.delete(ones, true);
+
+    // configure job
+    Job job = new Job(mrCluster.createJobConf());
+    IsolatedConf.setClassDefinitions(
+        job.getConfiguration(),
+        asList(
+            new ClassDefinition("ConfigModifierInputFormat", null, ConfigModifierInputFormat.class.getName()),
+            new ClassDefinition("text-outputformat", null, TextOutputFormat.class.getName())
+            )
+        );
+    IsolatedConf.setSpecs(
+        job.getConfiguration(),
+        asList(
+            new Spec("0", "ConfigModifierInputFormat", "my.external.key=1"),
+            new Spec("1", "ConfigModifierInputFormat", "my.external.key=2"),
+            new Spec("all", "text-outputformat", "mapred.output.dir=" + all.toUri()),
+            new Spec("ones", "text-outputformat", "mapred.output.dir=" + ones.toUri())
+            )
+        );
+    IsolatedConf.setInputSpecs(job.getConfiguration(), "0", "1");
+    IsolatedConf.setOutputSpecs(job.getConfiguration(), "all", "ones");
+    IsolatedConf.setOutputRouter(job.getConfiguration(), OnesRouter.class);
+
+    job.setInputFormatClass(IsolatedInputFormat.class);
+    job.setNumReduceTasks(0);
+    job.setOutputFormatClass(IsolatedOutputFormat.class);
+    job.setMapperClass(MyMapper.class);
+    job.submit();
+    waitForJob(job);
+    // each output committed by its own committer
+    validate(fileSystem.open(new Path(all, "part-m-00000")), "1");
+    validate(fileSystem.open(new Path(all, "part-m-00001")), "2");
+    validate(fileSystem.open(new Path(ones, "part-m-00000")), "1");
+    assertEquals(0, fileSystem.getFileStatus(new Path(ones, "part-m-00001")).getLen());
+    assertTrue(fileSystem.exists(new Path(all, "_SUCCESS")));
+    assertTrue(fileSystem.exists(new Path(ones, "_SUCCESS")));
+    assertFalse(fileSystem.exists(new Path(ones, "_temporary")));
+  }
+
+  private void validate(InputStream s, String... values) throws IOException {
     BufferedReader r = new BufferedReader(new InputStreamReader(s));
-    assertEquals("key:" + v + "\tvalue:" + v, r.readLine());
+    for (String v : values) {
+      assertEquals("key:" + v + "\tvalue:" + v, r.readLine());
+    }
     r.close();
   }
 
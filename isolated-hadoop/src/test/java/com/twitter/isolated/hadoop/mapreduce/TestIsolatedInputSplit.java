@@ -0,0 +1,200 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.ClassDefinition;
+import com.twitter.isolated.hadoop.IsolatedConf;
+import com.twitter.isolated.hadoop.Spec;
+import com.twitter.isolated.hadoop.SplitCodec;
+import com.twitter.isolated.hadoop.SplitCodec.PayloadWriter;
+
+public class TestIsolatedInputSplit {
+
+  private static final String[] HOSTS = { "h1", "h2" };
+
+  private static Configuration conf() {
+    Configuration conf = new Configuration();
+    IsolatedConf.setClassDefinitions(conf, asList(new ClassDefinition("text", null, TextInputFormat.class.getName())));
+    IsolatedConf.setSpecs(conf, asList(new Spec("0", "text")));
+    IsolatedConf.setInputSpecs(conf, "0");
+    SplitCodec.setSplitClasses(conf, asList(FileSplit.class.getName()));
+    return conf;
+  }
+
+  private static IsolatedInputSplit read(byte[] bytes, int length, Configuration conf) throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(bytes, length);
+    IsolatedInputSplit split = new IsolatedInputSplit();
+    split.setConf(conf);
+    split.readFields(in);
+    return split;
+  }
+
+  @Test
+  public void testLazyDelegate() throws Exception {
+    Configuration conf = conf();
+    FileSplit fileSplit = new FileSplit(new Path("/data/part-00000"), 0, 1000, HOSTS);
+    DataOutputBuffer out = new DataOutputBuffer();
+    new IsolatedInputSplit("0", fileSplit, conf).write(out);
+
+    IsolatedInputSplit split = read(out.getData(), out.getLength(), conf);
+    assertEquals(1000, split.getLength());
+    assertArrayEquals(HOSTS, split.getLocations());
+    // written again as read
+    DataOutputBuffer again = new DataOutputBuffer();
+    split.write(again);
+    assertArrayEquals(Arrays.copyOf(out.getData(), out.getLength()), Arrays.copyOf(again.getData(), again.getLength()));
+
+    FileSplit delegate = (FileSplit)split.getDelegate();
+    assertEquals(fileSplit.getPath(), delegate.getPath());
+    assertEquals(1000, split.getLength());
+  }
+
+  @Test
+  public void testSchedulingDoesNotLoadTheDelegate() throws Exception {
+    Configuration conf = conf();
+    final FileSplit fileSplit = new FileSplit(new Path("/data/part-00000"), 0, 1000, HOSTS);
+    DataOutputBuffer out = new DataOutputBuffer();
+    // a split class that only the task could load
+    SplitCodec.fromConf(conf).write(out, "0", "com.example.NotOnTheClassPath", 1000, HOSTS, new PayloadWriter() {
+      @Override
+      public void write(DataOutputStream payload) throws IOException {
+        fileSplit.write(payload);
+      }
+    });
+
+    IsolatedInputSplit split = read(out.getData(), out.getLength(), conf);
+    assertEquals(1000, split.getLength());
+    assertArrayEquals(HOSTS, split.getLocations());
+    split.write(new DataOutputBuffer());
+    try {
+      split.getDelegate();
+      fail("the delegate class can not be loaded");
+    } catch (RuntimeException e) {
+      // expected
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSideFile() throws Exception {
+    Configuration conf = conf();
+    Path input = new Path("target/testData/TestIsolatedInputSplit/in");
+    FileSystem fs = input.getFileSystem(conf);
+    fs.delete(input, true);
+    for (int i = 0; i < 3; i++) {
+      FSDataOutputStream out = fs.create(new Path(input, "part-" + i));
+      out.writeBytes("a\nb\n");
+      out.close();
+    }
+    IsolatedConf.setSpecs(conf, asList(new Spec("0", "text", "mapred.input.dir=" + fs.makeQualified(input))));
+    IsolatedConf.setSplitsStore(conf, true);
+    conf.set("mapreduce.job.dir", "target/testData/TestIsolatedInputSplit/job");
+
+    JobContext job = new JobContext(conf, new JobID());
+    List<InputSplit> splits = new IsolatedInputFormat<Object, Object>().getSplits(job);
+    assertEquals(3, splits.size());
+    // the JobContext has a copy of the conf: the tasks get the conf the job was submitted with
+    Configuration taskConf = new Configuration(conf);
+    for (InputSplit split : splits) {
+      DataOutputBuffer out = new DataOutputBuffer();
+      ((IsolatedInputSplit)split).write(out);
+      // the delegate is in the side file, only the header and the locations are inline
+      assertTrue(out.getLength() + " bytes", out.getLength() < 32);
+      IsolatedInputSplit read = read(out.getData(), out.getLength(), taskConf);
+      assertEquals(4, read.getLength());
+      assertEquals(4, ((FileSplit)read.getDelegate()).getLength());
+    }
+  }
+
+  private static Path input(Configuration conf, String name, int files) throws IOException {
+    Path input = new Path("target/testData/TestIsolatedInputSplit/" + name);
+    FileSystem fs = input.getFileSystem(conf);
+    fs.delete(input, true);
+    for (int i = 0; i < files; i++) {
+      FSDataOutputStream out = fs.create(new Path(input, "part-" + i));
+      out.writeBytes("a\nb\n");
+      out.close();
+    }
+    return fs.makeQualified(input);
+  }
+
+  @Test
+  public void testNoJobDir() throws Exception {
+    Configuration conf = new Configuration();
+    IsolatedConf.setClassDefinitions(conf, asList(new ClassDefinition("text", null, TextInputFormat.class.getName())));
+    IsolatedConf.setSpecs(conf, asList(new Spec("0", "text", "mapred.input.dir=" + input(conf, "nojobdir", 2))));
+    IsolatedConf.setInputSpecs(conf, "0");
+    List<InputSplit> splits = new IsolatedInputFormat<Object, Object>().getSplits(new JobContext(conf, new JobID()));
+    assertEquals(2, splits.size());
+    for (InputSplit split : splits) {
+      DataOutputBuffer out = new DataOutputBuffer();
+      ((IsolatedInputSplit)split).write(out);
+      // the class table of the planning is lost with the copy of the conf
+      IsolatedInputSplit read = read(out.getData(), out.getLength(), new Configuration(conf));
+      assertEquals(4, ((FileSplit)read.getDelegate()).getLength());
+    }
+  }
+
+  public static class LineCountMapper extends Mapper<LongWritable, Text, Text, NullWritable> {
+    @Override
+    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+      context.write(value, NullWritable.get());
+    }
+  }
+
+  @Test
+  public void testJobClientRoundTrip() throws Exception {
+    for (boolean store : new boolean[] { false, true }) {
+      Configuration conf = new Configuration();
+      conf.set("mapred.job.tracker", "local");
+      conf.set("fs.default.name", "file:///");
+      IsolatedConf.setClassDefinitions(conf, asList(new ClassDefinition("text", null, TextInputFormat.class.getName())));
+      IsolatedConf.setSpecs(conf, asList(new Spec("0", "text", "mapred.input.dir=" + input(conf, "roundtrip/in", 3))));
+      IsolatedConf.setInputSpecs(conf, "0");
+      IsolatedConf.setSplitsStore(conf, store);
+      Path out = new Path("target/testData/TestIsolatedInputSplit/roundtrip/out");
+      out.getFileSystem(conf).delete(out, true);
+
+      // splits written by the JobClient and read by the LocalJobRunner with job.xml
+      Job job = new Job(conf);
+      job.setInputFormatClass(IsolatedInputFormat.class);
+      job.setMapperClass(LineCountMapper.class);
+      job.setNumReduceTasks(0);
+      job.setOutputKeyClass(Text.class);
+      job.setOutputValueClass(NullWritable.class);
+      TextOutputFormat.setOutputPath(job, out);
+      assertTrue(job.waitForCompletion(false));
+      assertEquals(6, job.getCounters().findCounter("org.apache.hadoop.mapred.Task$Counter", "MAP_INPUT_RECORDS").getValue());
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.twitter.isolated.hadoop.mapreduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.Test;
+
+import com.twitter.isolated.hadoop.ContextSwitch;
+
+public class TestIsolatedRecordReader {
+
+  private static final ClassLoader SPEC_CLASS_LOADER = new URLClassLoader(new URL[0]);
+
+  /**
+   * checks that every call runs with the class loader of the spec
+   */
+  private static final class CheckingReader extends RecordReader<Integer, Integer> {
+    private int current;
+    private boolean closed;
+
+    private static void check() {
+      assertSame(SPEC_CLASS_LOADER, Thread.currentThread().getContextClassLoader());
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) {
+      check();
+    }
+
+    @Override
+    public boolean nextKeyValue() {
+      check();
+      return ++current <= 3;
+    }
+
+    @Override
+    public Integer getCurrentKey() {
+      check();
+      return current;
+    }
+
+    @Override
+    public Integer getCurrentValue() {
+      check();
+      return -current;
+    }
+
+    @Override
+    public float getProgress() {
+      check();
+      return current / 3f;
+    }
+
+    @Override
+    public void close() {
+      check();
+      closed = true;
+    }
+  }
+
+  @Test
+  public void testRecordsAreReadWithTheSpecClassLoader() throws Exception {
+    ClassLoader taskClassLoader = Thread.currentThread().getContextClassLoader();
+    CheckingReader delegate = new CheckingReader();
+    RecordReader<Integer, Integer> reader = new IsolatedRecordReader<Integer, Integer>(delegate, new ContextSwitch(SPEC_CLASS_LOADER), null);
+    int count = 0;
+    while (reader.nextKeyValue()) {
+      ++count;
+      assertEquals(count, reader.getCurrentKey().intValue());
+      assertEquals(-count, reader.getCurrentValue().intValue());
+      reader.getProgress();
+      // the caller keeps its own class loader between records
+      assertSame(taskClassLoader, Thread.currentThread().getContextClassLoader());
+    }
+    assertEquals(3, count);
+    reader.close();
+    assertTrue(delegate.closed);
+    assertSame(taskClassLoader, Thread.currentThread().getContextClassLoader());
+  }
+
+  @Test
+  public void testNestedSwitch() {
+    ClassLoader taskClassLoader = Thread.currentThread().getContextClassLoader();
+    ContextSwitch contextSwitch = new ContextSwitch(SPEC_CLASS_LOADER);
+    ClassLoader outer = contextSwitch.enter();
+    assertSame(taskClassLoader, outer);
+    ClassLoader inner = contextSwitch.enter();
+    assertSame(SPEC_CLASS_LOADER, inner);
+    contextSwitch.exit(inner);
+    // still in the outer call
+    assertSame(SPEC_CLASS_LOADER, Thread.currentThread().getContextClassLoader());
+    contextSwitch.exit(outer);
+    assertSame(taskClassLoader, Thread.currentThread().getContextClassLoader());
+  }
+}